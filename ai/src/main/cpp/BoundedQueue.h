@@ -0,0 +1,64 @@
+#pragma once
+
+#include <condition_variable>
+#include <mutex>
+#include <vector>
+
+// Fixed-capacity blocking FIFO used to hand jobs from one pipeline stage to
+// the next. Push blocks while the queue is full so a slow stage throttles the
+// stages in front of it instead of letting work pile up. Items live in a ring
+// allocated up front, so queueing never touches the heap.
+template <typename T>
+class BoundedQueue {
+public:
+    explicit BoundedQueue(size_t capacity)
+            : items_(capacity), head_(0), size_(0), closed_(false) {}
+
+    // Returns false if the queue was closed before the item could be queued.
+    bool Push(T item) {
+        std::unique_lock<std::mutex> lock(mutex_);
+        notFull_.wait(lock, [this] { return closed_ || size_ < items_.size(); });
+        if (closed_) {
+            return false;
+        }
+        items_[(head_ + size_) % items_.size()] = std::move(item);
+        size_++;
+        notEmpty_.notify_one();
+        return true;
+    }
+
+    // Returns false once the queue is closed, pending items are dropped.
+    bool Pop(T *item) {
+        std::unique_lock<std::mutex> lock(mutex_);
+        notEmpty_.wait(lock, [this] { return closed_ || size_ > 0; });
+        if (closed_) {
+            return false;
+        }
+        *item = std::move(items_[head_]);
+        items_[head_] = T();
+        head_ = (head_ + 1) % items_.size();
+        size_--;
+        notFull_.notify_one();
+        return true;
+    }
+
+    void Close() {
+        std::lock_guard<std::mutex> lock(mutex_);
+        closed_ = true;
+        for (auto &item : items_) {
+            item = T();
+        }
+        size_ = 0;
+        notEmpty_.notify_all();
+        notFull_.notify_all();
+    }
+
+private:
+    std::vector<T> items_;
+    size_t head_;
+    size_t size_;
+    bool closed_;
+    std::mutex mutex_;
+    std::condition_variable notEmpty_;
+    std::condition_variable notFull_;
+};
@@ -0,0 +1,135 @@
+#include "Pipeline.h"
+
+namespace {
+
+// Below this overlap between the rectangle a face was tracked with and the
+// one re-estimated from its keypoints, the track is considered lost
+const float kMinTrackIoU = 0.5f;
+// Minimum overlap to keep the id of a previous track for a detected face
+const float kMinMatchIoU = 0.3f;
+
+float IoU(const cv::Rect &a, const cv::Rect &b) {
+    float inter = (a & b).area();
+    float area = a.area() + b.area() - inter;
+    return area > 0 ? inter / area : 0.0f;
+}
+
+cv::Rect2f KeypointsBox(const std::vector<cv::Point2d> &keypoints) {
+    double minX = keypoints[0].x, maxX = keypoints[0].x;
+    double minY = keypoints[0].y, maxY = keypoints[0].y;
+    for (const auto &point : keypoints) {
+        minX = std::min(minX, point.x);
+        maxX = std::max(maxX, point.x);
+        minY = std::min(minY, point.y);
+        maxY = std::max(maxY, point.y);
+    }
+    return cv::Rect2f(minX, minY, std::max(maxX - minX, 1.0), std::max(maxY - minY, 1.0));
+}
+
+}  // namespace
+
+FaceTracker::FaceTracker()
+        : detectInterval_(1), framesSinceDetection_(0), lost_(true), nextId_(0) {}
+
+void FaceTracker::SetDetectInterval(int detectInterval) {
+    detectInterval_ = std::max(detectInterval, 1);
+    lost_ = true;
+}
+
+bool FaceTracker::NeedDetection() const {
+    return detectInterval_ <= 1 || lost_ || tracks_.empty() ||
+           framesSinceDetection_ + 1 >= detectInterval_;
+}
+
+void FaceTracker::AssignIds(std::vector<Face> *faces) {
+    std::vector<bool> used(tracks_.size(), false);
+    for (auto &face : *faces) {
+        int best = -1;
+        float bestIoU = kMinMatchIoU;
+        for (size_t i = 0; i < tracks_.size(); i++) {
+            float iou = IoU(face.roi, tracks_[i].predictedRoi);
+            if (!used[i] && iou > bestIoU) {
+                best = i;
+                bestIoU = iou;
+            }
+        }
+        if (best >= 0) {
+            used[best] = true;
+            face.id = tracks_[best].id;
+        } else {
+            face.id = nextId_++;
+        }
+    }
+}
+
+void FaceTracker::Propagate(std::vector<Face> *faces) {
+    // Resize instead of clear so the faces keep their keypoint vectors
+    faces->resize(tracks_.size());
+    for (size_t i = 0; i < tracks_.size(); i++) {
+        Face &face = (*faces)[i];
+        face.roi = tracks_[i].predictedRoi;
+        face.id = tracks_[i].id;
+        face.keypoints.clear();
+        face.confidence = 0;
+        face.classid = 0;
+    }
+}
+
+void FaceTracker::Update(const cv::Size &imageSize, bool detected,
+                         std::vector<Face> *faces) {
+    if (detected) {
+        framesSinceDetection_ = 0;
+        lost_ = false;
+    } else {
+        framesSinceDetection_++;
+    }
+    cv::Rect imageRect(0, 0, imageSize.width - 1, imageSize.height - 1);
+    std::vector<Track> &tracks = nextTracks_;
+    tracks.clear();
+    for (auto &face : *faces) {
+        if (face.keypoints.empty()) {
+            // Nothing to propagate from
+            lost_ = true;
+            continue;
+        }
+        cv::Rect2f box = KeypointsBox(face.keypoints);
+        Track track;
+        track.id = face.id;
+        if (detected) {
+            // Remember where the detector puts the face relative to its
+            // keypoints, tracked frames keep using the same relation
+            track.keypointsToRoi = cv::Rect2f((face.roi.x - box.x) / box.width,
+                                              (face.roi.y - box.y) / box.height,
+                                              face.roi.width / box.width,
+                                              face.roi.height / box.height);
+        } else {
+            for (const auto &previous : tracks_) {
+                if (previous.id == face.id) {
+                    track.keypointsToRoi = previous.keypointsToRoi;
+                    break;
+                }
+            }
+        }
+        const cv::Rect2f &relative = track.keypointsToRoi;
+        cv::Rect roi = cv::Rect(box.x + relative.x * box.width,
+                                box.y + relative.y * box.height,
+                                relative.width * box.width,
+                                relative.height * box.height) & imageRect;
+        if (!detected) {
+            // The keypoints drifted away from the rectangle they were
+            // searched in, the face moved too fast or is gone
+            if (IoU(roi, face.roi) < kMinTrackIoU) {
+                lost_ = true;
+            }
+            face.roi = roi;
+        }
+        if (roi.area() == 0) {
+            lost_ = true;
+            continue;
+        }
+        track.roi = face.roi;
+        track.predictedRoi = roi;
+        tracks.push_back(track);
+    }
+    tracks_.swap(tracks);
+}
@@ -0,0 +1,83 @@
+#include "FakeBackend.h"
+#include "Utils.h"
+#include <algorithm>
+#include <cmath>
+
+FakeBackend::FakeBackend(const std::string &modelPath) : outputs_(3) {
+    if (modelPath.find("keypoints") != std::string::npos) {
+        model_ = FAKE_KEYPOINTS;
+    } else if (modelPath.find("mask") != std::string::npos) {
+        model_ = FAKE_CLASSIFIER;
+    } else {
+        model_ = FAKE_DETECTOR;
+    }
+}
+
+void FakeBackend::SetInputShape(const int64_t *shape, int dims) {
+    input_.shape.assign(shape, shape + dims);
+    input_.data.resize(ShapeProduction(shape, dims));
+}
+
+float *FakeBackend::MutableInputData() {
+    return input_.data.data();
+}
+
+void FakeBackend::SetOutputShape(int index, int64_t rows, int64_t cols) {
+    // Assigned in place, the tensors keep their capacity across runs
+    outputs_[index].shape.assign({rows, cols});
+    outputs_[index].data.resize(rows * cols);
+}
+
+bool FakeBackend::Run() {
+    int64_t batchSize = input_.shape.empty() ? 1 : input_.shape[0];
+    switch (model_) {
+        case FAKE_DETECTOR: {
+            static const float kDetections[] = {
+                    1, 0.99f, 0.30f, 0.20f, 0.55f, 0.60f,
+                    1, 0.95f, 0.60f, 0.25f, 0.80f, 0.62f,
+            };
+            SetOutputShape(2, batchSize * 2, 6);
+            outputs_[2].lod.resize(batchSize + 1);
+            for (int64_t i = 0; i < batchSize; i++) {
+                std::copy(kDetections, kDetections + 12, outputs_[2].data.begin() + i * 12);
+                outputs_[2].lod[i] = i * 2;
+            }
+            outputs_[2].lod[batchSize] = batchSize * 2;
+            break;
+        }
+        case FAKE_KEYPOINTS: {
+            SetOutputShape(0, batchSize, 136);
+            float *outputData = outputs_[0].data.data();
+            for (int64_t i = 0; i < batchSize; i++) {
+                for (int j = 0; j < 68; j++) {
+                    float angle = 2.0f * static_cast<float>(M_PI) * j / 68;
+                    *(outputData++) = 0.5f + 0.35f * std::cos(angle);
+                    *(outputData++) = 0.5f + 0.40f * std::sin(angle);
+                }
+            }
+            break;
+        }
+        case FAKE_CLASSIFIER: {
+            SetOutputShape(0, batchSize, 2);
+            float *outputData = outputs_[0].data.data();
+            for (int64_t i = 0; i < batchSize; i++) {
+                *(outputData++) = i % 2 == 0 ? 0.8f : 0.1f;
+                *(outputData++) = i % 2 == 0 ? 0.2f : 0.9f;
+            }
+            break;
+        }
+    }
+    return true;
+}
+
+const float *FakeBackend::OutputData(int index) const {
+    return outputs_[index].data.data();
+}
+
+void FakeBackend::OutputShape(int index, std::vector<int64_t> *shape) const {
+    *shape = outputs_[index].shape;
+}
+
+void FakeBackend::OutputLoD(int index, std::vector<uint64_t> *lod) const {
+    *lod = outputs_[index].lod;
+}
@@ -0,0 +1,42 @@
+#pragma once
+
+#include "InferenceBackend.h"
+
+// Backend that never looks at the model file. It answers with fixed outputs
+// shaped like the ones of the three models, picked from the model file name,
+// so the pre/post-processing can be profiled and tested without the models:
+//   pyramidbox     two faces per image (label, score, left, top, right,
+//                  bottom), with the rows of each image in the LoD
+//   facekeypoints  68 points on an ellipse inside every face crop
+//   maskclassifier alternates between "no mask" and "mask"
+class FakeBackend : public InferenceBackend {
+public:
+    explicit FakeBackend(const std::string &modelPath);
+
+    void SetInputShape(const int64_t *shape, int dims) override;
+
+    float *MutableInputData() override;
+
+    bool Run() override;
+
+    const float *OutputData(int index) const override;
+
+    void OutputShape(int index, std::vector<int64_t> *shape) const override;
+
+    void OutputLoD(int index, std::vector<uint64_t> *lod) const override;
+
+private:
+    enum Model { FAKE_DETECTOR, FAKE_KEYPOINTS, FAKE_CLASSIFIER };
+
+    struct Tensor {
+        std::vector<int64_t> shape;
+        std::vector<float> data;
+        std::vector<uint64_t> lod;
+    };
+
+    void SetOutputShape(int index, int64_t rows, int64_t cols);
+
+    Model model_;
+    Tensor input_;
+    std::vector<Tensor> outputs_;
+};
@@ -0,0 +1,33 @@
+#include "InferenceBackend.h"
+#include "FakeBackend.h"
+#include "Utils.h"
+#ifdef WITH_PADDLE_LITE
+#include "PaddleLiteBackend.h"
+#endif
+
+std::unique_ptr<InferenceBackend> CreateInferenceBackend(const BackendConfig &config) {
+    InferenceBackendType type = config.type;
+    if (type == BACKEND_DEFAULT) {
+#ifdef WITH_PADDLE_LITE
+        type = BACKEND_PADDLE_LITE;
+#else
+        type = BACKEND_FAKE;
+#endif
+    }
+    switch (type) {
+        case BACKEND_PADDLE_LITE:
+#ifdef WITH_PADDLE_LITE
+            return std::unique_ptr<InferenceBackend>(new PaddleLiteBackend(
+                    config.modelPath, config.modelBuffer, config.cpuThreadNum,
+                    config.cpuPowerMode));
+#else
+            LOGE("Paddle Lite backend is not built in, can't load %s", config.modelPath.c_str());
+            return nullptr;
+#endif
+        case BACKEND_FAKE:
+            return std::unique_ptr<InferenceBackend>(new FakeBackend(config.modelPath));
+        default:
+            LOGE("Unknown inference backend %d", type);
+            return nullptr;
+    }
+}
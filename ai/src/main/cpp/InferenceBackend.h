@@ -0,0 +1,62 @@
+#pragma once
+
+#include <cstddef>
+#include <cstdint>
+#include <memory>
+#include <string>
+#include <vector>
+
+// Runtime that executes one model. The stages only deal with float tensors:
+// they set the shape of input 0, fill it, run and read the outputs back. The
+// pointers returned by MutableInputData/OutputData stay valid until the next
+// call to SetInputShape or Run. Shapes and LoDs are passed in caller-owned
+// storage, so a stage that keeps it around doesn't allocate per frame.
+class InferenceBackend {
+public:
+    virtual ~InferenceBackend() = default;
+
+    virtual void SetInputShape(const int64_t *shape, int dims) = 0;
+
+    virtual float *MutableInputData() = 0;
+
+    virtual bool Run() = 0;
+
+    virtual const float *OutputData(int index) const = 0;
+
+    virtual void OutputShape(int index, std::vector<int64_t> *shape) const = 0;
+
+    // Row offsets of each input image in a batched output, empty when the
+    // runtime does not report them
+    virtual void OutputLoD(int index, std::vector<uint64_t> *lod) const = 0;
+};
+
+enum InferenceBackendType {
+    // Paddle Lite when the library is built in, the fake backend otherwise
+    BACKEND_DEFAULT = 0,
+    BACKEND_PADDLE_LITE = 1,
+    // Deterministic canned outputs, see FakeBackend.h
+    BACKEND_FAKE = 2,
+};
+
+// Model file contents that are already in memory, e.g. an uncompressed APK
+// asset mapped by AAssetManager. owner keeps the memory alive for as long as
+// a copy of the buffer exists, so a stage can still be loaded after the
+// caller has returned.
+struct ModelBuffer {
+    const void *data;
+    size_t size;
+    std::shared_ptr<void> owner;
+};
+
+struct BackendConfig {
+    InferenceBackendType type;
+    // Still names the model when modelBuffer is set
+    std::string modelPath;
+    int cpuThreadNum;
+    std::string cpuPowerMode;
+    // Loaded instead of modelPath when data is not null
+    ModelBuffer modelBuffer;
+};
+
+// Returns nullptr if the requested backend is not built in
+std::unique_ptr<InferenceBackend> CreateInferenceBackend(const BackendConfig &config);
@@ -0,0 +1,559 @@
+#include "Kernels.h"
+#include <algorithm>
+#include <cmath>
+#include <vector>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define KERNELS_HAVE_NEON 1
+#include <arm_neon.h>
+#endif
+
+#if defined(__x86_64__) || defined(__i386__)
+#define KERNELS_HAVE_X86 1
+#include <immintrin.h>
+#endif
+
+namespace {
+
+struct Normalization {
+  float mean[3];
+  float scale[3];
+};
+
+Normalization MakeNormalization(const float *mean, const float *std,
+                                int channels) {
+  Normalization n;
+  for (int c = 0; c < channels; c++) {
+    n.mean[c] = mean ? mean[c] : 0.0f;
+    n.scale[c] = std ? (1.0f / std[c]) : 1.0f;
+  }
+  return n;
+}
+
+// Scalar kernels, also used for the tails of the vectorized ones
+
+void NHWC3ToNC3HWTail(const float *src, float *dst_c0, float *dst_c1,
+                      float *dst_c2, const Normalization &n, int count) {
+  for (int i = 0; i < count; i++) {
+    *(dst_c0++) = (*(src++) - n.mean[0]) * n.scale[0];
+    *(dst_c1++) = (*(src++) - n.mean[1]) * n.scale[1];
+    *(dst_c2++) = (*(src++) - n.mean[2]) * n.scale[2];
+  }
+}
+
+void NHWC1ToNC1HWTail(const float *src, float *dst, const Normalization &n,
+                      int count) {
+  for (int i = 0; i < count; i++) {
+    *(dst++) = (*(src++) - n.mean[0]) * n.scale[0];
+  }
+}
+
+// Blends output columns [start, width) of the resampled rows, reading the
+// RGB planes in reverse to write BGR
+void BlendRowsToNC3HWTail(const float *const *rows, const float *weights,
+                          int taps, const float *scale, const float *bias,
+                          float *dst, int planeSize, int width, int start) {
+  for (int c = 0; c < 3; c++) {
+    int plane = (2 - c) * width;
+    float *out = dst + c * planeSize;
+    for (int i = start; i < width; i++) {
+      float v = rows[0][plane + i] * weights[0];
+      for (int k = 1; k < taps; k++) {
+        v += rows[k][plane + i] * weights[k];
+      }
+      out[i] = v * scale[c] + bias[c];
+    }
+  }
+}
+
+void NHWC3ToNC3HWScalar(const float *src, float *dst, const float *mean,
+                        const float *std, int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 3);
+  NHWC3ToNC3HWTail(src, dst, dst + size, dst + size * 2, n, size);
+}
+
+void NHWC1ToNC1HWScalar(const float *src, float *dst, const float *mean,
+                        const float *std, int width, int height) {
+  Normalization n = MakeNormalization(mean, std, 1);
+  NHWC1ToNC1HWTail(src, dst, n, height * width);
+}
+
+void BlendRowsToNC3HWScalar(const float *const *rows, const float *weights,
+                            int taps, const float *scale, const float *bias,
+                            float *dst, int planeSize, int width) {
+  BlendRowsToNC3HWTail(rows, weights, taps, scale, bias, dst, planeSize, width,
+                       0);
+}
+
+const PreprocessKernels kScalarKernels = {"scalar", NHWC3ToNC3HWScalar,
+                                          NHWC1ToNC1HWScalar,
+                                          BlendRowsToNC3HWScalar};
+
+#ifdef KERNELS_HAVE_NEON
+void NHWC3ToNC3HWNeon(const float *src, float *dst, const float *mean,
+                      const float *std, int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 3);
+  float32x4_t vmean0 = vdupq_n_f32(n.mean[0]);
+  float32x4_t vmean1 = vdupq_n_f32(n.mean[1]);
+  float32x4_t vmean2 = vdupq_n_f32(n.mean[2]);
+  float32x4_t vscale0 = vdupq_n_f32(n.scale[0]);
+  float32x4_t vscale1 = vdupq_n_f32(n.scale[1]);
+  float32x4_t vscale2 = vdupq_n_f32(n.scale[2]);
+  float *dst_c0 = dst;
+  float *dst_c1 = dst + size;
+  float *dst_c2 = dst + size * 2;
+  int i = 0;
+  for (; i < size - 3; i += 4) {
+    float32x4x3_t vin3 = vld3q_f32(src);
+    float32x4_t vsub0 = vsubq_f32(vin3.val[0], vmean0);
+    float32x4_t vsub1 = vsubq_f32(vin3.val[1], vmean1);
+    float32x4_t vsub2 = vsubq_f32(vin3.val[2], vmean2);
+    float32x4_t vs0 = vmulq_f32(vsub0, vscale0);
+    float32x4_t vs1 = vmulq_f32(vsub1, vscale1);
+    float32x4_t vs2 = vmulq_f32(vsub2, vscale2);
+    vst1q_f32(dst_c0, vs0);
+    vst1q_f32(dst_c1, vs1);
+    vst1q_f32(dst_c2, vs2);
+    src += 12;
+    dst_c0 += 4;
+    dst_c1 += 4;
+    dst_c2 += 4;
+  }
+  NHWC3ToNC3HWTail(src, dst_c0, dst_c1, dst_c2, n, size - i);
+}
+
+void NHWC1ToNC1HWNeon(const float *src, float *dst, const float *mean,
+                      const float *std, int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 1);
+  float32x4_t vmean = vdupq_n_f32(n.mean[0]);
+  float32x4_t vscale = vdupq_n_f32(n.scale[0]);
+  int i = 0;
+  for (; i < size - 3; i += 4) {
+    float32x4_t vin = vld1q_f32(src);
+    float32x4_t vsub = vsubq_f32(vin, vmean);
+    float32x4_t vs = vmulq_f32(vsub, vscale);
+    vst1q_f32(dst, vs);
+    src += 4;
+    dst += 4;
+  }
+  NHWC1ToNC1HWTail(src, dst, n, size - i);
+}
+
+void BlendRowsToNC3HWNeon(const float *const *rows, const float *weights,
+                          int taps, const float *scale, const float *bias,
+                          float *dst, int planeSize, int width) {
+  int i = 0;
+  for (int c = 0; c < 3; c++) {
+    int plane = (2 - c) * width;
+    float *out = dst + c * planeSize;
+    float32x4_t vscale = vdupq_n_f32(scale[c]);
+    float32x4_t vbias = vdupq_n_f32(bias[c]);
+    for (i = 0; i < width - 3; i += 4) {
+      float32x4_t v =
+          vmulq_f32(vld1q_f32(rows[0] + plane + i), vdupq_n_f32(weights[0]));
+      for (int k = 1; k < taps; k++) {
+        v = vaddq_f32(v, vmulq_f32(vld1q_f32(rows[k] + plane + i),
+                                   vdupq_n_f32(weights[k])));
+      }
+      vst1q_f32(out + i, vaddq_f32(vmulq_f32(v, vscale), vbias));
+    }
+  }
+  BlendRowsToNC3HWTail(rows, weights, taps, scale, bias, dst, planeSize, width,
+                       i);
+}
+
+const PreprocessKernels kNeonKernels = {"neon", NHWC3ToNC3HWNeon,
+                                        NHWC1ToNC1HWNeon,
+                                        BlendRowsToNC3HWNeon};
+#endif
+
+#ifdef KERNELS_HAVE_X86
+__attribute__((target("sse2"))) void NHWC3ToNC3HWSse2(
+    const float *src, float *dst, const float *mean, const float *std,
+    int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 3);
+  __m128 vmean0 = _mm_set1_ps(n.mean[0]);
+  __m128 vmean1 = _mm_set1_ps(n.mean[1]);
+  __m128 vmean2 = _mm_set1_ps(n.mean[2]);
+  __m128 vscale0 = _mm_set1_ps(n.scale[0]);
+  __m128 vscale1 = _mm_set1_ps(n.scale[1]);
+  __m128 vscale2 = _mm_set1_ps(n.scale[2]);
+  float *dst_c0 = dst;
+  float *dst_c1 = dst + size;
+  float *dst_c2 = dst + size * 2;
+  int i = 0;
+  for (; i < size - 3; i += 4) {
+    // Deinterleave 4 pixels: c0 c1 c2 c0 c1 c2 ...
+    __m128 vin0 = _mm_setr_ps(src[0], src[3], src[6], src[9]);
+    __m128 vin1 = _mm_setr_ps(src[1], src[4], src[7], src[10]);
+    __m128 vin2 = _mm_setr_ps(src[2], src[5], src[8], src[11]);
+    _mm_storeu_ps(dst_c0, _mm_mul_ps(_mm_sub_ps(vin0, vmean0), vscale0));
+    _mm_storeu_ps(dst_c1, _mm_mul_ps(_mm_sub_ps(vin1, vmean1), vscale1));
+    _mm_storeu_ps(dst_c2, _mm_mul_ps(_mm_sub_ps(vin2, vmean2), vscale2));
+    src += 12;
+    dst_c0 += 4;
+    dst_c1 += 4;
+    dst_c2 += 4;
+  }
+  NHWC3ToNC3HWTail(src, dst_c0, dst_c1, dst_c2, n, size - i);
+}
+
+__attribute__((target("sse2"))) void NHWC1ToNC1HWSse2(
+    const float *src, float *dst, const float *mean, const float *std,
+    int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 1);
+  __m128 vmean = _mm_set1_ps(n.mean[0]);
+  __m128 vscale = _mm_set1_ps(n.scale[0]);
+  int i = 0;
+  for (; i < size - 3; i += 4) {
+    __m128 vin = _mm_loadu_ps(src);
+    _mm_storeu_ps(dst, _mm_mul_ps(_mm_sub_ps(vin, vmean), vscale));
+    src += 4;
+    dst += 4;
+  }
+  NHWC1ToNC1HWTail(src, dst, n, size - i);
+}
+
+__attribute__((target("avx2"))) void NHWC3ToNC3HWAvx2(
+    const float *src, float *dst, const float *mean, const float *std,
+    int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 3);
+  __m256 vmean0 = _mm256_set1_ps(n.mean[0]);
+  __m256 vmean1 = _mm256_set1_ps(n.mean[1]);
+  __m256 vmean2 = _mm256_set1_ps(n.mean[2]);
+  __m256 vscale0 = _mm256_set1_ps(n.scale[0]);
+  __m256 vscale1 = _mm256_set1_ps(n.scale[1]);
+  __m256 vscale2 = _mm256_set1_ps(n.scale[2]);
+  // Offsets of one channel of 8 consecutive pixels
+  __m256i vindex = _mm256_setr_epi32(0, 3, 6, 9, 12, 15, 18, 21);
+  float *dst_c0 = dst;
+  float *dst_c1 = dst + size;
+  float *dst_c2 = dst + size * 2;
+  int i = 0;
+  for (; i < size - 7; i += 8) {
+    __m256 vin0 = _mm256_i32gather_ps(src, vindex, 4);
+    __m256 vin1 = _mm256_i32gather_ps(src + 1, vindex, 4);
+    __m256 vin2 = _mm256_i32gather_ps(src + 2, vindex, 4);
+    _mm256_storeu_ps(dst_c0, _mm256_mul_ps(_mm256_sub_ps(vin0, vmean0), vscale0));
+    _mm256_storeu_ps(dst_c1, _mm256_mul_ps(_mm256_sub_ps(vin1, vmean1), vscale1));
+    _mm256_storeu_ps(dst_c2, _mm256_mul_ps(_mm256_sub_ps(vin2, vmean2), vscale2));
+    src += 24;
+    dst_c0 += 8;
+    dst_c1 += 8;
+    dst_c2 += 8;
+  }
+  NHWC3ToNC3HWTail(src, dst_c0, dst_c1, dst_c2, n, size - i);
+}
+
+__attribute__((target("avx2"))) void NHWC1ToNC1HWAvx2(
+    const float *src, float *dst, const float *mean, const float *std,
+    int width, int height) {
+  int size = height * width;
+  Normalization n = MakeNormalization(mean, std, 1);
+  __m256 vmean = _mm256_set1_ps(n.mean[0]);
+  __m256 vscale = _mm256_set1_ps(n.scale[0]);
+  int i = 0;
+  for (; i < size - 7; i += 8) {
+    __m256 vin = _mm256_loadu_ps(src);
+    _mm256_storeu_ps(dst, _mm256_mul_ps(_mm256_sub_ps(vin, vmean), vscale));
+    src += 8;
+    dst += 8;
+  }
+  NHWC1ToNC1HWTail(src, dst, n, size - i);
+}
+
+__attribute__((target("sse2"))) void BlendRowsToNC3HWSse2(
+    const float *const *rows, const float *weights, int taps,
+    const float *scale, const float *bias, float *dst, int planeSize,
+    int width) {
+  int i = 0;
+  for (int c = 0; c < 3; c++) {
+    int plane = (2 - c) * width;
+    float *out = dst + c * planeSize;
+    __m128 vscale = _mm_set1_ps(scale[c]);
+    __m128 vbias = _mm_set1_ps(bias[c]);
+    for (i = 0; i < width - 3; i += 4) {
+      __m128 v = _mm_mul_ps(_mm_loadu_ps(rows[0] + plane + i),
+                            _mm_set1_ps(weights[0]));
+      for (int k = 1; k < taps; k++) {
+        v = _mm_add_ps(v, _mm_mul_ps(_mm_loadu_ps(rows[k] + plane + i),
+                                     _mm_set1_ps(weights[k])));
+      }
+      _mm_storeu_ps(out + i, _mm_add_ps(_mm_mul_ps(v, vscale), vbias));
+    }
+  }
+  BlendRowsToNC3HWTail(rows, weights, taps, scale, bias, dst, planeSize, width,
+                       i);
+}
+
+__attribute__((target("avx2"))) void BlendRowsToNC3HWAvx2(
+    const float *const *rows, const float *weights, int taps,
+    const float *scale, const float *bias, float *dst, int planeSize,
+    int width) {
+  int i = 0;
+  for (int c = 0; c < 3; c++) {
+    int plane = (2 - c) * width;
+    float *out = dst + c * planeSize;
+    __m256 vscale = _mm256_set1_ps(scale[c]);
+    __m256 vbias = _mm256_set1_ps(bias[c]);
+    for (i = 0; i < width - 7; i += 8) {
+      __m256 v = _mm256_mul_ps(_mm256_loadu_ps(rows[0] + plane + i),
+                               _mm256_set1_ps(weights[0]));
+      for (int k = 1; k < taps; k++) {
+        v = _mm256_add_ps(v,
+                          _mm256_mul_ps(_mm256_loadu_ps(rows[k] + plane + i),
+                                        _mm256_set1_ps(weights[k])));
+      }
+      _mm256_storeu_ps(out + i,
+                       _mm256_add_ps(_mm256_mul_ps(v, vscale), vbias));
+    }
+  }
+  BlendRowsToNC3HWTail(rows, weights, taps, scale, bias, dst, planeSize, width,
+                       i);
+}
+
+const PreprocessKernels kSse2Kernels = {"sse2", NHWC3ToNC3HWSse2,
+                                        NHWC1ToNC1HWSse2,
+                                        BlendRowsToNC3HWSse2};
+const PreprocessKernels kAvx2Kernels = {"avx2", NHWC3ToNC3HWAvx2,
+                                        NHWC1ToNC1HWAvx2,
+                                        BlendRowsToNC3HWAvx2};
+#endif
+
+const PreprocessKernels &ActiveKernels() {
+  static const PreprocessKernels *kernels =
+      GetPreprocessKernels(DetectSimdLevel());
+  return *kernels;
+}
+
+// Source samples and weights of every output pixel along one axis, taps per
+// output pixel. Taps with weight 0 point at the first sample so they never
+// touch another row or column.
+struct ResizeTaps {
+  int taps = 0;
+  std::vector<int> index;
+  std::vector<float> weight;
+};
+
+// Two taps per output pixel with the cv::INTER_LINEAR pixel-center convention
+void BilinearTaps(int srcSize, int dstSize, ResizeTaps *taps) {
+  const float scale = static_cast<float>(srcSize) / dstSize;
+  taps->taps = 2;
+  taps->index.resize(dstSize * 2);
+  taps->weight.resize(dstSize * 2);
+  for (int d = 0; d < dstSize; d++) {
+    float f = (d + 0.5f) * scale - 0.5f;
+    int i0 = static_cast<int>(std::floor(f));
+    float w = f - i0;
+    if (i0 < 0) {
+      i0 = 0;
+      w = 0.0f;
+    }
+    if (i0 >= srcSize - 1) {
+      i0 = srcSize - 1;
+      w = 0.0f;
+    }
+    taps->index[d * 2] = i0;
+    taps->index[d * 2 + 1] = w > 0.0f ? i0 + 1 : i0;
+    taps->weight[d * 2] = 1.0f - w;
+    taps->weight[d * 2 + 1] = w;
+  }
+}
+
+// Averages the source pixels each output pixel covers, weighting the partly
+// covered ones at the edges by their coverage. Used when shrinking by 2 or
+// more, where two bilinear taps would skip most source pixels and alias.
+void AreaTaps(int srcSize, int dstSize, ResizeTaps *taps) {
+  const double scale = static_cast<double>(srcSize) / dstSize;
+  const int count = static_cast<int>(std::ceil(scale)) + 1;
+  taps->taps = count;
+  taps->index.resize(dstSize * count);
+  taps->weight.resize(dstSize * count);
+  for (int d = 0; d < dstSize; d++) {
+    double begin = d * scale;
+    double end = std::min((d + 1) * scale, static_cast<double>(srcSize));
+    int first = static_cast<int>(begin);
+    int *index = taps->index.data() + d * count;
+    float *weight = taps->weight.data() + d * count;
+    for (int t = 0; t < count; t++) {
+      int i = first + t;
+      double coverage =
+          std::min(end, i + 1.0) - std::max(begin, static_cast<double>(i));
+      if (i < srcSize && coverage > 0.0) {
+        index[t] = i;
+        weight[t] = static_cast<float>(coverage / scale);
+      } else {
+        index[t] = first;
+        weight[t] = 0.0f;
+      }
+    }
+  }
+}
+
+// Area averaging when shrinking by 2 or more, bilinear otherwise
+void ResizeTapsFor(int srcSize, int dstSize, ResizeTaps *taps) {
+  if (srcSize >= dstSize * 2) {
+    AreaTaps(srcSize, dstSize, taps);
+  } else {
+    BilinearTaps(srcSize, dstSize, taps);
+  }
+}
+
+// Horizontal pass: resamples one RGBA source row into R, G and B planes of
+// width floats each
+void ResampleRow(const uint8_t *row, const ResizeTaps &xTaps, int width,
+                 float *out) {
+  float *r = out;
+  float *g = out + width;
+  float *b = out + width * 2;
+  const int taps = xTaps.taps;
+  const int *index = xTaps.index.data();
+  const float *weight = xTaps.weight.data();
+  for (int dx = 0; dx < width; dx++) {
+    float vr = 0.0f, vg = 0.0f, vb = 0.0f;
+    for (int t = 0; t < taps; t++) {
+      const uint8_t *p = row + index[t] * 4;
+      vr += p[0] * weight[t];
+      vg += p[1] * weight[t];
+      vb += p[2] * weight[t];
+    }
+    r[dx] = vr;
+    g[dx] = vg;
+    b[dx] = vb;
+    index += taps;
+    weight += taps;
+  }
+}
+
+// Tables and row cache of the fused resize, kept per thread so frames of the
+// same size do not allocate
+struct ResizeScratch {
+  ResizeTaps xTaps;
+  ResizeTaps yTaps;
+  std::vector<float> rowCache;
+  std::vector<int> cachedRows;
+  std::vector<const float *> rows;
+};
+
+}  // namespace
+
+SimdLevel DetectSimdLevel() {
+#ifdef KERNELS_HAVE_NEON
+  return SIMD_NEON;
+#elif defined(KERNELS_HAVE_X86)
+  if (__builtin_cpu_supports("avx2")) {
+    return SIMD_AVX2;
+  }
+  if (__builtin_cpu_supports("sse2")) {
+    return SIMD_SSE2;
+  }
+  return SIMD_SCALAR;
+#else
+  return SIMD_SCALAR;
+#endif
+}
+
+const PreprocessKernels *GetPreprocessKernels(SimdLevel level) {
+  switch (level) {
+  case SIMD_SCALAR:
+    return &kScalarKernels;
+#ifdef KERNELS_HAVE_NEON
+  case SIMD_NEON:
+    return &kNeonKernels;
+#endif
+#ifdef KERNELS_HAVE_X86
+  case SIMD_SSE2:
+    return __builtin_cpu_supports("sse2") ? &kSse2Kernels : nullptr;
+  case SIMD_AVX2:
+    return __builtin_cpu_supports("avx2") ? &kAvx2Kernels : nullptr;
+#endif
+  default:
+    return nullptr;
+  }
+}
+
+void NHWC3ToNC3HW(const float *src, float *dst, const float *mean,
+                  const float *std, int width, int height) {
+  ActiveKernels().nhwc3ToNc3hw(src, dst, mean, std, width, height);
+}
+
+void NHWC1ToNC1HW(const float *src, float *dst, const float *mean,
+                  const float *std, int width, int height) {
+  ActiveKernels().nhwc1ToNc1hw(src, dst, mean, std, width, height);
+}
+
+void NHWC2NCHW(const float *src, float *dst, const float *mean,
+               const float *std, int width, int height) {
+  ActiveKernels().nhwc3ToNc3hw(src, dst, mean, std, width, height);
+}
+
+void ResizeRGBAToNC3HW(const uint8_t *src, int srcWidth, int srcHeight,
+                       int srcStride, float *dst, int dstWidth, int dstHeight,
+                       const float *mean, const float *std) {
+  ResizeRGBAToNC3HWLetterbox(src, srcWidth, srcHeight, srcStride, dst, dstWidth,
+                             dstHeight, dstWidth, dstHeight, mean, std);
+}
+
+void ResizeRGBAToNC3HWLetterbox(const uint8_t *src, int srcWidth, int srcHeight,
+                                int srcStride, float *dst, int dstWidth,
+                                int dstHeight, int contentWidth,
+                                int contentHeight, const float *mean,
+                                const float *std) {
+  static thread_local ResizeScratch scratch;
+  ResizeTaps &xTaps = scratch.xTaps;
+  ResizeTaps &yTaps = scratch.yTaps;
+  ResizeTapsFor(srcWidth, contentWidth, &xTaps);
+  ResizeTapsFor(srcHeight, contentHeight, &yTaps);
+  // Fold the 1/255 normalization and the mean/std into one multiply-add per
+  // channel: out = v * scale + bias
+  float scale[3], bias[3];
+  for (int c = 0; c < 3; c++) {
+    scale[c] = 1.0f / (255.0f * std[c]);
+    bias[c] = -mean[c] / std[c];
+  }
+  // The rows of one output row are consecutive, so a cache of taps rows
+  // indexed by source row modulo taps holds all of them at once, and rows
+  // shared with the previous output row are not resampled again
+  const int taps = yTaps.taps;
+  const int rowSize = contentWidth * 3;
+  scratch.rowCache.resize(taps * rowSize);
+  scratch.cachedRows.assign(taps, -1);
+  scratch.rows.resize(taps);
+  const PreprocessKernels &kernels = ActiveKernels();
+  const int size = dstWidth * dstHeight;
+  const int padWidth = dstWidth - contentWidth;
+  for (int dy = 0; dy < contentHeight; dy++) {
+    const int *index = yTaps.index.data() + dy * taps;
+    for (int t = 0; t < taps; t++) {
+      int y = index[t];
+      int slot = y % taps;
+      float *cached = scratch.rowCache.data() + slot * rowSize;
+      if (scratch.cachedRows[slot] != y) {
+        ResampleRow(src + y * srcStride, xTaps, contentWidth, cached);
+        scratch.cachedRows[slot] = y;
+      }
+      scratch.rows[t] = cached;
+    }
+    float *out = dst + dy * dstWidth;
+    kernels.blendRowsToNc3hw(scratch.rows.data(),
+                             yTaps.weight.data() + dy * taps, taps, scale, bias,
+                             out, size, contentWidth);
+    if (padWidth > 0) {
+      for (int c = 0; c < 3; c++) {
+        std::fill_n(out + c * size + contentWidth, padWidth, 0.0f);
+      }
+    }
+  }
+  const int padSize = (dstHeight - contentHeight) * dstWidth;
+  if (padSize > 0) {
+    for (int c = 0; c < 3; c++) {
+      std::fill_n(dst + c * size + contentHeight * dstWidth, padSize, 0.0f);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+#pragma once
+
+#include <cstdint>
+
+// Instruction sets the preprocessing kernels are implemented for. NEON is
+// chosen at build time (armeabi-v7a is built with -mfpu=neon, arm64-v8a always
+// has it), the x86 variants are compiled in on x86 builds and picked at run
+// time from what the CPU supports.
+enum SimdLevel {
+  SIMD_SCALAR = 0,
+  SIMD_NEON = 1,
+  SIMD_SSE2 = 2,
+  SIMD_AVX2 = 3,
+};
+
+// One implementation of every vectorized kernel. All variants compute
+// (src - mean) * (1 / std) with the same operation order, so the NHWC kernels
+// produce bit-identical results. The row blend may differ in the last bit
+// where the compiler contracts the scalar multiply-adds into FMAs.
+struct PreprocessKernels {
+  const char *name;
+  void (*nhwc3ToNc3hw)(const float *src, float *dst, const float *mean,
+                       const float *std, int width, int height);
+  void (*nhwc1ToNc1hw)(const float *src, float *dst, const float *mean,
+                       const float *std, int width, int height);
+  // Vertical pass of the fused resize: blends taps horizontally resampled
+  // rows (R, G and B planes of width floats each) with weights, applies
+  // out = v * scale + bias (scale and bias in BGR order) and writes the B, G
+  // and R planes at dst, dst + planeSize and dst + 2 * planeSize
+  void (*blendRowsToNc3hw)(const float *const *rows, const float *weights,
+                           int taps, const float *scale, const float *bias,
+                           float *dst, int planeSize, int width);
+};
+
+// Best level that is both compiled in and supported by the running CPU
+SimdLevel DetectSimdLevel();
+
+// Returns nullptr if the level is not available on this build or CPU
+const PreprocessKernels *GetPreprocessKernels(SimdLevel level);
+
+// The functions below dispatch to the kernels of DetectSimdLevel()
+
+void NHWC3ToNC3HW(const float *src, float *dst, const float *mean,
+                  const float *std, int width, int height);
+
+void NHWC1ToNC1HW(const float *src, float *dst, const float *mean,
+                  const float *std, int width, int height);
+
+void NHWC2NCHW(const float *src, float *dst, const float *mean,
+               const float *std, int width, int height);
+
+// Resizes an RGBA8888 image with bilinear interpolation (same pixel-center
+// convention as cv::INTER_LINEAR), or by averaging the covered source pixels
+// (like cv::INTER_AREA) along an axis that shrinks by 2 or more, swaps it to
+// BGR and writes the planar normalized floats ((v / 255 - mean) / std,
+// mean/std in BGR order) straight into dst. Source rows are resampled
+// horizontally once into a small row cache and blended vertically by the
+// kernels of DetectSimdLevel().
+void ResizeRGBAToNC3HW(const uint8_t *src, int srcWidth, int srcHeight,
+                       int srcStride, float *dst, int dstWidth, int dstHeight,
+                       const float *mean, const float *std);
+
+// Same as ResizeRGBAToNC3HW, but the image is resized to contentWidth x
+// contentHeight in the top-left corner of the dstWidth x dstHeight planes and
+// the rest is filled with 0, i.e. the mean color after normalization.
+void ResizeRGBAToNC3HWLetterbox(const uint8_t *src, int srcWidth, int srcHeight,
+                                int srcStride, float *dst, int dstWidth,
+                                int dstHeight, int contentWidth,
+                                int contentHeight, const float *mean,
+                                const float *std);
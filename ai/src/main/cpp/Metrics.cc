@@ -0,0 +1,73 @@
+#include "Metrics.h"
+#include "Utils.h"
+
+const int LatencyHistogram::kBucketNum;
+const int64_t LatencyHistogram::kBucketBaseMicros;
+const int LatencyHistogram::kSnapshotSize;
+const int PipelineMetrics::kSnapshotSize;
+
+LatencyHistogram::LatencyHistogram() {
+    Reset();
+}
+
+void LatencyHistogram::Record(int64_t micros) {
+    int bucket = 0;
+    while (bucket < kBucketNum - 1 && micros >= (kBucketBaseMicros << bucket)) {
+        bucket++;
+    }
+    buckets_[bucket].fetch_add(1, std::memory_order_relaxed);
+    count_.fetch_add(1, std::memory_order_relaxed);
+    sumMicros_.fetch_add(micros, std::memory_order_relaxed);
+    int64_t max = maxMicros_.load(std::memory_order_relaxed);
+    while (micros > max &&
+           !maxMicros_.compare_exchange_weak(max, micros, std::memory_order_relaxed)) {
+    }
+}
+
+int64_t LatencyHistogram::RecordSince(int64_t start) {
+    int64_t now = GetCurrentTime();
+    Record(now - start);
+    return now;
+}
+
+void LatencyHistogram::Reset() {
+    count_.store(0, std::memory_order_relaxed);
+    sumMicros_.store(0, std::memory_order_relaxed);
+    maxMicros_.store(0, std::memory_order_relaxed);
+    for (auto &bucket : buckets_) {
+        bucket.store(0, std::memory_order_relaxed);
+    }
+}
+
+void LatencyHistogram::Snapshot(int64_t *out) const {
+    out[0] = count_.load(std::memory_order_relaxed);
+    out[1] = sumMicros_.load(std::memory_order_relaxed);
+    out[2] = maxMicros_.load(std::memory_order_relaxed);
+    for (int i = 0; i < kBucketNum; i++) {
+        out[3 + i] = buckets_[i].load(std::memory_order_relaxed);
+    }
+}
+
+PipelineMetrics::PipelineMetrics() {
+    Reset();
+}
+
+void PipelineMetrics::Reset() {
+    frames.store(0, std::memory_order_relaxed);
+    faces.store(0, std::memory_order_relaxed);
+    droppedFrames.store(0, std::memory_order_relaxed);
+    skippedFrames.store(0, std::memory_order_relaxed);
+    for (auto &timer : timers) {
+        timer.Reset();
+    }
+}
+
+void PipelineMetrics::Snapshot(int64_t *out) const {
+    out[0] = frames.load(std::memory_order_relaxed);
+    out[1] = faces.load(std::memory_order_relaxed);
+    out[2] = droppedFrames.load(std::memory_order_relaxed);
+    out[3] = skippedFrames.load(std::memory_order_relaxed);
+    for (int i = 0; i < TIMER_NUM; i++) {
+        timers[i].Snapshot(out + 4 + i * LatencyHistogram::kSnapshotSize);
+    }
+}
@@ -0,0 +1,77 @@
+#pragma once
+
+#include <atomic>
+#include <cstdint>
+
+// Latency distribution with fixed power-of-two buckets: bucket 0 counts
+// samples below kBucketBaseMicros, bucket i the ones in
+// [kBucketBaseMicros << (i - 1), kBucketBaseMicros << i), the last bucket
+// everything above. Recording is a handful of relaxed atomic adds, so the
+// histograms stay on in production; a histogram is written by one thread at
+// a time and may be read or reset from any other.
+class LatencyHistogram {
+public:
+    static const int kBucketNum = 20;
+    static const int64_t kBucketBaseMicros = 64;
+
+    LatencyHistogram();
+
+    void Record(int64_t micros);
+
+    // Records the time since start (a GetCurrentTime value) and returns the
+    // current time, so consecutive steps can be chained
+    int64_t RecordSince(int64_t start);
+
+    void Reset();
+
+    // count, sum and max in microseconds, then the kBucketNum bucket counts
+    static const int kSnapshotSize = 3 + kBucketNum;
+
+    void Snapshot(int64_t *out) const;
+
+private:
+    std::atomic<int64_t> count_;
+    std::atomic<int64_t> sumMicros_;
+    std::atomic<int64_t> maxMicros_;
+    std::atomic<int64_t> buckets_[kBucketNum];
+};
+
+// The order is part of the Java API, see PipelineStats.java
+enum MetricTimer {
+    TIMER_DETECT_PREPROCESS = 0,
+    TIMER_DETECT_RUN,
+    TIMER_DETECT_POSTPROCESS,
+    TIMER_KEYPOINTS_PREPROCESS,
+    TIMER_KEYPOINTS_RUN,
+    TIMER_KEYPOINTS_POSTPROCESS,
+    TIMER_MASK_PREPROCESS,
+    TIMER_MASK_RUN,
+    TIMER_MASK_POSTPROCESS,
+    // Locking the caller's pixels or converting the camera YUV planes
+    TIMER_JNI_INPUT,
+    // Writing the faces back into Face objects or a FaceBatch
+    TIMER_JNI_OUTPUT,
+    // A whole Pipeline::Process call
+    TIMER_FRAME,
+    TIMER_NUM,
+};
+
+struct PipelineMetrics {
+    LatencyHistogram timers[TIMER_NUM];
+    std::atomic<int64_t> frames;
+    std::atomic<int64_t> faces;
+    // Frames that were submitted but never produced a result
+    std::atomic<int64_t> droppedFrames;
+    // Frames the motion gate answered with the previous result
+    std::atomic<int64_t> skippedFrames;
+
+    PipelineMetrics();
+
+    void Reset();
+
+    // frames, faces, droppedFrames, skippedFrames, then the snapshot of every
+    // timer
+    static const int kSnapshotSize = 4 + TIMER_NUM * LatencyHistogram::kSnapshotSize;
+
+    void Snapshot(int64_t *out) const;
+};
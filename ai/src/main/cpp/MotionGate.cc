@@ -0,0 +1,98 @@
+#include "Pipeline.h"
+#include <algorithm>
+#include <cstdlib>
+
+namespace {
+
+// Thumbnail cells the frame is reduced to, and luma samples averaged per cell
+// in each direction
+const int kThumbnailWidth = 32;
+const int kThumbnailHeight = 24;
+const int kSamplesPerCell = 4;
+
+}  // namespace
+
+MotionGate::MotionGate()
+        : sensitivity_(0.0f), maxSkipFrames_(0), resetRequested_(false), hasReference_(false),
+          skippedFrames_(0) {}
+
+void MotionGate::Configure(float sensitivity, int maxSkipFrames) {
+    sensitivity_ = std::min(sensitivity, 1.0f);
+    maxSkipFrames_ = maxSkipFrames;
+    resetRequested_ = true;
+}
+
+bool MotionGate::Enabled() const {
+    return sensitivity_ > 0.0f;
+}
+
+void MotionGate::Reset() {
+    resetRequested_ = true;
+}
+
+bool MotionGate::ShouldProcess(const cv::Mat &rgbaImage) {
+    float sensitivity = sensitivity_;
+    if (sensitivity <= 0.0f) {
+        return true;
+    }
+    if (resetRequested_.exchange(false)) {
+        hasReference_ = false;
+    }
+    Downsample(rgbaImage, &thumbnail_);
+    int maxSkipFrames = maxSkipFrames_;
+    bool process = !hasReference_ || rgbaImage.size() != referenceSize_ ||
+                   (maxSkipFrames > 0 && skippedFrames_ >= maxSkipFrames) ||
+                   Changed(sensitivity);
+    if (process) {
+        // Compared with the last processed frame rather than the previous
+        // one, so slow changes add up until they count as motion
+        reference_.swap(thumbnail_);
+        referenceSize_ = rgbaImage.size();
+        hasReference_ = true;
+        skippedFrames_ = 0;
+    } else {
+        skippedFrames_++;
+    }
+    return process;
+}
+
+void MotionGate::Downsample(const cv::Mat &rgbaImage, std::vector<uint8_t> *thumbnail) const {
+    thumbnail->resize(kThumbnailWidth * kThumbnailHeight);
+    const int samplesX = kThumbnailWidth * kSamplesPerCell;
+    const int samplesY = kThumbnailHeight * kSamplesPerCell;
+    uint8_t *cell = thumbnail->data();
+    for (int cy = 0; cy < kThumbnailHeight; cy++) {
+        for (int cx = 0; cx < kThumbnailWidth; cx++) {
+            int sum = 0;
+            for (int sy = 0; sy < kSamplesPerCell; sy++) {
+                int y = ((cy * kSamplesPerCell + sy) * 2 + 1) * rgbaImage.rows / (samplesY * 2);
+                const uint8_t *row = rgbaImage.ptr<uint8_t>(y);
+                for (int sx = 0; sx < kSamplesPerCell; sx++) {
+                    int x = ((cx * kSamplesPerCell + sx) * 2 + 1) * rgbaImage.cols /
+                            (samplesX * 2);
+                    const uint8_t *pixel = row + x * 4;
+                    // BT.601 luma in fixed point
+                    sum += (pixel[0] * 77 + pixel[1] * 150 + pixel[2] * 29) >> 8;
+                }
+            }
+            *(cell++) = static_cast<uint8_t>(sum / (kSamplesPerCell * kSamplesPerCell));
+        }
+    }
+}
+
+bool MotionGate::Changed(float sensitivity) const {
+    // Full sensitivity reacts to a single cell changing by more than sensor
+    // noise, lower values need larger and more widespread changes
+    const int cellNum = kThumbnailWidth * kThumbnailHeight;
+    const int cellThreshold = 8 + static_cast<int>((1.0f - sensitivity) * 40);
+    const int minChangedCells =
+            std::max(1, static_cast<int>((1.0f - sensitivity) * 0.02f * cellNum + 0.5f));
+    int changedCells = 0;
+    for (int i = 0; i < cellNum; i++) {
+        if (std::abs(thumbnail_[i] - reference_[i]) > cellThreshold &&
+            ++changedCells >= minChangedCells) {
+            return true;
+        }
+    }
+    return false;
+}
@@ -1,19 +1,57 @@
 #include "Native.h"
 #include "Pipeline.h"
 
-#ifdef __cplusplus
-extern "C" {
-#endif
-
-// 初始化全部模型
-JNIEXPORT jlong JNICALL
-Java_com_yeyupiaoling_ai_PaddleNative_nativeInit(
-        JNIEnv *env, jclass thiz, jstring jpyramidboxModelPath, jint fdtCPUThreadNum,
-        jstring jfdtCPUPowerMode, jfloat fdtInputScale, jfloatArray jfdtInputMean,
-        jfloatArray jfdtInputStd, jfloat fdtScoreThreshold, jstring jfaceKeyPointsModelPath,
+// JNI_OnLoad中解析并缓存的Face类、字段和构造方法，每一帧都会用到，避免重复按名字查找
+static struct {
+    jclass clazz;
+    // Face[]，批量预测时作为结果数组的元素类型
+    jclass arrayClazz;
+    jmethodID init;
+    jfieldID roi;
+    jfieldID confidence;
+    jfieldID classid;
+    jfieldID keypoints;
+    jfieldID id;
+} gFaceClass;
+
+// 打开APK中的模型文件。模型在APK中不压缩时（noCompress "nb"），AAsset_getBuffer直接映射APK文件，
+// 不需要先复制到缓存目录，但Paddle Lite 2.6.1仍会在堆上保存一份模型，见PaddleLiteBackend.cc。
+// buffer持有asset，最后一份拷贝释放时关闭
+static bool OpenModelAsset(AAssetManager *assetManager, const std::string &name,
+                           ModelBuffer *buffer) {
+    AAsset *asset = AAssetManager_open(assetManager, name.c_str(), AASSET_MODE_BUFFER);
+    if (asset == nullptr) {
+        LOGE("Failed to open model asset %s", name.c_str());
+        return false;
+    }
+    buffer->owner.reset(asset, [](void *asset) {
+        AAsset_close(static_cast<AAsset *>(asset));
+    });
+    buffer->data = AAsset_getBuffer(asset);
+    buffer->size = static_cast<size_t>(AAsset_getLength(asset));
+    if (buffer->data == nullptr) {
+        LOGE("Failed to read model asset %s", name.c_str());
+        return false;
+    }
+    if (AAsset_isAllocated(asset)) {
+        LOGW("Model asset %s is compressed, add noCompress \"nb\" to aaptOptions", name.c_str());
+    }
+    return true;
+}
+
+
+// 初始化全部模型，jassetManager不为空时三个模型路径是APK中assets的文件名。
+// lazyStages为true时关键点和口罩模型在第一次检测到人脸时才加载，stages之外的模型在用到之前不加载
+static jlong JNICALL
+NativeInit(
+        JNIEnv *env, jclass thiz, jobject jassetManager, jstring jpyramidboxModelPath,
+        jint fdtCPUThreadNum, jstring jfdtCPUPowerMode, jint fdtInputSize,
+        jfloatArray jfdtInputMean, jfloatArray jfdtInputStd, jfloat fdtScoreThreshold,
+        jstring jfaceKeyPointsModelPath,
         jint fkpCPUThreadNum, jstring jfkpCPUPowerMode, jint fkpInputWidth, jint fkpInputHeight,
         jstring jmclModelDir, jint mclCPUThreadNum, jstring jmclCPUPowerMode, jint mclInputWidth,
-        jint mclInputHeight, jfloatArray jmclInputMean, jfloatArray jmclInputStd) {
+        jint mclInputHeight, jfloatArray jmclInputMean, jfloatArray jmclInputStd,
+        jboolean lazyStages, jint stages) {
     std::string pyramidboxModelPath = jstring_to_cpp_string(env, jpyramidboxModelPath);
     std::string fdtCPUPowerMode = jstring_to_cpp_string(env, jfdtCPUPowerMode);
     std::vector<float> fdtInputMean = jfloatarray_to_float_vector(env, jfdtInputMean);
@@ -26,17 +64,31 @@ Java_com_yeyupiaoling_ai_PaddleNative_nativeInit(
             jfloatarray_to_float_vector(env, jmclInputMean);
     std::vector<float> mclInputStd =
             jfloatarray_to_float_vector(env, jmclInputStd);;
+
+    // 延迟加载的模型在加载之前asset都不会关闭
+    ModelBuffer modelBuffers[3] = {};
+    if (jassetManager != nullptr) {
+        AAssetManager *assetManager = AAssetManager_fromJava(env, jassetManager);
+        const std::string *names[3] = {&pyramidboxModelPath, &faceKeyPointsModelPath,
+                                       &mclModelDir};
+        for (int i = 0; i < 3; i++) {
+            if (!OpenModelAsset(assetManager, *names[i], &modelBuffers[i])) {
+                return 0;
+            }
+        }
+    }
     return reinterpret_cast<jlong>(new Pipeline(
-            pyramidboxModelPath, fdtCPUThreadNum, fdtCPUPowerMode, fdtInputScale,
+            pyramidboxModelPath, fdtCPUThreadNum, fdtCPUPowerMode, fdtInputSize,
             fdtInputMean, fdtInputStd, fdtScoreThreshold, faceKeyPointsModelPath,
             fkpCPUThreadNum, fkpCPUPowerMode, fkpInputWidth, fkpInputHeight,
             mclModelDir, mclCPUThreadNum, mclCPUPowerMode, mclInputWidth,
-            mclInputHeight, mclInputMean, mclInputStd));
+            mclInputHeight, mclInputMean, mclInputStd, BACKEND_DEFAULT,
+            jassetManager != nullptr ? modelBuffers : nullptr, lazyStages == JNI_TRUE, stages));
 }
 
 
-JNIEXPORT jboolean JNICALL
-Java_com_yeyupiaoling_ai_PaddleNative_nativeRelease(JNIEnv *env, jclass thiz, jlong ctx) {
+static jboolean JNICALL
+NativeRelease(JNIEnv *env, jclass thiz, jlong ctx) {
     if (ctx == 0) {
         return JNI_FALSE;
     }
@@ -46,101 +98,750 @@ Java_com_yeyupiaoling_ai_PaddleNative_nativeRelease(JNIEnv *env, jclass thiz, jl
 }
 
 
-// 预测流程
-JNIEXPORT jobjectArray JNICALL
-Java_com_yeyupiaoling_ai_PaddleNative_nativeProcess(
-        JNIEnv *env, jclass thiz, jlong ctx, jobject jARGB8888ImageBitmap) {
+// 调试用：进程内分配过的cv::Mat缓冲区数量，预热之后应该不再增长
+static jlong JNICALL
+NativeGetMatAllocations(JNIEnv *env, jclass thiz) {
+    return MatAllocations();
+}
+
+
+// 用合成的图像把已经加载的模型各执行一次，只支持延迟优先模式
+static void JNICALL
+NativeWarmUp(JNIEnv *env, jclass thiz, jlong ctx) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->WarmUp();
+}
+
+
+// 累计的统计数据写入jstats，格式见PipelineStats.java，数组长度不对时返回false
+static jboolean JNICALL
+NativeGetStats(JNIEnv *env, jclass thiz, jlong ctx, jlongArray jstats) {
+    if (ctx == 0 || env->GetArrayLength(jstats) != PipelineMetrics::kSnapshotSize) {
+        return JNI_FALSE;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    jlong stats[PipelineMetrics::kSnapshotSize];
+    pipeline->Metrics().Snapshot(reinterpret_cast<int64_t *>(stats));
+    env->SetLongArrayRegion(jstats, 0, PipelineMetrics::kSnapshotSize, stats);
+    return JNI_TRUE;
+}
+
+
+static void JNICALL
+NativeResetStats(JNIEnv *env, jclass thiz, jlong ctx) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->Metrics().Reset();
+}
+
+
+// 设置执行模式，0为延迟优先，1为吞吐量优先的流水线模式
+static void JNICALL
+NativeSetExecutionMode(
+        JNIEnv *env, jclass thiz, jlong ctx, jint mode) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->SetExecutionMode(mode == THROUGHPUT_FIRST ? THROUGHPUT_FIRST : LATENCY_FIRST);
+}
+
+
+// 设置人脸检测的间隔帧数，中间的帧使用上一帧的关键点跟踪人脸
+static void JNICALL
+NativeSetDetectInterval(
+        JNIEnv *env, jclass thiz, jlong ctx, jint detectInterval) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->SetDetectInterval(detectInterval);
+}
+
+
+// 设置需要检测的最小人脸，人脸检测模型的输入大小随之缩小
+static void JNICALL
+NativeSetMinFaceSize(
+        JNIEnv *env, jclass thiz, jlong ctx, jint minFaceSize) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->SetMinFaceSize(minFaceSize);
+}
+
+
+// 设置之后的预测执行哪些阶段，见PipelineStage
+static void JNICALL
+NativeSetStages(
+        JNIEnv *env, jclass thiz, jlong ctx, jint stages) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->SetStages(stages);
+}
+
+
+// 设置运动检测，场景没有变化时跳过预测，直接返回上一次的结果
+static void JNICALL
+NativeSetMotionGate(
+        JNIEnv *env, jclass thiz, jlong ctx, jfloat sensitivity, jint maxSkipFrames) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    pipeline->SetMotionGate(sensitivity, maxSkipFrames);
+}
+
+
+// 设置人脸检测的区域，每4个数是一个区域的left、top、width、height，都是相对图像宽高的比例。
+// 为null或者空数组时检测整张图像
+static void JNICALL
+NativeSetDetectionRegions(
+        JNIEnv *env, jclass thiz, jlong ctx, jfloatArray jregions) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    std::vector<cv::Rect2f> regions;
+    if (jregions != nullptr) {
+        std::vector<float> values = jfloatarray_to_float_vector(env, jregions);
+        for (size_t i = 0; i + 3 < values.size(); i += 4) {
+            regions.emplace_back(values[i], values[i + 1], values[i + 2], values[i + 3]);
+        }
+    }
+    pipeline->SetDetectionRegions(regions);
+}
+
+
+// 设置人脸可能出现的区域的掩码，width * height个字节，不为0的像素才检测，为null时取消
+static void JNICALL
+NativeSetDetectionMask(
+        JNIEnv *env, jclass thiz, jlong ctx, jbyteArray jmask, jint width, jint height) {
+    if (ctx == 0) {
+        return;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    if (jmask == nullptr || width <= 0 || height <= 0 ||
+        env->GetArrayLength(jmask) < width * height) {
+        pipeline->SetDetectionMask(cv::Mat());
+        return;
+    }
+    cv::Mat mask(height, width, CV_8UC1);
+    env->GetByteArrayRegion(jmask, 0, width * height, reinterpret_cast<jbyte *>(mask.data));
+    pipeline->SetDetectionMask(mask);
+}
+
+
+// 预测结果相对于输入图像延迟的帧数
+static jint JNICALL
+NativeGetResultDelay(
+        JNIEnv *env, jclass thiz, jlong ctx) {
     if (ctx == 0) {
+        return 0;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    return pipeline->ResultDelay();
+}
+
+
+// 把预测结果转换为Java的Face数组
+static jobjectArray FacesToJavaArray(JNIEnv *env, const std::vector<Face> &faces) {
+    jint len = faces.size();
+    jobjectArray faceArray = env->NewObjectArray(len, gFaceClass.clazz, nullptr);
+    float keypoints[68 * 2];
+    for (jint i = 0; i < len; i++) {
+        const Face &face = faces[i];
+        jobject obj = env->NewObject(gFaceClass.clazz, gFaceClass.init);
+        env->SetFloatField(obj, gFaceClass.confidence, (jfloat) face.confidence);
+        env->SetIntField(obj, gFaceClass.classid, (jint) face.classid);
+        env->SetIntField(obj, gFaceClass.id, (jint) face.id);
+
+        float box[4] = {static_cast<float>(face.roi.x), static_cast<float>(face.roi.y),
+                        static_cast<float>(face.roi.width), static_cast<float>(face.roi.height)};
+        jfloatArray roi = env->NewFloatArray(4);
+        env->SetFloatArrayRegion(roi, 0, 4, box);
+        env->SetObjectField(obj, gFaceClass.roi, roi);
+
+        jsize keypointsNum = std::min(face.keypoints.size(), static_cast<size_t>(68));
+        for (jsize j = 0; j < keypointsNum; ++j) {
+            keypoints[j * 2] = face.keypoints[j].x;
+            keypoints[j * 2 + 1] = face.keypoints[j].y;
+        }
+        jfloatArray keypointsArray = env->NewFloatArray(keypointsNum * 2);
+        env->SetFloatArrayRegion(keypointsArray, 0, keypointsNum * 2, keypoints);
+        env->SetObjectField(obj, gFaceClass.keypoints, keypointsArray);
+        env->SetObjectArrayElement(faceArray, i, obj);
+
+        // 人脸很多时避免局部引用表溢出
+        env->DeleteLocalRef(roi);
+        env->DeleteLocalRef(keypointsArray);
+        env->DeleteLocalRef(obj);
+    }
+    return faceArray;
+}
+
+
+// FaceBatch中每个人脸占用的float数：roi(4) + confidence + classid + id + 68个关键点(136)，
+// 与FaceBatch.STRIDE保持一致
+static const int kFaceStride = 7 + 68 * 2;
+
+// 把结果写入调用者的direct FloatBuffer，放不下的人脸会被丢弃
+static bool FacesToBuffer(JNIEnv *env, const std::vector<Face> &faces, jobject jresult) {
+    auto *data = reinterpret_cast<float *>(env->GetDirectBufferAddress(jresult));
+    if (data == nullptr) {
+        LOGE("Only direct FloatBuffer is supported!");
+        return false;
+    }
+    size_t capacity = env->GetDirectBufferCapacity(jresult) / kFaceStride;
+    size_t faceNum = std::min(faces.size(), capacity);
+    for (size_t i = 0; i < faceNum; i++) {
+        const Face &face = faces[i];
+        float *faceData = data + i * kFaceStride;
+        faceData[0] = face.roi.x;
+        faceData[1] = face.roi.y;
+        faceData[2] = face.roi.width;
+        faceData[3] = face.roi.height;
+        faceData[4] = face.confidence;
+        faceData[5] = face.classid;
+        faceData[6] = face.id;
+        float *keypoints = faceData + 7;
+        size_t keypointsNum = std::min(face.keypoints.size(), static_cast<size_t>(68));
+        for (size_t j = 0; j < keypointsNum; j++) {
+            keypoints[j * 2] = face.keypoints[j].x;
+            keypoints[j * 2 + 1] = face.keypoints[j].y;
+        }
+        std::fill(keypoints + keypointsNum * 2, keypoints + 68 * 2, 0.0f);
+    }
+    return true;
+}
+
+
+// 没能送进Pipeline的帧计入丢帧数，返回-1
+static int RejectFrame(Pipeline *pipeline) {
+    pipeline->Metrics().droppedFrames.fetch_add(1, std::memory_order_relaxed);
+    return -1;
+}
+
+
+// 参数错误时在Java中抛出IllegalArgumentException，同时按丢帧处理
+static int RejectFrame(JNIEnv *env, Pipeline *pipeline, const char *message) {
+    LOGE("%s", message);
+    jclass exceptionClass = env->FindClass("java/lang/IllegalArgumentException");
+    if (exceptionClass != nullptr) {
+        env->ThrowNew(exceptionClass, message);
+        env->DeleteLocalRef(exceptionClass);
+    }
+    return RejectFrame(pipeline);
+}
+
+
+// 检查平面的direct ByteBuffer能容纳rows行，每行cols个间隔pixelStride的像素，最后一行可以没有填充
+static const uint8_t *PlaneAddress(JNIEnv *env, jobject jbuffer, int cols, int rows,
+                                   int rowStride, int pixelStride) {
+    auto *plane = reinterpret_cast<const uint8_t *>(env->GetDirectBufferAddress(jbuffer));
+    if (plane == nullptr) {
+        return nullptr;
+    }
+    jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    if (capacity < (jlong) rowStride * (rows - 1) + (jlong) (cols - 1) * pixelStride + 1) {
         return nullptr;
     }
+    return plane;
+}
 
+
+// 把pipeline->Arena().faces写回Java，并记录耗时
+static jobjectArray OutputFaces(JNIEnv *env, Pipeline *pipeline) {
+    auto t = GetCurrentTime();
+    jobjectArray result = FacesToJavaArray(env, pipeline->Arena().faces);
+    pipeline->Metrics().timers[TIMER_JNI_OUTPUT].RecordSince(t);
+    return result;
+}
+
+
+static bool OutputFaces(JNIEnv *env, Pipeline *pipeline, jobject jresult) {
+    auto t = GetCurrentTime();
+    bool written = FacesToBuffer(env, pipeline->Arena().faces, jresult);
+    pipeline->Metrics().timers[TIMER_JNI_OUTPUT].RecordSince(t);
+    return written;
+}
+
+
+// 推理期间一直锁住Bitmap的像素，直接在其内存上构建cv::Mat，不再复制整张图像。
+// 返回人脸数量，出错时返回-1，结果在pipeline->Arena().faces中
+static int ProcessBitmap(JNIEnv *env, Pipeline *pipeline, jobject jARGB8888ImageBitmap) {
     auto t = GetCurrentTime();
     void *bitmapPixels;
     AndroidBitmapInfo bitmapInfo;
     if (AndroidBitmap_getInfo(env, jARGB8888ImageBitmap, &bitmapInfo) < 0) {
         LOGE("Invoke AndroidBitmap_getInfo() failed!");
-        return nullptr;
+        return RejectFrame(pipeline);
     }
     if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
         LOGE("Only Bitmap.Config.ARGB8888 color format is supported!");
-        return nullptr;
+        return RejectFrame(pipeline);
     }
     if (AndroidBitmap_lockPixels(env, jARGB8888ImageBitmap, &bitmapPixels) < 0) {
         LOGE("Invoke AndroidBitmap_lockPixels() failed!");
-        return nullptr;
+        return RejectFrame(pipeline);
     }
-    cv::Mat bmpImage(bitmapInfo.height, bitmapInfo.width, CV_8UC4, bitmapPixels);
-    cv::Mat rgbaImage;
-    bmpImage.copyTo(rgbaImage);
+    cv::Mat rgbaImage(bitmapInfo.height, bitmapInfo.width, CV_8UC4, bitmapPixels,
+                      bitmapInfo.stride);
+    pipeline->Metrics().timers[TIMER_JNI_INPUT].RecordSince(t);
+
+    std::vector<Face> &faces = pipeline->Arena().faces;
+    bool modified = pipeline->Process(rgbaImage, faces);
     if (AndroidBitmap_unlockPixels(env, jARGB8888ImageBitmap) < 0) {
         LOGE("Invoke AndroidBitmap_unlockPixels() failed!");
+        return -1;
+    }
+    return modified ? static_cast<int>(faces.size()) : 0;
+}
+
+
+// 直接使用调用者的direct ByteBuffer内存，不复制图像。返回值同ProcessBitmap
+static int ProcessBuffer(JNIEnv *env, Pipeline *pipeline, jobject jbuffer, jint width,
+                         jint height, jint stride, jint format) {
+    if (format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        LOGE("Only RGBA_8888 buffer format is supported!");
+        return RejectFrame(pipeline);
+    }
+    if (width <= 0 || height <= 0 || stride < width * 4) {
+        LOGE("Invalid buffer size: width=%d height=%d stride=%d", width, height, stride);
+        return RejectFrame(pipeline);
+    }
+    void *pixels = env->GetDirectBufferAddress(jbuffer);
+    if (pixels == nullptr) {
+        LOGE("Only direct ByteBuffer is supported!");
+        return RejectFrame(pipeline);
+    }
+    jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    if (capacity < (jlong) stride * (height - 1) + width * 4) {
+        LOGE("ByteBuffer capacity %lld is too small!", (long long) capacity);
+        return RejectFrame(pipeline);
+    }
+    cv::Mat rgbaImage(height, width, CV_8UC4, pixels, stride);
+
+    std::vector<Face> &faces = pipeline->Arena().faces;
+    bool modified = pipeline->Process(rgbaImage, faces);
+    return modified ? static_cast<int>(faces.size()) : 0;
+}
+
+
+// 取出一个色度平面，pixelStride不为1时需要把交错的数据拆到buffer里。
+// 只读取每个像素自己的字节，平面最后一个像素之后的字节可能不属于这个ByteBuffer
+static cv::Mat ChromaPlane(const uint8_t *plane, int width, int height, int rowStride,
+                           int pixelStride, cv::Mat &buffer) {
+    if (pixelStride == 1) {
+        return cv::Mat(height, width, CV_8UC1, const_cast<uint8_t *>(plane), rowStride);
+    }
+    cv::Mat &chroma = buffer;
+    chroma.create(height, width, CV_8UC1);
+    for (int y = 0; y < height; y++) {
+        const uint8_t *src = plane + y * rowStride;
+        uint8_t *dst = chroma.ptr<uint8_t>(y);
+        for (int x = 0; x < width; x++) {
+            dst[x] = src[x * pixelStride];
+        }
+    }
+    return chroma;
+}
+
+
+// 把YUV_420_888图像缩小到rgbaImage的大小并转换为RGBA，颜色转换只在缩小后的图像上进行
+static bool YUV420ToRGBA(const uint8_t *yPlane, const uint8_t *uPlane, const uint8_t *vPlane,
+                         int width, int height, int yRowStride, int uvRowStride,
+                         int uvPixelStride, int rotation, FrameArena &arena,
+                         cv::Mat &rgbaImage) {
+    bool transposed = rotation == 90 || rotation == 270;
+    int dstWidth = transposed ? rgbaImage.rows : rgbaImage.cols;
+    int dstHeight = transposed ? rgbaImage.cols : rgbaImage.rows;
+    if (dstWidth % 2 != 0 || dstHeight % 2 != 0) {
+        LOGE("Output size must be even: %dx%d", dstWidth, dstHeight);
+        return false;
+    }
+    // 按NV21的格式存放缩小后的图像，前面是Y平面，后面是交错的VU平面
+    cv::Mat &yuvImage = arena.yuvImage;
+    yuvImage.create(dstHeight * 3 / 2, dstWidth, CV_8UC1);
+    cv::Mat yDst(yuvImage, cv::Rect(0, 0, dstWidth, dstHeight));
+    cv::Mat vuDst(dstHeight / 2, dstWidth / 2, CV_8UC2, yuvImage.ptr(dstHeight));
+    int interpolation = dstWidth < width ? cv::INTER_AREA : cv::INTER_LINEAR;
+
+    cv::Mat ySrc(height, width, CV_8UC1, const_cast<uint8_t *>(yPlane), yRowStride);
+    cv::resize(ySrc, yDst, yDst.size(), 0, 0, interpolation);
+
+    int colorCode = cv::COLOR_YUV2RGBA_NV21;
+    if (uvPixelStride == 2 && uPlane == vPlane + 1) {
+        // 大多数设备上VU本来就是交错存放的(NV21)，可以直接缩放
+        cv::Mat vuSrc(height / 2, width / 2, CV_8UC2, const_cast<uint8_t *>(vPlane),
+                      uvRowStride);
+        cv::resize(vuSrc, vuDst, vuDst.size(), 0, 0, interpolation);
+    } else if (uvPixelStride == 2 && vPlane == uPlane + 1) {
+        cv::Mat uvSrc(height / 2, width / 2, CV_8UC2, const_cast<uint8_t *>(uPlane),
+                      uvRowStride);
+        cv::resize(uvSrc, vuDst, vuDst.size(), 0, 0, interpolation);
+        colorCode = cv::COLOR_YUV2RGBA_NV12;
+    } else {
+        // 中间结果都放在arena里，和其它格式一样预热之后不再分配内存
+        cv::Mat &uDst = arena.uResized;
+        cv::Mat &vDst = arena.vResized;
+        cv::resize(ChromaPlane(uPlane, width / 2, height / 2, uvRowStride, uvPixelStride,
+                               arena.uPlane),
+                   uDst, vuDst.size(), 0, 0, interpolation);
+        cv::resize(ChromaPlane(vPlane, width / 2, height / 2, uvRowStride, uvPixelStride,
+                               arena.vPlane),
+                   vDst, vuDst.size(), 0, 0, interpolation);
+        cv::Mat planes[] = {vDst, uDst};
+        cv::merge(planes, 2, vuDst);
+    }
+
+    if (rotation == 0) {
+        cv::cvtColor(yuvImage, rgbaImage, colorCode);
+        return true;
+    }
+    cv::Mat &uprightImage = arena.uprightImage;
+    cv::cvtColor(yuvImage, uprightImage, colorCode);
+    if (rotation == 90) {
+        cv::rotate(uprightImage, rgbaImage, cv::ROTATE_90_CLOCKWISE);
+    } else if (rotation == 180) {
+        cv::rotate(uprightImage, rgbaImage, cv::ROTATE_180);
+    } else if (rotation == 270) {
+        cv::rotate(uprightImage, rgbaImage, cv::ROTATE_90_COUNTERCLOCKWISE);
+    } else {
+        LOGE("Unsupported rotation: %d", rotation);
+        return false;
+    }
+    return true;
+}
+
+
+// 直接使用相机ImageReader的YUV_420_888数据，转换结果写入输出的Bitmap。返回值同ProcessBitmap
+static int ProcessYUV(JNIEnv *env, Pipeline *pipeline, jobject jyBuffer, jobject juBuffer,
+                      jobject jvBuffer, jint width, jint height, jint yRowStride,
+                      jint uvRowStride, jint uvPixelStride, jint rotation,
+                      jobject jARGB8888OutputBitmap) {
+    auto t = GetCurrentTime();
+    if (width < 2 || height < 2 || width % 2 != 0 || height % 2 != 0) {
+        return RejectFrame(env, pipeline, "YUV image width and height must be even");
+    }
+    if (uvPixelStride != 1 && uvPixelStride != 2) {
+        return RejectFrame(env, pipeline, "YUV uvPixelStride must be 1 or 2");
+    }
+    int uvWidth = width / 2;
+    if (yRowStride < width || uvRowStride < (uvWidth - 1) * uvPixelStride + 1) {
+        return RejectFrame(env, pipeline, "YUV row stride is smaller than the image width");
+    }
+    const uint8_t *yPlane = PlaneAddress(env, jyBuffer, width, height, yRowStride, 1);
+    const uint8_t *uPlane = PlaneAddress(env, juBuffer, uvWidth, height / 2, uvRowStride,
+                                         uvPixelStride);
+    const uint8_t *vPlane = PlaneAddress(env, jvBuffer, uvWidth, height / 2, uvRowStride,
+                                         uvPixelStride);
+    if (yPlane == nullptr || uPlane == nullptr || vPlane == nullptr) {
+        return RejectFrame(env, pipeline,
+                           "YUV planes must be direct ByteBuffers large enough for the strides");
+    }
+
+    void *bitmapPixels;
+    AndroidBitmapInfo bitmapInfo;
+    if (AndroidBitmap_getInfo(env, jARGB8888OutputBitmap, &bitmapInfo) < 0) {
+        LOGE("Invoke AndroidBitmap_getInfo() failed!");
+        return RejectFrame(pipeline);
+    }
+    if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        LOGE("Only Bitmap.Config.ARGB8888 color format is supported!");
+        return RejectFrame(pipeline);
+    }
+    if (AndroidBitmap_lockPixels(env, jARGB8888OutputBitmap, &bitmapPixels) < 0) {
+        LOGE("Invoke AndroidBitmap_lockPixels() failed!");
+        return RejectFrame(pipeline);
+    }
+    cv::Mat rgbaImage(bitmapInfo.height, bitmapInfo.width, CV_8UC4, bitmapPixels,
+                      bitmapInfo.stride);
+
+    std::vector<Face> &faces = pipeline->Arena().faces;
+    bool modified = false;
+    if (YUV420ToRGBA(yPlane, uPlane, vPlane, width, height, yRowStride, uvRowStride,
+                     uvPixelStride, rotation, pipeline->Arena(), rgbaImage)) {
+        pipeline->Metrics().timers[TIMER_JNI_INPUT].RecordSince(t);
+        modified = pipeline->Process(rgbaImage, faces);
+    } else {
+        RejectFrame(pipeline);
+    }
+    if (AndroidBitmap_unlockPixels(env, jARGB8888OutputBitmap) < 0) {
+        LOGE("Invoke AndroidBitmap_unlockPixels() failed!");
+        return -1;
+    }
+    return modified ? static_cast<int>(faces.size()) : 0;
+}
+
+
+// 预测流程，结果以Face数组返回
+static jobjectArray JNICALL
+NativeProcess(
+        JNIEnv *env, jclass thiz, jlong ctx, jobject jARGB8888ImageBitmap) {
+    if (ctx == 0) {
         return nullptr;
     }
-    LOGD("Read from bitmap costs %f ms", GetElapsedTime(t));
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    if (ProcessBitmap(env, pipeline, jARGB8888ImageBitmap) <= 0) {
+        return nullptr;
+    }
+    return OutputFaces(env, pipeline);
+}
 
+
+static jobjectArray JNICALL
+NativeProcessBuffer(
+        JNIEnv *env, jclass thiz, jlong ctx, jobject jbuffer, jint width, jint height,
+        jint stride, jint format) {
+    if (ctx == 0) {
+        return nullptr;
+    }
     Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    if (ProcessBuffer(env, pipeline, jbuffer, width, height, stride, format) <= 0) {
+        return nullptr;
+    }
+    return OutputFaces(env, pipeline);
+}
 
-    std::vector<Face> faces;
-    bool modified = pipeline->Process(rgbaImage, faces);
-    if (!modified) {
+
+static jobjectArray JNICALL
+NativeProcessYUV(
+        JNIEnv *env, jclass thiz, jlong ctx, jobject jyBuffer, jobject juBuffer,
+        jobject jvBuffer, jint width, jint height, jint yRowStride, jint uvRowStride,
+        jint uvPixelStride, jint rotation, jobject jARGB8888OutputBitmap) {
+    if (ctx == 0) {
         return nullptr;
     }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    if (ProcessYUV(env, pipeline, jyBuffer, juBuffer, jvBuffer, width, height, yRowStride,
+                   uvRowStride, uvPixelStride, rotation, jARGB8888OutputBitmap) <= 0) {
+        return nullptr;
+    }
+    return OutputFaces(env, pipeline);
+}
 
-    jobjectArray MXArray = nullptr;       // jobjectArray 为指针类型
-    jclass clsMX = nullptr;              // jclass 为指针类型
-    jobject obj;
 
-    jint len = faces.size();  //设置这个数组的长度.
+// 预测流程，结果写入调用者的FaceBatch缓冲区，每帧不再创建Java对象。
+// 返回检测到的人脸数量，出错时返回-1
+static jint JNICALL
+NativeProcessInto(
+        JNIEnv *env, jclass thiz, jlong ctx, jobject jARGB8888ImageBitmap, jobject jresult) {
+    if (ctx == 0) {
+        return -1;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    int faceNum = ProcessBitmap(env, pipeline, jARGB8888ImageBitmap);
+    if (faceNum > 0 && !OutputFaces(env, pipeline, jresult)) {
+        return -1;
+    }
+    return faceNum;
+}
 
-    //知道要返回的class.
-    clsMX = env->FindClass("com/yeyupiaoling/ai/Face");
 
-    //创建一个MXAray的数组对象.
-    MXArray = env->NewObjectArray(len, clsMX, nullptr);
+static jint JNICALL
+NativeProcessBufferInto(
+        JNIEnv *env, jclass thiz, jlong ctx, jobject jbuffer, jint width, jint height,
+        jint stride, jint format, jobject jresult) {
+    if (ctx == 0) {
+        return -1;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    int faceNum = ProcessBuffer(env, pipeline, jbuffer, width, height, stride, format);
+    if (faceNum > 0 && !OutputFaces(env, pipeline, jresult)) {
+        return -1;
+    }
+    return faceNum;
+}
 
-    //获取类中每一个变量的定义
-    jfieldID roi = (env)->GetFieldID(clsMX, "roi", "[F");
-    jfieldID confidence = (env)->GetFieldID(clsMX, "confidence", "F");
-    jfieldID classid = (env)->GetFieldID(clsMX, "classid", "I");
-    jfieldID keypoints = (env)->GetFieldID(clsMX, "keypoints", "[F");
 
-    //得到这个类的构造方法id.  //得到类的默认构造方法的id.都这样写.
-    jmethodID consID = (env)->GetMethodID(clsMX, "<init>", "()V");
+static jint JNICALL
+NativeProcessYUVInto(
+        JNIEnv *env, jclass thiz, jlong ctx, jobject jyBuffer, jobject juBuffer,
+        jobject jvBuffer, jint width, jint height, jint yRowStride, jint uvRowStride,
+        jint uvPixelStride, jint rotation, jobject jARGB8888OutputBitmap, jobject jresult) {
+    if (ctx == 0) {
+        return -1;
+    }
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    int faceNum = ProcessYUV(env, pipeline, jyBuffer, juBuffer, jvBuffer, width, height,
+                             yRowStride, uvRowStride, uvPixelStride, rotation,
+                             jARGB8888OutputBitmap);
+    if (faceNum > 0 && !OutputFaces(env, pipeline, jresult)) {
+        return -1;
+    }
+    return faceNum;
+}
 
-    for (jint i = 0; i < len; i++) {
-        obj = env->NewObject(clsMX, consID);
-        cv::Rect roi1 = faces[i].roi;
-        float confidence1 = faces[i].confidence;
-        int classid1 = faces[i].classid;
-        std::vector<cv::Point2d> keypoints1 = faces[i].keypoints;
-        env->SetFloatField(obj, confidence, (jfloat)confidence1);
-        env->SetIntField(obj, classid, (jint)classid1);
-
-        jfloatArray box1;
-        box1 = (*env).NewFloatArray(4);
-        float box2[4];
-        box2[0] = roi1.x;
-        box2[1] = roi1.y;
-        box2[2] = roi1.width;
-        box2[3] = roi1.height;
-        (*env).SetFloatArrayRegion(box1, 0, 4, box2);
-        env->SetObjectField(obj, roi, box1);
-
-        jfloatArray k1;
-        k1 = (*env).NewFloatArray(keypoints1.size() *2);
-        float k2[keypoints1.size() *2];
-        for (int j = 0; j < keypoints1.size(); ++j) {
-            k2[j * 2] = keypoints1[j].x;
-            k2[j * 2 + 1] = keypoints1[j].y;
+
+// 批量预测多张图像，同样大小的图像一起做人脸检测，所有人脸一起做关键点检测和口罩分类。
+// 返回每张图像的结果，没有人脸的图像对应空数组，出错时返回null
+static jobjectArray JNICALL
+NativeProcessBatch(JNIEnv *env, jclass thiz, jlong ctx, jobjectArray jARGB8888ImageBitmaps) {
+    if (ctx == 0) {
+        return nullptr;
+    }
+    jsize imageNum = env->GetArrayLength(jARGB8888ImageBitmaps);
+    std::vector<jobject> bitmaps;
+    std::vector<cv::Mat> rgbaImages;
+    bool locked = true;
+    for (jsize i = 0; i < imageNum && locked; i++) {
+        jobject bitmap = env->GetObjectArrayElement(jARGB8888ImageBitmaps, i);
+        void *bitmapPixels;
+        AndroidBitmapInfo bitmapInfo;
+        if (AndroidBitmap_getInfo(env, bitmap, &bitmapInfo) < 0) {
+            LOGE("Invoke AndroidBitmap_getInfo() failed!");
+            locked = false;
+        } else if (bitmapInfo.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+            LOGE("Only Bitmap.Config.ARGB8888 color format is supported!");
+            locked = false;
+        } else if (AndroidBitmap_lockPixels(env, bitmap, &bitmapPixels) < 0) {
+            LOGE("Invoke AndroidBitmap_lockPixels() failed!");
+            locked = false;
         }
-        (*env).SetFloatArrayRegion(k1, 0, keypoints1.size() *2, k2);
-        env->SetObjectField(obj, keypoints, k1);
-        env->SetObjectArrayElement(MXArray, i, obj);
+        if (!locked) {
+            env->DeleteLocalRef(bitmap);
+            break;
+        }
+        bitmaps.push_back(bitmap);
+        rgbaImages.emplace_back(bitmapInfo.height, bitmapInfo.width, CV_8UC4, bitmapPixels,
+                                bitmapInfo.stride);
     }
-    return MXArray;
+
+    Pipeline *pipeline = reinterpret_cast<Pipeline *>(ctx);
+    std::vector<std::vector<Face>> &faces = pipeline->Arena().batchFaces;
+    bool processed = locked && pipeline->ProcessBatch(rgbaImages, &faces);
+    for (jobject bitmap : bitmaps) {
+        if (AndroidBitmap_unlockPixels(env, bitmap) < 0) {
+            LOGE("Invoke AndroidBitmap_unlockPixels() failed!");
+        }
+        env->DeleteLocalRef(bitmap);
+    }
+    if (!processed) {
+        pipeline->Metrics().droppedFrames.fetch_add(imageNum, std::memory_order_relaxed);
+        return nullptr;
+    }
+
+    auto t = GetCurrentTime();
+    jobjectArray result = env->NewObjectArray(imageNum, gFaceClass.arrayClazz, nullptr);
+    for (jsize i = 0; i < imageNum; i++) {
+        jobjectArray imageFaces = FacesToJavaArray(env, faces[i]);
+        env->SetObjectArrayElement(result, i, imageFaces);
+        env->DeleteLocalRef(imageFaces);
+    }
+    pipeline->Metrics().timers[TIMER_JNI_OUTPUT].RecordSince(t);
+    return result;
 }
 
 
-#ifdef __cplusplus
+#define FACE_ARRAY "[Lcom/yeyupiaoling/ai/Face;"
+#define BITMAP "Landroid/graphics/Bitmap;"
+#define BYTE_BUFFER "Ljava/nio/ByteBuffer;"
+#define FLOAT_BUFFER "Ljava/nio/FloatBuffer;"
+#define STRING "Ljava/lang/String;"
+#define ASSET_MANAGER "Landroid/content/res/AssetManager;"
+
+// PaddleNative的native方法，在JNI_OnLoad中一次性注册，不需要虚拟机按名字查找符号
+static const JNINativeMethod gPaddleNativeMethods[] = {
+        {"nativeInit",
+         "(" ASSET_MANAGER STRING "I" STRING "I[F[FF" STRING "I" STRING "II" STRING "I" STRING "II[F[FZI)J",
+         reinterpret_cast<void *>(NativeInit)},
+        {"nativeRelease", "(J)Z", reinterpret_cast<void *>(NativeRelease)},
+        {"nativeWarmUp", "(J)V", reinterpret_cast<void *>(NativeWarmUp)},
+        {"nativeGetStats", "(J[J)Z", reinterpret_cast<void *>(NativeGetStats)},
+        {"nativeResetStats", "(J)V", reinterpret_cast<void *>(NativeResetStats)},
+        {"nativeGetMatAllocations", "()J", reinterpret_cast<void *>(NativeGetMatAllocations)},
+        {"nativeSetExecutionMode", "(JI)V", reinterpret_cast<void *>(NativeSetExecutionMode)},
+        {"nativeSetDetectInterval", "(JI)V", reinterpret_cast<void *>(NativeSetDetectInterval)},
+        {"nativeSetMinFaceSize", "(JI)V", reinterpret_cast<void *>(NativeSetMinFaceSize)},
+        {"nativeSetStages", "(JI)V", reinterpret_cast<void *>(NativeSetStages)},
+        {"nativeSetMotionGate", "(JFI)V", reinterpret_cast<void *>(NativeSetMotionGate)},
+        {"nativeSetDetectionRegions", "(J[F)V", reinterpret_cast<void *>(NativeSetDetectionRegions)},
+        {"nativeSetDetectionMask", "(J[BII)V", reinterpret_cast<void *>(NativeSetDetectionMask)},
+        {"nativeGetResultDelay", "(J)I", reinterpret_cast<void *>(NativeGetResultDelay)},
+        {"nativeProcess", "(J" BITMAP ")" FACE_ARRAY, reinterpret_cast<void *>(NativeProcess)},
+        {"nativeProcessBuffer", "(J" BYTE_BUFFER "IIII)" FACE_ARRAY,
+         reinterpret_cast<void *>(NativeProcessBuffer)},
+        {"nativeProcessYUV",
+         "(J" BYTE_BUFFER BYTE_BUFFER BYTE_BUFFER "IIIIII" BITMAP ")" FACE_ARRAY,
+         reinterpret_cast<void *>(NativeProcessYUV)},
+        {"nativeProcessInto", "(J" BITMAP FLOAT_BUFFER ")I",
+         reinterpret_cast<void *>(NativeProcessInto)},
+        {"nativeProcessBufferInto", "(J" BYTE_BUFFER "IIII" FLOAT_BUFFER ")I",
+         reinterpret_cast<void *>(NativeProcessBufferInto)},
+        {"nativeProcessBatch", "(J[" BITMAP ")[" FACE_ARRAY,
+         reinterpret_cast<void *>(NativeProcessBatch)},
+        {"nativeProcessYUVInto",
+         "(J" BYTE_BUFFER BYTE_BUFFER BYTE_BUFFER "IIIIII" BITMAP FLOAT_BUFFER ")I",
+         reinterpret_cast<void *>(NativeProcessYUVInto)},
+};
+
+
+extern "C" JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env = nullptr;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        LOGE("Invoke GetEnv() failed!");
+        return JNI_ERR;
+    }
+
+    jclass faceClass = env->FindClass("com/yeyupiaoling/ai/Face");
+    if (faceClass == nullptr) {
+        LOGE("Can't find class com/yeyupiaoling/ai/Face");
+        return JNI_ERR;
+    }
+    gFaceClass.clazz = reinterpret_cast<jclass>(env->NewGlobalRef(faceClass));
+    env->DeleteLocalRef(faceClass);
+    jclass faceArrayClass = env->FindClass("[Lcom/yeyupiaoling/ai/Face;");
+    if (faceArrayClass == nullptr) {
+        LOGE("Can't find class [Lcom/yeyupiaoling/ai/Face;");
+        return JNI_ERR;
+    }
+    gFaceClass.arrayClazz = reinterpret_cast<jclass>(env->NewGlobalRef(faceArrayClass));
+    env->DeleteLocalRef(faceArrayClass);
+    gFaceClass.init = env->GetMethodID(gFaceClass.clazz, "<init>", "()V");
+    gFaceClass.roi = env->GetFieldID(gFaceClass.clazz, "roi", "[F");
+    gFaceClass.confidence = env->GetFieldID(gFaceClass.clazz, "confidence", "F");
+    gFaceClass.classid = env->GetFieldID(gFaceClass.clazz, "classid", "I");
+    gFaceClass.keypoints = env->GetFieldID(gFaceClass.clazz, "keypoints", "[F");
+    gFaceClass.id = env->GetFieldID(gFaceClass.clazz, "id", "I");
+    if (gFaceClass.init == nullptr || gFaceClass.roi == nullptr ||
+        gFaceClass.confidence == nullptr || gFaceClass.classid == nullptr ||
+        gFaceClass.keypoints == nullptr || gFaceClass.id == nullptr) {
+        LOGE("Can't resolve the members of com/yeyupiaoling/ai/Face");
+        return JNI_ERR;
+    }
+
+    jclass paddleNativeClass = env->FindClass("com/yeyupiaoling/ai/PaddleNative");
+    if (paddleNativeClass == nullptr) {
+        LOGE("Can't find class com/yeyupiaoling/ai/PaddleNative");
+        return JNI_ERR;
+    }
+    jint result = env->RegisterNatives(
+            paddleNativeClass, gPaddleNativeMethods,
+            sizeof(gPaddleNativeMethods) / sizeof(gPaddleNativeMethods[0]));
+    env->DeleteLocalRef(paddleNativeClass);
+    if (result != JNI_OK) {
+        LOGE("Invoke RegisterNatives() failed!");
+        return JNI_ERR;
+    }
+    return JNI_VERSION_1_6;
+}
+
+
+extern "C" JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void *reserved) {
+    JNIEnv *env = nullptr;
+    if (vm->GetEnv(reinterpret_cast<void **>(&env), JNI_VERSION_1_6) != JNI_OK) {
+        return;
+    }
+    env->DeleteGlobalRef(gFaceClass.clazz);
+    env->DeleteGlobalRef(gFaceClass.arrayClazz);
+    gFaceClass.clazz = nullptr;
+    gFaceClass.arrayClazz = nullptr;
 }
-#endif
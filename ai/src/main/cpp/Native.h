@@ -4,6 +4,7 @@
 #include <string>
 #include <vector>
 #include "Utils.h"
+#include <android/asset_manager_jni.h>
 #include <android/bitmap.h>
 #include <opencv2/opencv.hpp>
 #include <opencv2/core/mat.hpp>
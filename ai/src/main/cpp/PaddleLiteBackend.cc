@@ -0,0 +1,82 @@
+#include "PaddleLiteBackend.h"
+#include <algorithm>
+#include <utility>
+
+namespace {
+
+paddle::lite_api::PowerMode ParsePowerMode(const std::string &mode) {
+    if (mode == "LITE_POWER_HIGH") {
+        return paddle::lite_api::LITE_POWER_HIGH;
+    } else if (mode == "LITE_POWER_LOW") {
+        return paddle::lite_api::LITE_POWER_LOW;
+    } else if (mode == "LITE_POWER_FULL") {
+        return paddle::lite_api::LITE_POWER_FULL;
+    } else if (mode == "LITE_POWER_RAND_HIGH") {
+        return paddle::lite_api::LITE_POWER_RAND_HIGH;
+    } else if (mode == "LITE_POWER_RAND_LOW") {
+        return paddle::lite_api::LITE_POWER_RAND_LOW;
+    }
+    return paddle::lite_api::LITE_POWER_NO_BIND;
+}
+
+} // namespace
+
+PaddleLiteBackend::PaddleLiteBackend(const std::string &modelPath,
+                                     const ModelBuffer &modelBuffer, int cpuThreadNum,
+                                     const std::string &cpuPowerMode) {
+    paddle::lite_api::MobileConfig config;
+    if (modelBuffer.data != nullptr) {
+        // Paddle Lite 2.6.1 only has set_model_from_buffer(const std::string &),
+        // and MobileConfig keeps its own copy of the string. The model bytes are
+        // copied out of the mapped asset once here, moved in so that a runtime
+        // with an rvalue overload takes them over, and the local copy is freed
+        // right away, so the heap holds two copies only for the duration of
+        // the call.
+        std::string model(static_cast<const char *>(modelBuffer.data), modelBuffer.size);
+        config.set_model_from_buffer(std::move(model));
+    } else {
+        config.set_model_from_file(modelPath);
+    }
+    config.set_threads(cpuThreadNum);
+    config.set_power_mode(ParsePowerMode(cpuPowerMode));
+    predictor_ = paddle::lite_api::CreatePaddlePredictor<paddle::lite_api::MobileConfig>(config);
+}
+
+void PaddleLiteBackend::SetInputShape(const int64_t *shape, int dims) {
+    if (inputShape_.size() == static_cast<size_t>(dims) &&
+        std::equal(shape, shape + dims, inputShape_.begin())) {
+        return;
+    }
+    inputShape_.assign(shape, shape + dims);
+    predictor_->GetInput(0)->Resize(inputShape_);
+}
+
+float *PaddleLiteBackend::MutableInputData() {
+    return predictor_->GetInput(0)->mutable_data<float>();
+}
+
+bool PaddleLiteBackend::Run() {
+    predictor_->Run();
+    return true;
+}
+
+const float *PaddleLiteBackend::OutputData(int index) const {
+    return predictor_->GetOutput(index)->data<float>();
+}
+
+// Paddle Lite hands shapes and LoDs out by value, so these two still
+// allocate inside the runtime. They are copied into the caller's storage,
+// which keeps its capacity.
+void PaddleLiteBackend::OutputShape(int index, std::vector<int64_t> *shape) const {
+    auto outputShape = predictor_->GetOutput(index)->shape();
+    shape->assign(outputShape.begin(), outputShape.end());
+}
+
+void PaddleLiteBackend::OutputLoD(int index, std::vector<uint64_t> *lod) const {
+    auto outputLoD = predictor_->GetOutput(index)->lod();
+    if (outputLoD.empty()) {
+        lod->clear();
+    } else {
+        lod->assign(outputLoD[0].begin(), outputLoD[0].end());
+    }
+}
@@ -0,0 +1,27 @@
+#pragma once
+
+#include "InferenceBackend.h"
+#include "paddle_api.h"
+
+class PaddleLiteBackend : public InferenceBackend {
+public:
+    PaddleLiteBackend(const std::string &modelPath, const ModelBuffer &modelBuffer,
+                      int cpuThreadNum, const std::string &cpuPowerMode);
+
+    void SetInputShape(const int64_t *shape, int dims) override;
+
+    float *MutableInputData() override;
+
+    bool Run() override;
+
+    const float *OutputData(int index) const override;
+
+    void OutputShape(int index, std::vector<int64_t> *shape) const override;
+
+    void OutputLoD(int index, std::vector<uint64_t> *lod) const override;
+
+private:
+    std::shared_ptr<paddle::lite_api::PaddlePredictor> predictor_;
+    // Shape of the last Resize, the input is only resized when it changes
+    std::vector<int64_t> inputShape_;
+};
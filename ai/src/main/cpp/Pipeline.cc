@@ -1,254 +1,461 @@
 #include "Pipeline.h"
+#include <algorithm>
+#include <atomic>
+#include <cmath>
+#include <mutex>
 
-FaceDetector::FaceDetector(const std::string &pyramidboxModelPath, const int cpuThreadNum,
-                           const std::string &cpuPowerMode, float inputScale,
+namespace {
+
+std::atomic<int64_t> matAllocations(0);
+
+// Smallest face, in pixels of the detector input, that PyramidBox still finds
+// reliably
+const int kDetectorMinFacePixels = 16;
+// Detector input sizes derived from the minimum face size are rounded up to
+// this, and never smaller than kMinDetectorInputSize
+const int kDetectorInputAlign = 32;
+const int kMinDetectorInputSize = 64;
+
+// Default cv::Mat allocator that counts the buffers it hands out
+class CountingMatAllocator : public cv::MatAllocator {
+public:
+    explicit CountingMatAllocator(const cv::MatAllocator *delegate) : delegate_(delegate) {}
+
+    cv::UMatData *allocate(int dims, const int *sizes, int type, void *data, size_t *step,
+                           cv::AccessFlag flags, cv::UMatUsageFlags usageFlags) const override {
+        if (data == nullptr) {
+            matAllocations++;
+        }
+        return delegate_->allocate(dims, sizes, type, data, step, flags, usageFlags);
+    }
+
+    bool allocate(cv::UMatData *data, cv::AccessFlag accessFlags,
+                  cv::UMatUsageFlags usageFlags) const override {
+        return delegate_->allocate(data, accessFlags, usageFlags);
+    }
+
+    void deallocate(cv::UMatData *data) const override {
+        delegate_->deallocate(data);
+    }
+
+private:
+    const cv::MatAllocator *delegate_;
+};
+
+void InstallCountingMatAllocator() {
+    static std::once_flag once;
+    std::call_once(once, [] {
+        static CountingMatAllocator allocator(cv::Mat::getStdAllocator());
+        cv::Mat::setDefaultAllocator(&allocator);
+    });
+}
+
+// Reuses the faces already in the vector so their keypoint vectors keep
+// their capacity, only grows it when there are more faces than ever before
+Face &NextFace(std::vector<Face> *faces, size_t index) {
+    if (index == faces->size()) {
+        faces->emplace_back();
+    }
+    Face &face = (*faces)[index];
+    face.keypoints.clear();
+    face.confidence = 0;
+    face.classid = 0;
+    face.id = -1;
+    return face;
+}
+
+// Adjusts the face region to the aspect ratio of the input image of the
+// target model, which improves its accuracy, and clips it to the image
+cv::Rect AdjustFaceROI(const cv::Rect &roi, int inputWidth, int inputHeight,
+                       const cv::Mat &image) {
+    int cx = roi.x + roi.width / 2.0f;
+    int cy = roi.y + roi.height / 2.0f;
+    int w = roi.width;
+    int h = roi.height;
+    float roiAspectRatio = static_cast<float>(roi.width) / roi.height;
+    float inputAspectRatio = static_cast<float>(inputWidth) / inputHeight;
+    if (fabs(roiAspectRatio - inputAspectRatio) > 1e-5) {
+        float widthRatio = static_cast<float>(roi.width) / inputWidth;
+        float heightRatio = static_cast<float>(roi.height) / inputHeight;
+        if (widthRatio > heightRatio) {
+            h = w / inputAspectRatio;
+        } else {
+            w = h * inputAspectRatio;
+        }
+    }
+    return cv::Rect(cx - w / 2, cy - h / 2, w, h) &
+           cv::Rect(0, 0, image.cols - 1, image.rows - 1);
+}
+
+}  // namespace
+
+int64_t MatAllocations() {
+    return matAllocations.load();
+}
+
+FaceDetector::FaceDetector(std::unique_ptr<InferenceBackend> backend, int inputSize,
                            const std::vector<float> &inputMean,
                            const std::vector<float> &inputStd,
-                           float scoreThreshold)
-        : inputScale_(inputScale), inputMean_(inputMean), inputStd_(inputStd),
-          scoreThreshold_(scoreThreshold) {
-    paddle::lite_api::MobileConfig config;
-    config.set_model_from_file(pyramidboxModelPath);
-    config.set_threads(cpuThreadNum);
-    config.set_power_mode(ParsePowerMode(cpuPowerMode));
-    predictor_ = paddle::lite_api::CreatePaddlePredictor<paddle::lite_api::MobileConfig>(config);
+                           float scoreThreshold, StageScratch *scratch,
+                           LatencyHistogram *timers)
+        : maxInputSize_(std::max(inputSize, kMinDetectorInputSize)), minFaceSize_(0),
+          inputSize_(0), contentWidth_(0), contentHeight_(0), inputMean_(inputMean),
+          inputStd_(inputStd), scoreThreshold_(scoreThreshold), batchSupported_(true),
+          scratch_(scratch), timers_(timers), backend_(std::move(backend)) {}
+
+void FaceDetector::SetMinFaceSize(int minFaceSize) {
+    minFaceSize_ = minFaceSize;
 }
 
-void FaceDetector::Preprocess(const cv::Mat &rgbaImage) {
-    auto t = GetCurrentTime();
-    cv::Mat resizedRGBAImage;
-    cv::resize(rgbaImage, resizedRGBAImage, cv::Size(), inputScale_, inputScale_);
-    cv::Mat resizedBGRImage;
-    cv::cvtColor(resizedRGBAImage, resizedBGRImage, cv::COLOR_RGBA2BGR);
-    resizedBGRImage.convertTo(resizedBGRImage, CV_32FC3, 1.0 / 255.0f);
-    std::vector<int64_t> inputShape = {1, 3, resizedBGRImage.rows,
-                                       resizedBGRImage.cols};
+int FaceDetector::InputSizeFor(int imageWidth, int imageHeight, int frameLongSide) const {
+    int longSide = std::max(imageWidth, imageHeight);
+    int minFaceSize = minFaceSize_;
+    int inputSize;
+    if (minFaceSize > 0) {
+        // Scale the image so that the smallest wanted face still covers
+        // kDetectorMinFacePixels
+        inputSize = (longSide * kDetectorMinFacePixels + minFaceSize - 1) / minFaceSize;
+    } else if (frameLongSide > longSide) {
+        // A region gets its share of the input size of the whole frame
+        inputSize = (maxInputSize_ * longSide + frameLongSide - 1) / frameLongSide;
+    } else {
+        return maxInputSize_;
+    }
+    // Rounded up to a multiple of kDetectorInputAlign so that nearby image
+    // sizes share the same input shape
+    inputSize = (inputSize + kDetectorInputAlign - 1) / kDetectorInputAlign * kDetectorInputAlign;
+    return std::min(std::max(inputSize, kMinDetectorInputSize), maxInputSize_);
+}
+
+void FaceDetector::Preprocess(const cv::Mat *const *images, int imageNum,
+                              int frameLongSide) {
+    // All the images have the same size, the aspect ratio is kept and the
+    // image is padded to a square
+    int imageWidth = images[0]->cols;
+    int imageHeight = images[0]->rows;
+    inputSize_ = InputSizeFor(imageWidth, imageHeight, frameLongSide);
+    double scale = static_cast<double>(inputSize_) / std::max(imageWidth, imageHeight);
+    contentWidth_ = std::min(std::max(cv::saturate_cast<int>(imageWidth * scale), 1), inputSize_);
+    contentHeight_ = std::min(std::max(cv::saturate_cast<int>(imageHeight * scale), 1), inputSize_);
+    int64_t *inputShape = inputShape_;
+    inputShape[0] = imageNum;
+    inputShape[1] = 3;
+    inputShape[2] = inputSize_;
+    inputShape[3] = inputSize_;
     // Prepare input tensor
-    auto inputTensor = predictor_->GetInput(0);
-    inputTensor->Resize(inputShape);
-    auto inputData = inputTensor->mutable_data<float>();
-    NHWC3ToNC3HW(reinterpret_cast<const float *>(resizedBGRImage.data), inputData,
-                 inputMean_.data(), inputStd_.data(), inputShape[3],
-                 inputShape[2]);
+    backend_->SetInputShape(inputShape, 4);
+    auto inputData = backend_->MutableInputData();
+    for (int i = 0; i < imageNum; i++) {
+        const cv::Mat &rgbaImage = *images[i];
+        // Resize, RGBA->BGR, normalization, NHWC->NCHW and padding in a single
+        // pass
+        ResizeRGBAToNC3HWLetterbox(rgbaImage.data, rgbaImage.cols, rgbaImage.rows,
+                                   static_cast<int>(rgbaImage.step), inputData,
+                                   inputSize_, inputSize_, contentWidth_, contentHeight_,
+                                   inputMean_.data(), inputStd_.data());
+        inputData += inputShape[1] * inputShape[2] * inputShape[3];
+    }
 }
 
-void FaceDetector::Postprocess(const cv::Mat &rgbaImage,
-                               std::vector<Face> *faces) {
+void FaceDetector::Postprocess(const cv::Mat &rgbaImage, const float *outputData,
+                               int rowNum, std::vector<Face> *faces) {
     int imageWidth = rgbaImage.cols;
     int imageHeight = rgbaImage.rows;
-    // Get output tensor
-    auto outputTensor = predictor_->GetOutput(2);
-    auto outputData = outputTensor->data<float>();
-    auto outputShape = outputTensor->shape();
-    int outputSize = ShapeProduction(outputShape);
-    faces->clear();
-    for (int i = 0; i < outputSize; i += 6) {
+    // The boxes are relative to the letterboxed input, map them back through
+    // the resized region in its top-left corner
+    float scaleX = static_cast<float>(inputSize_) * imageWidth / contentWidth_;
+    float scaleY = static_cast<float>(inputSize_) * imageHeight / contentHeight_;
+    size_t faceNum = 0;
+    for (int i = 0; i < rowNum * 6; i += 6) {
         // Class id
         float class_id = outputData[i];
         // Confidence score
         float score = outputData[i + 1];
-        int left = outputData[i + 2] * imageWidth;
-        int top = outputData[i + 3] * imageHeight;
-        int right = outputData[i + 4] * imageWidth;
-        int bottom = outputData[i + 5] * imageHeight;
+        int left = outputData[i + 2] * scaleX;
+        int top = outputData[i + 3] * scaleY;
+        int right = outputData[i + 4] * scaleX;
+        int bottom = outputData[i + 5] * scaleY;
         int width = right - left;
         int height = bottom - top;
         if (score > scoreThreshold_) {
-            Face face;
+            Face &face = NextFace(faces, faceNum++);
             face.roi = cv::Rect(left, top, width, height) &
                        cv::Rect(0, 0, imageWidth - 1, imageHeight - 1);
-            faces->push_back(face);
         }
     }
+    faces->resize(faceNum);
 }
 
-void FaceDetector::Predict(const cv::Mat &rgbaImage, std::vector<Face> *faces) {
-    Preprocess(rgbaImage);
-    predictor_->Run();
-    Postprocess(rgbaImage, faces);
+void FaceDetector::Predict(const cv::Mat &rgbaImage, std::vector<Face> *faces,
+                           int frameLongSide, int64_t *elapsed) {
+    const cv::Mat *image = &rgbaImage;
+    int64_t times[4];
+    times[0] = GetCurrentTime();
+    Preprocess(&image, 1, frameLongSide);
+    times[1] = GetCurrentTime();
+    backend_->Run();
+    times[2] = GetCurrentTime();
+    // Get output tensor
+    backend_->OutputShape(2, &scratch_->outputShape);
+    int rowNum = ShapeProduction(scratch_->outputShape) / 6;
+    Postprocess(rgbaImage, backend_->OutputData(2), rowNum, faces);
+    times[3] = GetCurrentTime();
+    for (int i = 0; i < 3; i++) {
+        if (elapsed != nullptr) {
+            elapsed[i] += times[i + 1] - times[i];
+        } else {
+            timers_[i].Record(times[i + 1] - times[i]);
+        }
+    }
 }
 
-FaceKeypointsDetector::FaceKeypointsDetector(const std::string &faceKeyPointsModelPath,
-                                             const int cpuThreadNum,
-                                             const std::string &cpuPowerMode,
-                                             int inputWidth, int inputHeight)
-        : inputWidth_(inputWidth), inputHeight_(inputHeight) {
-    paddle::lite_api::MobileConfig config;
-    config.set_model_from_file(faceKeyPointsModelPath);
-    config.set_threads(cpuThreadNum);
-    config.set_power_mode(ParsePowerMode(cpuPowerMode));
-    predictor_ =
-            paddle::lite_api::CreatePaddlePredictor<paddle::lite_api::MobileConfig>(
-                    config);
+void FaceDetector::PredictBatch(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                                int imageNum) {
+    if (imageNum == 1 || !batchSupported_) {
+        for (int i = 0; i < imageNum; i++) {
+            Predict(*images[i], faces[i]);
+        }
+        return;
+    }
+    auto start = GetCurrentTime();
+    Preprocess(images, imageNum, 0);
+    auto preprocessed = GetCurrentTime();
+    backend_->Run();
+    auto t = GetCurrentTime();
+    const std::vector<uint64_t> &lod = scratch_->lod;
+    backend_->OutputLoD(2, &scratch_->lod);
+    if (lod.size() != static_cast<size_t>(imageNum) + 1) {
+        // Without the LoD the detections can't be told apart, run the images
+        // one by one from now on. Only the runs that produce the result are
+        // timed, the wasted batch is left out of the metrics.
+        LOGW("Detector output has no per-image LoD, batching disabled");
+        batchSupported_ = false;
+        PredictBatch(images, faces, imageNum);
+        return;
+    }
+    timers_[0].Record(preprocessed - start);
+    timers_[1].Record(t - preprocessed);
+    auto outputData = backend_->OutputData(2);
+    for (int i = 0; i < imageNum; i++) {
+        Postprocess(*images[i], outputData + lod[i] * 6, static_cast<int>(lod[i + 1] - lod[i]),
+                    faces[i]);
+    }
+    timers_[2].RecordSince(t);
 }
 
+FaceKeypointsDetector::FaceKeypointsDetector(std::unique_ptr<InferenceBackend> backend,
+                                             int inputWidth, int inputHeight,
+                                             StageScratch *scratch, LatencyHistogram *timers)
+        : inputWidth_(inputWidth), inputHeight_(inputHeight), scratch_(scratch),
+          timers_(timers), backend_(std::move(backend)) {}
+
 void FaceKeypointsDetector::Preprocess(
-        const cv::Mat &rgbaImage, const std::vector<Face> &faces,
-        std::vector<cv::Rect> *adjustedFaceROIs) {
+        const cv::Mat *const *images, std::vector<Face> *const *faces, int imageNum,
+        int batchSize, std::vector<cv::Rect> *adjustedFaceROIs, FacePatches *patches) {
     // Prepare input tensor
-    auto inputTensor = predictor_->GetInput(0);
-    int batchSize = faces.size();
-    std::vector<int64_t> inputShape = {batchSize, 1, inputHeight_, inputWidth_};
-    inputTensor->Resize(inputShape);
-    auto inputData = inputTensor->mutable_data<float>();
-    for (int i = 0; i < batchSize; i++) {
-        // Adjust the face region to improve the accuracy according to the aspect
-        // ratio of input image of the target model
-        int cx = faces[i].roi.x + faces[i].roi.width / 2.0f;
-        int cy = faces[i].roi.y + faces[i].roi.height / 2.0f;
-        int w = faces[i].roi.width;
-        int h = faces[i].roi.height;
-        float roiAspectRatio =
-                static_cast<float>(faces[i].roi.width) / faces[i].roi.height;
-        float inputAspectRatio = static_cast<float>(inputShape[3]) / inputShape[2];
-        if (fabs(roiAspectRatio - inputAspectRatio) > 1e-5) {
-            float widthRatio = static_cast<float>(faces[i].roi.width) / inputShape[3];
-            float heightRatio =
-                    static_cast<float>(faces[i].roi.height) / inputShape[2];
-            if (widthRatio > heightRatio) {
-                h = w / inputAspectRatio;
+    int64_t *inputShape = inputShape_;
+    inputShape[0] = batchSize;
+    inputShape[1] = 1;
+    inputShape[2] = inputHeight_;
+    inputShape[3] = inputWidth_;
+    backend_->SetInputShape(inputShape, 4);
+    auto inputData = backend_->MutableInputData();
+    const cv::Size inputSize(inputWidth_, inputHeight_);
+    bool sharePatches = patches != nullptr && patches->size.area() > 0;
+    if (sharePatches && patches->images.size() < static_cast<size_t>(batchSize)) {
+        patches->images.resize(batchSize);
+        patches->rois.resize(batchSize);
+    }
+    int k = 0;
+    for (int n = 0; n < imageNum; n++) {
+        const cv::Mat &rgbaImage = *images[n];
+        for (const Face &face : *faces[n]) {
+            // Update the face region with adjusted roi
+            (*adjustedFaceROIs)[k] = AdjustFaceROI(face.roi, inputWidth_, inputHeight_, rgbaImage);
+            // Crop and obtain the face image
+            cv::Mat faceRGBAImage(rgbaImage, (*adjustedFaceROIs)[k]);
+            const cv::Mat *resizedImage = &scratch_->resized;
+            if (sharePatches) {
+                // The face is read from the frame once, at the patch size,
+                // and the mask stage starts from the same patch
+                cv::Mat &patch = patches->images[k];
+                cv::resize(faceRGBAImage, patch, patches->size);
+                patches->rois[k] = (*adjustedFaceROIs)[k];
+                if (patches->size == inputSize) {
+                    resizedImage = &patch;
+                } else {
+                    cv::resize(patch, scratch_->resized, inputSize);
+                }
             } else {
-                w = h * inputAspectRatio;
+                cv::resize(faceRGBAImage, scratch_->resized, inputSize);
             }
+            cv::cvtColor(*resizedImage, scratch_->converted, cv::COLOR_RGBA2GRAY);
+            scratch_->converted.convertTo(scratch_->normalized, CV_32FC1);
+            const cv::Mat &resizedGRAYImage = scratch_->normalized;
+            cv::Scalar mean, std;
+            cv::meanStdDev(resizedGRAYImage, mean, std);
+            float inputMean = static_cast<float>(mean[0]);
+            float inputStd = static_cast<float>(std[0]) + 0.000001f;
+            NHWC1ToNC1HW(reinterpret_cast<const float *>(resizedGRAYImage.data),
+                         inputData, &inputMean, &inputStd, inputShape[3],
+                         inputShape[2]);
+            inputData += inputShape[1] * inputShape[2] * inputShape[3];
+            k++;
         }
-        // Update the face region with adjusted roi
-        (*adjustedFaceROIs)[i] =
-                cv::Rect(cx - w / 2, cy - h / 2, w, h) &
-                cv::Rect(0, 0, rgbaImage.cols - 1, rgbaImage.rows - 1);
-        // Crop and obtain the face image
-        cv::Mat resizedRGBAImage(rgbaImage, (*adjustedFaceROIs)[i]);
-        cv::resize(resizedRGBAImage, resizedRGBAImage, cv::Size(inputShape[3], inputShape[2]));
-        cv::Mat resizedGRAYImage;
-        cv::cvtColor(resizedRGBAImage, resizedGRAYImage, cv::COLOR_RGBA2GRAY);
-        resizedGRAYImage.convertTo(resizedGRAYImage, CV_32FC1);
-        cv::Mat mean, std;
-        cv::meanStdDev(resizedGRAYImage, mean, std);
-        float inputMean = static_cast<float>(mean.at<double>(0, 0));
-        float inputStd = static_cast<float>(std.at<double>(0, 0)) + 0.000001f;
-        NHWC1ToNC1HW(reinterpret_cast<const float *>(resizedGRAYImage.data),
-                     inputData, &inputMean, &inputStd, inputShape[3],
-                     inputShape[2]);
-        inputData += inputShape[1] * inputShape[2] * inputShape[3];
+    }
+    if (sharePatches) {
+        patches->count = batchSize;
     }
 }
 
 void FaceKeypointsDetector::Postprocess(
-        const std::vector<cv::Rect> &adjustedFaceROIs, std::vector<Face> *faces) {
-    auto outputTensor = predictor_->GetOutput(0);
-    auto outputData = outputTensor->data<float>();
-    auto outputShape = outputTensor->shape();
-    int outputSize = ShapeProduction(outputShape);
-    int batchSize = faces->size();
+        const std::vector<cv::Rect> &adjustedFaceROIs, std::vector<Face> *const *faces,
+        int imageNum) {
+    auto outputData = backend_->OutputData(0);
+    backend_->OutputShape(0, &scratch_->outputShape);
+    int outputSize = ShapeProduction(scratch_->outputShape);
+    int batchSize = adjustedFaceROIs.size();
     int keypointsNum = outputSize / batchSize;
-    assert(batchSize == adjustedFaceROIs.size());
     assert(keypointsNum == 136); // 68 x 2
-    for (int i = 0; i < batchSize; i++) {
-        // Face keypoints with coordinates (x, y)
-        for (int j = 0; j < keypointsNum; j += 2) {
-            (*faces)[i].keypoints.push_back(cv::Point2d(
-                    adjustedFaceROIs[i].x + outputData[j] * adjustedFaceROIs[i].width,
-                    adjustedFaceROIs[i].y +
-                    outputData[j + 1] * adjustedFaceROIs[i].height));
+    int k = 0;
+    for (int n = 0; n < imageNum; n++) {
+        for (Face &face : *faces[n]) {
+            const cv::Rect &roi = adjustedFaceROIs[k++];
+            // Face keypoints with coordinates (x, y)
+            for (int j = 0; j < keypointsNum; j += 2) {
+                face.keypoints.push_back(cv::Point2d(roi.x + outputData[j] * roi.width,
+                                                     roi.y + outputData[j + 1] * roi.height));
+            }
+            outputData += keypointsNum;
         }
-        outputData += keypointsNum;
     }
 }
 
-void FaceKeypointsDetector::Predict(const cv::Mat &rgbImage, std::vector<Face> *faces) {
-    std::vector<cv::Rect> adjustedFaceROIs(faces->size());
-    Preprocess(rgbImage, *faces, &adjustedFaceROIs);
-    predictor_->Run();
-    Postprocess(adjustedFaceROIs, faces);
+void FaceKeypointsDetector::Predict(const cv::Mat &rgbImage, std::vector<Face> *faces,
+                                    FacePatches *patches) {
+    const cv::Mat *image = &rgbImage;
+    PredictBatch(&image, &faces, 1, patches);
 }
 
+void FaceKeypointsDetector::PredictBatch(const cv::Mat *const *images,
+                                         std::vector<Face> *const *faces, int imageNum,
+                                         FacePatches *patches) {
+    int batchSize = 0;
+    for (int n = 0; n < imageNum; n++) {
+        batchSize += faces[n]->size();
+    }
+    if (batchSize == 0) {
+        return;
+    }
+    std::vector<cv::Rect> &adjustedFaceROIs = scratch_->rois;
+    adjustedFaceROIs.resize(batchSize);
+    auto t = GetCurrentTime();
+    Preprocess(images, faces, imageNum, batchSize, &adjustedFaceROIs, patches);
+    t = timers_[0].RecordSince(t);
+    backend_->Run();
+    t = timers_[1].RecordSince(t);
+    Postprocess(adjustedFaceROIs, faces, imageNum);
+    timers_[2].RecordSince(t);
+}
 
-MaskClassifier::MaskClassifier(const std::string &maskClassifierModel,
-                               const int cpuThreadNum,
-                               const std::string &cpuPowerMode, int inputWidth,
+
+MaskClassifier::MaskClassifier(std::unique_ptr<InferenceBackend> backend, int inputWidth,
                                int inputHeight,
                                const std::vector<float> &inputMean,
-                               const std::vector<float> &inputStd)
+                               const std::vector<float> &inputStd, StageScratch *scratch,
+                               LatencyHistogram *timers)
         : inputWidth_(inputWidth), inputHeight_(inputHeight), inputMean_(inputMean),
-          inputStd_(inputStd) {
-    paddle::lite_api::MobileConfig config;
-    config.set_model_from_file(maskClassifierModel);
-    config.set_threads(cpuThreadNum);
-    config.set_power_mode(ParsePowerMode(cpuPowerMode));
-    predictor_ =
-            paddle::lite_api::CreatePaddlePredictor<paddle::lite_api::MobileConfig>(
-                    config);
-}
-
-void MaskClassifier::Preprocess(const cv::Mat &rgbaImage,
-                                const std::vector<Face> &faces) {
+          inputStd_(inputStd), scratch_(scratch), timers_(timers),
+          backend_(std::move(backend)) {}
+
+void MaskClassifier::Preprocess(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                                int imageNum, int batchSize, const FacePatches *patches) {
     // Prepare input tensor
-    auto inputTensor = predictor_->GetInput(0);
-    int batchSize = faces.size();
-    std::vector<int64_t> inputShape = {batchSize, 3, inputHeight_, inputWidth_};
-    inputTensor->Resize(inputShape);
-    auto inputData = inputTensor->mutable_data<float>();
-    for (int i = 0; i < batchSize; i++) {
-        // Adjust the face region to improve the accuracy according to the aspect
-        // ratio of input image of the target model
-        int cx = faces[i].roi.x + faces[i].roi.width / 2.0f;
-        int cy = faces[i].roi.y + faces[i].roi.height / 2.0f;
-        int w = faces[i].roi.width;
-        int h = faces[i].roi.height;
-        float roiAspectRatio =
-                static_cast<float>(faces[i].roi.width) / faces[i].roi.height;
-        float inputAspectRatio = static_cast<float>(inputShape[3]) / inputShape[2];
-        if (fabs(roiAspectRatio - inputAspectRatio) > 1e-5) {
-            float widthRatio = static_cast<float>(faces[i].roi.width) / inputShape[3];
-            float heightRatio =
-                    static_cast<float>(faces[i].roi.height) / inputShape[2];
-            if (widthRatio > heightRatio) {
-                h = w / inputAspectRatio;
+    int64_t *inputShape = inputShape_;
+    inputShape[0] = batchSize;
+    inputShape[1] = 3;
+    inputShape[2] = inputHeight_;
+    inputShape[3] = inputWidth_;
+    backend_->SetInputShape(inputShape, 4);
+    auto inputData = backend_->MutableInputData();
+    const cv::Size inputSize(inputWidth_, inputHeight_);
+    // Patches left by the keypoints stage for exactly these faces
+    bool usePatches = patches != nullptr && patches->count == static_cast<size_t>(batchSize);
+    int k = 0;
+    for (int n = 0; n < imageNum; n++) {
+        const cv::Mat &rgbaImage = *images[n];
+        for (const Face &face : *faces[n]) {
+            cv::Mat faceRGBAImage;
+            if (usePatches) {
+                faceRGBAImage = patches->images[k];
             } else {
-                w = h * inputAspectRatio;
+                faceRGBAImage = cv::Mat(
+                        rgbaImage, AdjustFaceROI(face.roi, inputWidth_, inputHeight_, rgbaImage));
+            }
+            const cv::Mat *resizedImage = &faceRGBAImage;
+            if (faceRGBAImage.size() != inputSize) {
+                cv::resize(faceRGBAImage, scratch_->resized, inputSize);
+                resizedImage = &scratch_->resized;
             }
+            cv::cvtColor(*resizedImage, scratch_->converted, cv::COLOR_RGBA2BGR);
+            scratch_->converted.convertTo(scratch_->normalized, CV_32FC3, 1.0 / 255.0f);
+            const cv::Mat &resizedBGRImage = scratch_->normalized;
+            NHWC2NCHW(reinterpret_cast<const float *>(resizedBGRImage.data), inputData,
+                      inputMean_.data(), inputStd_.data(), inputShape[3],
+                      inputShape[2]);
+            inputData += inputShape[1] * inputShape[2] * inputShape[3];
+            k++;
         }
-        cv::Mat resizedRGBAImage(
-                rgbaImage, cv::Rect(cx - w / 2, cy - h / 2, w, h) &
-                           cv::Rect(0, 0, rgbaImage.cols - 1, rgbaImage.rows - 1));
-        cv::resize(resizedRGBAImage, resizedRGBAImage, cv::Size(inputShape[3], inputShape[2]));
-        cv::Mat resizedBGRImage;
-        cv::cvtColor(resizedRGBAImage, resizedBGRImage, cv::COLOR_RGBA2BGR);
-        resizedBGRImage.convertTo(resizedBGRImage, CV_32FC3, 1.0 / 255.0f);
-        NHWC2NCHW(reinterpret_cast<const float *>(resizedBGRImage.data), inputData,
-                  inputMean_.data(), inputStd_.data(), inputShape[3],
-                  inputShape[2]);
-        inputData += inputShape[1] * inputShape[2] * inputShape[3];
     }
 }
 
-void MaskClassifier::Postprocess(std::vector<Face> *faces) {
-    auto outputTensor = predictor_->GetOutput(0);
-    auto outputData = outputTensor->data<float>();
-    auto outputShape = outputTensor->shape();
-    int outputSize = ShapeProduction(outputShape);
-    int batchSize = faces->size();
+void MaskClassifier::Postprocess(std::vector<Face> *const *faces, int imageNum,
+                                 int batchSize) {
+    auto outputData = backend_->OutputData(0);
+    backend_->OutputShape(0, &scratch_->outputShape);
+    int outputSize = ShapeProduction(scratch_->outputShape);
     int classNum = outputSize / batchSize;
-    for (int i = 0; i < batchSize; i++) {
-        (*faces)[i].classid = 0;
-        (*faces)[i].confidence = *(outputData++);
-        for (int j = 1; j < classNum; j++) {
-            auto confidence = *(outputData++);
-            if (confidence > (*faces)[i].confidence) {
-                (*faces)[i].classid = j;
-                (*faces)[i].confidence = confidence;
+    for (int n = 0; n < imageNum; n++) {
+        for (Face &face : *faces[n]) {
+            face.classid = 0;
+            face.confidence = *(outputData++);
+            for (int j = 1; j < classNum; j++) {
+                auto confidence = *(outputData++);
+                if (confidence > face.confidence) {
+                    face.classid = j;
+                    face.confidence = confidence;
+                }
             }
         }
     }
 }
 
-void MaskClassifier::Predict(const cv::Mat &rgbaImage, std::vector<Face> *faces) {
-    Preprocess(rgbaImage, *faces);
-    predictor_->Run();
-    Postprocess(faces);
+void MaskClassifier::Predict(const cv::Mat &rgbaImage, std::vector<Face> *faces,
+                             const FacePatches *patches) {
+    const cv::Mat *image = &rgbaImage;
+    PredictBatch(&image, &faces, 1, patches);
+}
+
+void MaskClassifier::PredictBatch(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                                  int imageNum, const FacePatches *patches) {
+    int batchSize = 0;
+    for (int n = 0; n < imageNum; n++) {
+        batchSize += faces[n]->size();
+    }
+    if (batchSize == 0) {
+        return;
+    }
+    auto t = GetCurrentTime();
+    Preprocess(images, faces, imageNum, batchSize, patches);
+    t = timers_[0].RecordSince(t);
+    backend_->Run();
+    t = timers_[1].RecordSince(t);
+    Postprocess(faces, imageNum, batchSize);
+    timers_[2].RecordSince(t);
 }
 
 Pipeline::Pipeline(const std::string &pyramidboxModelPath, const int fdtCPUThreadNum,
-                   const std::string &fdtCPUPowerMode, float fdtInputScale,
+                   const std::string &fdtCPUPowerMode, int fdtInputSize,
                    const std::vector<float> &fdtInputMean,
                    const std::vector<float> &fdtInputStd,
                    float fdtScoreThreshold, const std::string &faceKeyPointsModelPath,
@@ -257,29 +464,487 @@ Pipeline::Pipeline(const std::string &pyramidboxModelPath, const int fdtCPUThrea
                    const std::string &maskClassifierModel, const int mclCPUThreadNum,
                    const std::string &mclCPUPowerMode, int mclInputWidth,
                    int mclInputHeight, const std::vector<float> &mclInputMean,
-                   const std::vector<float> &mclInputStd) {
+                   const std::vector<float> &mclInputStd,
+                   InferenceBackendType backendType, const ModelBuffer *modelBuffers,
+                   bool lazyStages, int stages)
+        : stages_(stages | STAGE_DETECT), timings_(), executionMode_(LATENCY_FIRST),
+          inFlight_(0) {
+    InstallCountingMatAllocator();
+    // Detector, keypoints and mask models, loaded from the paths when null
+    ModelBuffer buffers[3] = {};
+    if (modelBuffers != nullptr) {
+        std::copy(modelBuffers, modelBuffers + 3, buffers);
+    }
+    BackendConfig keypointsConfig = {backendType, faceKeyPointsModelPath, fkpCPUThreadNum,
+                                     fkpCPUPowerMode, buffers[1]};
+    loadKeypoints_ = [this, keypointsConfig, fkpInputWidth, fkpInputHeight]() {
+        faceKeypointsDetector_.reset(new FaceKeypointsDetector(
+                CreateInferenceBackend(keypointsConfig), fkpInputWidth, fkpInputHeight,
+                &arena_.keypoints, &metrics_.timers[TIMER_KEYPOINTS_PREPROCESS]));
+    };
+    BackendConfig maskConfig = {backendType, maskClassifierModel, mclCPUThreadNum,
+                                mclCPUPowerMode, buffers[2]};
+    loadMask_ = [this, maskConfig, mclInputWidth, mclInputHeight, mclInputMean,
+                 mclInputStd]() {
+        maskClassifier_.reset(new MaskClassifier(
+                CreateInferenceBackend(maskConfig), mclInputWidth, mclInputHeight,
+                mclInputMean, mclInputStd, &arena_.mask,
+                &metrics_.timers[TIMER_MASK_PREPROCESS]));
+    };
+    // With inputs of the same aspect ratio both stages crop the same region of
+    // a face, so it is cropped once at the size of the larger input
+    if (fkpInputWidth * mclInputHeight == mclInputWidth * fkpInputHeight) {
+        patchSize_ = fkpInputWidth * fkpInputHeight > mclInputWidth * mclInputHeight
+                     ? cv::Size(fkpInputWidth, fkpInputHeight)
+                     : cv::Size(mclInputWidth, mclInputHeight);
+    }
+    arena_.patches.size = patchSize_;
+    // The models are independent, so the keypoints and mask models load on
+    // their own threads while the detector loads on this one
+    auto t = GetCurrentTime();
+    std::vector<std::thread> loaders;
+    if (!lazyStages && (stages & STAGE_KEYPOINTS)) {
+        loaders.emplace_back(&Pipeline::LoadKeypointsStage, this);
+    }
+    if (!lazyStages && (stages & STAGE_MASK)) {
+        loaders.emplace_back(&Pipeline::LoadMaskStage, this);
+    }
     faceDetector_.reset(new FaceDetector(
-            pyramidboxModelPath, fdtCPUThreadNum, fdtCPUPowerMode, fdtInputScale,
-            fdtInputMean, fdtInputStd, fdtScoreThreshold));
-    faceKeypointsDetector_.reset(
-            new FaceKeypointsDetector(faceKeyPointsModelPath, fkpCPUThreadNum, fkpCPUPowerMode,
-                                      fkpInputWidth, fkpInputHeight));
-    maskClassifier_.reset(new MaskClassifier(
-            maskClassifierModel, mclCPUThreadNum, mclCPUPowerMode, mclInputWidth,
-            mclInputHeight, mclInputMean, mclInputStd));
+            CreateInferenceBackend({backendType, pyramidboxModelPath, fdtCPUThreadNum,
+                                    fdtCPUPowerMode, buffers[0]}),
+            fdtInputSize, fdtInputMean, fdtInputStd, fdtScoreThreshold, &arena_.detector,
+            &metrics_.timers[TIMER_DETECT_PREPROCESS]));
+    for (auto &loader : loaders) {
+        loader.join();
+    }
+    LOGD("Loaded %zu models in %.1f ms", loaders.size() + 1, GetElapsedTime(t));
+}
+
+Pipeline::~Pipeline() {
+    StopWorkers();
 }
 
 bool Pipeline::Process(cv::Mat &rgbaImage, std::vector<Face> &faces) {
-    // Stage1: Face detection
-    faceDetector_->Predict(rgbaImage, &faces);
-    if (!faces.empty()) {
+    auto t = GetCurrentTime();
+    metrics_.frames.fetch_add(1, std::memory_order_relaxed);
+    int stages = stages_;
+    bool hasFaces;
+    if (executionMode_ == THROUGHPUT_FIRST) {
+        hasFaces = ProcessPipelined(rgbaImage, faces, stages);
+    } else if (!motionGate_.ShouldProcess(rgbaImage)) {
+        // Nothing moved, the last result still holds
+        faces = lastFaces_;
+        hasFaces = !faces.empty();
+        metrics_.skippedFrames.fetch_add(1, std::memory_order_relaxed);
+    } else {
+        hasFaces = ProcessSerial(rgbaImage, faces, stages);
+        if (motionGate_.Enabled()) {
+            // Copy-assigning reuses the keypoint vectors of lastFaces_
+            lastFaces_ = faces;
+        }
+    }
+    if (hasFaces) {
+        metrics_.faces.fetch_add(faces.size(), std::memory_order_relaxed);
+    }
+    metrics_.timers[TIMER_FRAME].RecordSince(t);
+    return hasFaces;
+}
+
+bool Pipeline::ProcessSerial(cv::Mat &rgbaImage, std::vector<Face> &faces, int stages) {
+    timings_ = StageTimings();
+    // Stage1: Face detection, skipped while the faces can be tracked
+    auto t = GetCurrentTime();
+    bool detected = faceTracker_.NeedDetection();
+    if (detected) {
+        DetectFaces(rgbaImage, &faces);
+        faceTracker_.AssignIds(&faces);
+    } else {
+        faceTracker_.Propagate(&faces);
+    }
+    timings_.detection = GetElapsedTime(t);
+    FacePatches *patches = &arena_.patches;
+    patches->count = 0;
+    if (!faces.empty() && (stages & STAGE_KEYPOINTS)) {
         // Stage2: FaceKeypoint detection
-        faceKeypointsDetector_->Predict(rgbaImage, &faces);
+        t = GetCurrentTime();
+        KeypointsStage()->Predict(rgbaImage, &faces, (stages & STAGE_MASK) ? patches : nullptr);
+        timings_.keypoints = GetElapsedTime(t);
+    }
+    if (!faces.empty() && (stages & STAGE_MASK)) {
         // Stage3: Mask wearing classification
-        maskClassifier_->Predict(rgbaImage, &faces);
-        return true;
+        t = GetCurrentTime();
+        MaskStage()->Predict(rgbaImage, &faces, patches);
+        timings_.mask = GetElapsedTime(t);
+    } else {
+        ClearMaskResults(&faces);
+    }
+    faceTracker_.Update(rgbaImage.size(), detected, &faces);
+    return !faces.empty();
+}
+
+bool Pipeline::ProcessBatch(const std::vector<cv::Mat> &rgbaImages,
+                            std::vector<std::vector<Face>> *faces) {
+    if (executionMode_ != LATENCY_FIRST) {
+        LOGE("ProcessBatch is only supported in LATENCY_FIRST mode");
+        return false;
+    }
+    int imageNum = static_cast<int>(rgbaImages.size());
+    faces->resize(imageNum);
+    // Stage1: Face detection, images of the same size go into one batch
+    batchOrder_.resize(imageNum);
+    for (int i = 0; i < imageNum; i++) {
+        batchOrder_[i] = i;
+    }
+    std::sort(batchOrder_.begin(), batchOrder_.end(), [&rgbaImages](int a, int b) {
+        const cv::Mat &imageA = rgbaImages[a];
+        const cv::Mat &imageB = rgbaImages[b];
+        if (imageA.rows != imageB.rows) {
+            return imageA.rows < imageB.rows;
+        }
+        return imageA.cols != imageB.cols ? imageA.cols < imageB.cols : a < b;
+    });
+    for (int start = 0; start < imageNum;) {
+        const cv::Mat &first = rgbaImages[batchOrder_[start]];
+        batchImages_.clear();
+        batchFaces_.clear();
+        int end = start;
+        while (end < imageNum && end - start < kMaxDetectorBatch &&
+               rgbaImages[batchOrder_[end]].size() == first.size()) {
+            batchImages_.push_back(&rgbaImages[batchOrder_[end]]);
+            batchFaces_.push_back(&(*faces)[batchOrder_[end]]);
+            end++;
+        }
+        faceDetector_->PredictBatch(batchImages_.data(), batchFaces_.data(), end - start);
+        start = end;
+    }
+    // Stage2 and Stage3: the faces of all the images at once
+    batchImages_.clear();
+    batchFaces_.clear();
+    bool hasFaces = false;
+    for (int i = 0; i < imageNum; i++) {
+        batchImages_.push_back(&rgbaImages[i]);
+        batchFaces_.push_back(&(*faces)[i]);
+        hasFaces = hasFaces || !(*faces)[i].empty();
+    }
+    int stages = stages_;
+    FacePatches *patches = &arena_.patches;
+    patches->count = 0;
+    if (hasFaces && (stages & STAGE_KEYPOINTS)) {
+        KeypointsStage()->PredictBatch(batchImages_.data(), batchFaces_.data(), imageNum,
+                                       (stages & STAGE_MASK) ? patches : nullptr);
+    }
+    if (hasFaces && (stages & STAGE_MASK)) {
+        MaskStage()->PredictBatch(batchImages_.data(), batchFaces_.data(), imageNum, patches);
+    } else {
+        for (auto &imageFaces : *faces) {
+            ClearMaskResults(&imageFaces);
+        }
+    }
+    metrics_.frames.fetch_add(imageNum, std::memory_order_relaxed);
+    for (const auto &imageFaces : *faces) {
+        metrics_.faces.fetch_add(imageFaces.size(), std::memory_order_relaxed);
+    }
+    return true;
+}
+
+bool Pipeline::ProcessPipelined(cv::Mat &rgbaImage, std::vector<Face> &faces, int stages) {
+    // The caller's pixels are only valid during this call, so the workers get
+    // their own copy of the frame
+    std::shared_ptr<PipelineJob> job;
+    if (freeJobs_.empty()) {
+        job.reset(new PipelineJob());
+        job->patches.size = patchSize_;
+    } else {
+        job = freeJobs_.back();
+        freeJobs_.pop_back();
+    }
+    rgbaImage.copyTo(job->rgbaImage);
+    job->stages = stages;
+    if (!detectQueue_->Push(job)) {
+        metrics_.droppedFrames.fetch_add(1, std::memory_order_relaxed);
+        return false;
+    }
+    inFlight_++;
+    // Keep the pipeline full, once every stage has a frame wait for the oldest
+    // one to come out so results are always returned with a fixed delay
+    if (inFlight_ < kPipelineDepth) {
+        return false;
+    }
+    std::shared_ptr<PipelineJob> done;
+    if (!resultQueue_->Pop(&done)) {
+        return false;
+    }
+    inFlight_--;
+    faces.swap(done->faces);
+    freeJobs_.push_back(done);
+    return !faces.empty();
+}
+
+void Pipeline::SetExecutionMode(ExecutionMode mode) {
+    if (mode == executionMode_) {
+        return;
+    }
+    if (mode == THROUGHPUT_FIRST) {
+        StartWorkers();
+    } else {
+        StopWorkers();
+    }
+    motionGate_.Reset();
+    executionMode_ = mode;
+}
+
+void Pipeline::SetDetectInterval(int detectInterval) {
+    faceTracker_.SetDetectInterval(detectInterval);
+}
+
+void Pipeline::SetMinFaceSize(int minFaceSize) {
+    faceDetector_->SetMinFaceSize(minFaceSize);
+}
+
+void Pipeline::SetStages(int stages) {
+    stages_ = stages | STAGE_DETECT;
+}
+
+void Pipeline::ClearMaskResults(std::vector<Face> *faces) {
+    for (auto &face : *faces) {
+        face.confidence = 0;
+        face.classid = -1;
     }
-    return false;
 }
 
+void Pipeline::SetMotionGate(float sensitivity, int maxSkipFrames) {
+    motionGate_.Configure(sensitivity, maxSkipFrames);
+}
+
+void Pipeline::SetDetectionRegions(const std::vector<cv::Rect2f> &regions) {
+    std::lock_guard<std::mutex> lock(regionsMutex_);
+    detectionRegions_ = regions;
+}
+
+void Pipeline::SetDetectionMask(const cv::Mat &mask) {
+    cv::Mat maskCopy;
+    cv::Rect2f bounds;
+    if (!mask.empty()) {
+        maskCopy = mask.clone();
+        int left = maskCopy.cols, top = maskCopy.rows, right = -1, bottom = -1;
+        for (int y = 0; y < maskCopy.rows; y++) {
+            const uint8_t *row = maskCopy.ptr<uint8_t>(y);
+            for (int x = 0; x < maskCopy.cols; x++) {
+                if (row[x] != 0) {
+                    left = std::min(left, x);
+                    right = std::max(right, x);
+                    top = std::min(top, y);
+                    bottom = std::max(bottom, y);
+                }
+            }
+        }
+        // Nothing watched leaves the bounds empty and the detector idle
+        if (right >= 0) {
+            bounds = cv::Rect2f(static_cast<float>(left) / maskCopy.cols,
+                                static_cast<float>(top) / maskCopy.rows,
+                                static_cast<float>(right - left + 1) / maskCopy.cols,
+                                static_cast<float>(bottom - top + 1) / maskCopy.rows);
+        }
+    }
+    std::lock_guard<std::mutex> lock(regionsMutex_);
+    detectionMask_ = maskCopy;
+    detectionMaskBounds_ = bounds;
+}
+
+void Pipeline::DetectFaces(const cv::Mat &rgbaImage, std::vector<Face> *faces) {
+    cv::Mat mask;
+    {
+        std::lock_guard<std::mutex> lock(regionsMutex_);
+        // Assigning into the existing vector keeps its capacity
+        activeRegions_ = detectionRegions_;
+        mask = detectionMask_;
+        if (activeRegions_.empty() && !mask.empty()) {
+            activeRegions_.push_back(detectionMaskBounds_);
+        }
+    }
+    if (activeRegions_.empty()) {
+        faceDetector_->Predict(rgbaImage, faces);
+        return;
+    }
+    const cv::Rect frame(0, 0, rgbaImage.cols, rgbaImage.rows);
+    const int frameLongSide = std::max(rgbaImage.cols, rgbaImage.rows);
+    // The detector timers are per frame, the regions are summed up
+    int64_t elapsed[3] = {0, 0, 0};
+    bool detected = false;
+    size_t faceNum = 0;
+    for (const cv::Rect2f &region : activeRegions_) {
+        int left = static_cast<int>(std::floor(region.x * rgbaImage.cols));
+        int top = static_cast<int>(std::floor(region.y * rgbaImage.rows));
+        int right = static_cast<int>(std::ceil((region.x + region.width) * rgbaImage.cols));
+        int bottom = static_cast<int>(std::ceil((region.y + region.height) * rgbaImage.rows));
+        cv::Rect rect = cv::Rect(left, top, right - left, bottom - top) & frame;
+        if (rect.width <= 0 || rect.height <= 0) {
+            continue;
+        }
+        // The region is a view into the frame, the detector reads it in place
+        faceDetector_->Predict(rgbaImage(rect), &regionFaces_, frameLongSide, elapsed);
+        detected = true;
+        size_t regionStart = faceNum;
+        for (const Face &regionFace : regionFaces_) {
+            cv::Rect roi(regionFace.roi.x + rect.x, regionFace.roi.y + rect.y,
+                         regionFace.roi.width, regionFace.roi.height);
+            if (!mask.empty()) {
+                int maskX = (roi.x + roi.width / 2) * mask.cols / rgbaImage.cols;
+                int maskY = (roi.y + roi.height / 2) * mask.rows / rgbaImage.rows;
+                maskX = std::min(std::max(maskX, 0), mask.cols - 1);
+                maskY = std::min(std::max(maskY, 0), mask.rows - 1);
+                if (mask.ptr<uint8_t>(maskY)[maskX] == 0) {
+                    continue;
+                }
+            }
+            // Overlapping regions can find the same face twice
+            bool duplicate = false;
+            for (size_t i = 0; i < regionStart && !duplicate; i++) {
+                const cv::Rect &other = (*faces)[i].roi;
+                int overlap = (roi & other).area();
+                duplicate = overlap * 2 > roi.area() + other.area() - overlap;
+            }
+            if (!duplicate) {
+                NextFace(faces, faceNum++).roi = roi;
+            }
+        }
+    }
+    faces->resize(faceNum);
+    if (detected) {
+        metrics_.timers[TIMER_DETECT_PREPROCESS].Record(elapsed[0]);
+        metrics_.timers[TIMER_DETECT_RUN].Record(elapsed[1]);
+        metrics_.timers[TIMER_DETECT_POSTPROCESS].Record(elapsed[2]);
+    }
+}
 
+void Pipeline::WarmUp() {
+    if (executionMode_ != LATENCY_FIRST) {
+        LOGE("WarmUp is only supported in LATENCY_FIRST mode");
+        return;
+    }
+    auto t = GetCurrentTime();
+    // A flat gray frame of a typical preview size. The detector won't find a
+    // face in it, so the other stages get a made-up face in the middle
+    const int width = 640;
+    const int height = 480;
+    cv::Mat rgbaImage(height, width, CV_8UC4, cv::Scalar(128, 128, 128, 255));
+    std::vector<Face> faces;
+    faceDetector_->Predict(rgbaImage, &faces);
+    Face face;
+    face.roi = cv::Rect(width / 4, height / 4, width / 2, height / 2);
+    face.confidence = 0;
+    face.classid = 0;
+    face.id = -1;
+    faces.assign(1, face);
+    // Also allocates the shared face patch
+    arena_.patches.count = 0;
+    if (faceKeypointsDetector_) {
+        faceKeypointsDetector_->Predict(rgbaImage, &faces, &arena_.patches);
+    }
+    if (maskClassifier_) {
+        maskClassifier_->Predict(rgbaImage, &faces, &arena_.patches);
+    }
+    LOGD("Warm-up took %.1f ms", GetElapsedTime(t));
+}
+
+FaceKeypointsDetector *Pipeline::KeypointsStage() {
+    if (!faceKeypointsDetector_) {
+        LoadKeypointsStage();
+    }
+    return faceKeypointsDetector_.get();
+}
+
+MaskClassifier *Pipeline::MaskStage() {
+    if (!maskClassifier_) {
+        LoadMaskStage();
+    }
+    return maskClassifier_.get();
+}
+
+void Pipeline::LoadKeypointsStage() {
+    auto t = GetCurrentTime();
+    loadKeypoints_();
+    loadKeypoints_ = nullptr;
+    LOGD("Loaded keypoints model in %.1f ms", GetElapsedTime(t));
+}
+
+void Pipeline::LoadMaskStage() {
+    auto t = GetCurrentTime();
+    loadMask_();
+    loadMask_ = nullptr;
+    LOGD("Loaded mask model in %.1f ms", GetElapsedTime(t));
+}
+
+int Pipeline::ResultDelay() const {
+    return executionMode_ == THROUGHPUT_FIRST ? kPipelineDepth - 1 : 0;
+}
+
+void Pipeline::StartWorkers() {
+    detectQueue_.reset(new JobQueue(1));
+    keypointsQueue_.reset(new JobQueue(1));
+    maskQueue_.reset(new JobQueue(1));
+    resultQueue_.reset(new JobQueue(kPipelineDepth));
+    inFlight_ = 0;
+    freeJobs_.reserve(kPipelineDepth);
+    workers_.emplace_back(&Pipeline::DetectWorker, this);
+    workers_.emplace_back(&Pipeline::KeypointsWorker, this);
+    workers_.emplace_back(&Pipeline::MaskWorker, this);
+}
+
+void Pipeline::StopWorkers() {
+    if (workers_.empty()) {
+        return;
+    }
+    // Frames still in flight are dropped
+    detectQueue_->Close();
+    keypointsQueue_->Close();
+    maskQueue_->Close();
+    resultQueue_->Close();
+    for (auto &worker : workers_) {
+        worker.join();
+    }
+    workers_.clear();
+    metrics_.droppedFrames.fetch_add(inFlight_, std::memory_order_relaxed);
+    inFlight_ = 0;
+}
+
+void Pipeline::DetectWorker() {
+    std::shared_ptr<PipelineJob> job;
+    while (detectQueue_->Pop(&job)) {
+        // Stage1: Face detection
+        DetectFaces(job->rgbaImage, &job->faces);
+        if (!keypointsQueue_->Push(job)) {
+            break;
+        }
+    }
+}
+
+void Pipeline::KeypointsWorker() {
+    std::shared_ptr<PipelineJob> job;
+    while (keypointsQueue_->Pop(&job)) {
+        // Stage2: FaceKeypoint detection
+        job->patches.count = 0;
+        if (!job->faces.empty() && (job->stages & STAGE_KEYPOINTS)) {
+            KeypointsStage()->Predict(job->rgbaImage, &job->faces,
+                                      (job->stages & STAGE_MASK) ? &job->patches : nullptr);
+        }
+        if (!maskQueue_->Push(job)) {
+            break;
+        }
+    }
+}
+
+void Pipeline::MaskWorker() {
+    std::shared_ptr<PipelineJob> job;
+    while (maskQueue_->Pop(&job)) {
+        // Stage3: Mask wearing classification
+        if (!job->faces.empty() && (job->stages & STAGE_MASK)) {
+            MaskStage()->Predict(job->rgbaImage, &job->faces, &job->patches);
+        } else {
+            ClearMaskResults(&job->faces);
+        }
+        if (!resultQueue_->Push(job)) {
+            break;
+        }
+    }
+}
@@ -1,14 +1,23 @@
 #pragma once
 
+#include "BoundedQueue.h"
+#include "InferenceBackend.h"
+#include "Metrics.h"
 #include "Utils.h"
-#include "paddle_api.h"
+#ifdef __ANDROID__
 #include <EGL/egl.h>
 #include <GLES2/gl2.h>
+#endif
 #include <opencv2/core.hpp>
 #include <opencv2/highgui/highgui.hpp>
 #include <opencv2/imgcodecs.hpp>
 #include <opencv2/imgproc.hpp>
+#include <atomic>
+#include <functional>
+#include <memory>
+#include <mutex>
 #include <string>
+#include <thread>
 #include <vector>
 
 struct Face {
@@ -18,82 +27,314 @@ struct Face {
     std::vector<cv::Point2d> keypoints;
     // Classification result: confidence
     float confidence;
-    // Classification result : class id
+    // Classification result : class id, -1 when the mask stage didn't run
     int classid;
+    // Tracking id, stays the same while the face is tracked across frames
+    int id;
 };
 
+// Scratch images of one stage. OpenCV only reallocates a destination Mat when
+// its size or type changes, so once the stage has seen a frame (or a face) of
+// a given size it keeps writing into the same buffers.
+struct StageScratch {
+    cv::Mat resized;
+    cv::Mat converted;
+    cv::Mat normalized;
+    std::vector<cv::Rect> rois;
+    // Output shape and LoD read back from the backend
+    std::vector<int64_t> outputShape;
+    std::vector<uint64_t> lod;
+};
+
+// Face regions cropped from the frame once and resized to a common size. The
+// keypoints stage fills them while preparing its own input, the mask stage
+// then starts from the patches instead of reading the frame again. Only used
+// when both models take inputs of the same aspect ratio, otherwise size is
+// empty. One entry per face, in the order of the images and their faces.
+struct FacePatches {
+    cv::Size size;
+    // Faces filled by the last keypoints stage, 0 when there are none
+    size_t count = 0;
+    std::vector<cv::Rect> rois;
+    // RGBA, kept across frames so that resizing into them doesn't allocate
+    std::vector<cv::Mat> images;
+};
+
+// Per-stage scratch buffers owned by Pipeline and reused across invocations,
+// so that steady-state frame processing does not touch the heap.
+struct FrameArena {
+    StageScratch detector;
+    StageScratch keypoints;
+    StageScratch mask;
+    FacePatches patches;
+    // Camera frames converted from YUV before they enter the pipeline
+    cv::Mat yuvImage;
+    cv::Mat uprightImage;
+    // U and V planes that are neither NV21 nor NV12, de-interleaved and
+    // resized one by one
+    cv::Mat uPlane;
+    cv::Mat vPlane;
+    cv::Mat uResized;
+    cv::Mat vResized;
+    // Result buffer handed to Process, the faces keep their keypoint vectors
+    std::vector<Face> faces;
+    // Same for ProcessBatch, one vector per image
+    std::vector<std::vector<Face>> batchFaces;
+};
+
+// Debug counter: number of cv::Mat buffers allocated by this process since
+// the first Pipeline was created. It should stop growing after warm-up. Other
+// heap allocations are not seen here, host/Benchmark counts those as well.
+int64_t MatAllocations();
+
+// Every image is letterboxed into a square input of a fixed size, so the
+// input shape only changes when the image size or the minimum face size does
+// and the runtime doesn't have to re-plan the network on every frame.
 class FaceDetector {
 public:
-    explicit FaceDetector(const std::string &modelDir, const int cpuThreadNum,
-                          const std::string &cpuPowerMode, float inputScale,
+    // inputSize is the side of the square detector input, and the largest
+    // one used when a minimum face size is set
+    explicit FaceDetector(std::unique_ptr<InferenceBackend> backend, int inputSize,
                           const std::vector<float> &inputMean,
                           const std::vector<float> &inputStd,
-                          float scoreThreshold);
+                          float scoreThreshold, StageScratch *scratch,
+                          LatencyHistogram *timers);
+
+    // When rgbaImage is a region of a larger frame, frameLongSide is the long
+    // side of that frame: the input shrinks with the region so that faces get
+    // the same input resolution as on the whole frame. 0 for whole images.
+    // With elapsed set, the preprocess, run and postprocess times are added
+    // to elapsed[0..2] instead of being recorded, so that a frame detected
+    // region by region is still recorded once.
+    void Predict(const cv::Mat &rgbaImage, std::vector<Face> *faces, int frameLongSide = 0,
+                 int64_t *elapsed = nullptr);
 
-    void Predict(const cv::Mat &rgbaImage, std::vector<Face> *faces);
+    // Images of the same size, detected with one inference as long as the
+    // model reports which detections belong to which image
+    void PredictBatch(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                      int imageNum);
+
+    // Smallest face, in pixels of the input image, that has to be found.
+    // Larger values shrink the detector input and speed it up at the cost of
+    // missing smaller faces. <= 0 always uses the full input size.
+    void SetMinFaceSize(int minFaceSize);
 
 private:
-    void Preprocess(const cv::Mat &rgbaImage);
+    // Side of the square detector input for an image of this size
+    int InputSizeFor(int imageWidth, int imageHeight, int frameLongSide) const;
 
-    void Postprocess(const cv::Mat &rgbaImage, std::vector<Face> *faces);
+    void Preprocess(const cv::Mat *const *images, int imageNum, int frameLongSide);
+
+    void Postprocess(const cv::Mat &rgbaImage, const float *outputData, int rowNum,
+                     std::vector<Face> *faces);
 
 private:
-    float inputScale_;
+    int maxInputSize_;
+    std::atomic<int> minFaceSize_;
+    // Letterbox of the last Preprocess: side of the input and the size of the
+    // resized image in its top-left corner
+    int inputSize_;
+    int contentWidth_;
+    int contentHeight_;
     std::vector<float> inputMean_;
     std::vector<float> inputStd_;
     float scoreThreshold_;
-    std::shared_ptr<paddle::lite_api::PaddlePredictor> predictor_;
+    bool batchSupported_;
+    StageScratch *scratch_;
+    // Preprocess, run and postprocess, see MetricTimer
+    LatencyHistogram *timers_;
+    // NCHW shape of the last Preprocess
+    int64_t inputShape_[4];
+    std::unique_ptr<InferenceBackend> backend_;
 };
 
 class FaceKeypointsDetector {
 public:
-    explicit FaceKeypointsDetector(const std::string &modelDir,
-                                   const int cpuThreadNum,
-                                   const std::string &cpuPowerMode,
-                                   int inputWidth, int inputHeight);
+    explicit FaceKeypointsDetector(std::unique_ptr<InferenceBackend> backend,
+                                   int inputWidth, int inputHeight,
+                                   StageScratch *scratch, LatencyHistogram *timers);
+
+    // When patches has a size, the face patches are left in it for the mask
+    // stage
+    void Predict(const cv::Mat &rgbImage, std::vector<Face> *faces,
+                 FacePatches *patches = nullptr);
 
-    void Predict(const cv::Mat &rgbImage, std::vector<Face> *faces);
+    // The faces of all the images go through the model as one batch
+    void PredictBatch(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                      int imageNum, FacePatches *patches = nullptr);
 
 private:
-    void Preprocess(const cv::Mat &rgbaImage, const std::vector<Face> &faces,
-                    std::vector<cv::Rect> *adjustedFaceROIs);
+    void Preprocess(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                    int imageNum, int batchSize, std::vector<cv::Rect> *adjustedFaceROIs,
+                    FacePatches *patches);
 
     void Postprocess(const std::vector<cv::Rect> &adjustedFaceROIs,
-                     std::vector<Face> *faces);
+                     std::vector<Face> *const *faces, int imageNum);
 
 private:
     int inputWidth_;
     int inputHeight_;
-    std::shared_ptr<paddle::lite_api::PaddlePredictor> predictor_;
+    StageScratch *scratch_;
+    // Preprocess, run and postprocess, see MetricTimer
+    LatencyHistogram *timers_;
+    // NCHW shape of the last Preprocess
+    int64_t inputShape_[4];
+    std::unique_ptr<InferenceBackend> backend_;
 };
 
 class MaskClassifier {
 public:
-    explicit MaskClassifier(const std::string &maskClassifierModel, const int cpuThreadNum,
-                            const std::string &cpuPowerMode, int inputWidth,
+    explicit MaskClassifier(std::unique_ptr<InferenceBackend> backend, int inputWidth,
                             int inputHeight, const std::vector<float> &inputMean,
-                            const std::vector<float> &inputStd);
+                            const std::vector<float> &inputStd, StageScratch *scratch,
+                            LatencyHistogram *timers);
 
-    void Predict(const cv::Mat &rgbImage, std::vector<Face> *faces);
+    // Starts from the patches of the keypoints stage when they were made for
+    // these faces, crops the faces from the images otherwise
+    void Predict(const cv::Mat &rgbImage, std::vector<Face> *faces,
+                 const FacePatches *patches = nullptr);
+
+    // The faces of all the images go through the model as one batch
+    void PredictBatch(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                      int imageNum, const FacePatches *patches = nullptr);
 
 private:
-    void Preprocess(const cv::Mat &rgbaImage, const std::vector<Face> &faces);
+    void Preprocess(const cv::Mat *const *images, std::vector<Face> *const *faces,
+                    int imageNum, int batchSize, const FacePatches *patches);
 
-    void Postprocess(std::vector<Face> *faces);
+    void Postprocess(std::vector<Face> *const *faces, int imageNum, int batchSize);
 
 private:
     int inputWidth_;
     int inputHeight_;
     std::vector<float> inputMean_;
     std::vector<float> inputStd_;
-    std::shared_ptr<paddle::lite_api::PaddlePredictor> predictor_;
+    StageScratch *scratch_;
+    // Preprocess, run and postprocess, see MetricTimer
+    LatencyHistogram *timers_;
+    // NCHW shape of the last Preprocess
+    int64_t inputShape_[4];
+    std::unique_ptr<InferenceBackend> backend_;
+};
+
+
+// Follows faces between detector runs. After each frame the face rectangles
+// are re-estimated from the 68 keypoints, so on the next frame the keypoints
+// and mask stages can run on the propagated rectangles without running the
+// detector. Detection is requested again every detectInterval frames, or as
+// soon as a track looks unreliable.
+class FaceTracker {
+public:
+    FaceTracker();
+
+    // detectInterval <= 1 runs the detector on every frame
+    void SetDetectInterval(int detectInterval);
+
+    bool NeedDetection() const;
+
+    // Matches freshly detected faces to the previous tracks and assigns ids
+    void AssignIds(std::vector<Face> *faces);
+
+    // Replaces faces with the rectangles propagated from the previous frame
+    void Propagate(std::vector<Face> *faces);
+
+    // Updates the tracks from the keypoints of the current frame
+    void Update(const cv::Size &imageSize, bool detected, std::vector<Face> *faces);
+
+private:
+    struct Track {
+        int id;
+        cv::Rect roi;
+        // Face rectangle relative to the bounding box of the keypoints
+        cv::Rect2f keypointsToRoi;
+        // Rectangle expected on the next frame
+        cv::Rect predictedRoi;
+    };
+
+    int detectInterval_;
+    int framesSinceDetection_;
+    bool lost_;
+    int nextId_;
+    std::vector<Track> tracks_;
+    std::vector<Track> nextTracks_;
+};
+
+// Skips the frames of a static scene, e.g. an empty lobby. Each frame is
+// reduced to a small luma thumbnail by sampling a few pixels per cell and
+// compared with the thumbnail of the last frame that was processed; that
+// costs a few thousand pixel reads instead of three model inferences.
+class MotionGate {
+public:
+    MotionGate();
+
+    // sensitivity in (0, 1], higher reacts to smaller changes, <= 0 disables
+    // the gate. A frame is processed at least every maxSkipFrames frames,
+    // <= 0 skips for as long as nothing changes. May be called from any
+    // thread.
+    void Configure(float sensitivity, int maxSkipFrames);
+
+    bool Enabled() const;
+
+    // The next frame is always processed
+    void Reset();
+
+    // False when the frame hardly differs from the last processed one, true
+    // otherwise; the frame then becomes the new reference
+    bool ShouldProcess(const cv::Mat &rgbaImage);
+
+private:
+    void Downsample(const cv::Mat &rgbaImage, std::vector<uint8_t> *thumbnail) const;
+
+    bool Changed(float sensitivity) const;
+
+    std::atomic<float> sensitivity_;
+    std::atomic<int> maxSkipFrames_;
+    std::atomic<bool> resetRequested_;
+    bool hasReference_;
+    cv::Size referenceSize_;
+    int skippedFrames_;
+    std::vector<uint8_t> reference_;
+    std::vector<uint8_t> thumbnail_;
 };
 
+// Latency-first runs the three stages serially on the calling thread and
+// returns the result of the frame that was passed in. Throughput-first runs
+// each stage on its own worker thread connected by bounded queues, so the
+// detection of a new frame overlaps the keypoints/mask inference of the
+// previous ones, and Process returns the result of an older frame (see
+// ResultDelay).
+enum ExecutionMode {
+    LATENCY_FIRST = 0,
+    THROUGHPUT_FIRST = 1,
+};
+
+// Stages a Process call runs, as a bit mask. Detection always runs, the mask
+// classifier doesn't need the keypoints. The values are part of the Java API,
+// see PaddleNative.STAGE_*.
+enum PipelineStage {
+    STAGE_DETECT = 1,
+    STAGE_KEYPOINTS = 2,
+    STAGE_MASK = 4,
+    STAGE_ALL = STAGE_DETECT | STAGE_KEYPOINTS | STAGE_MASK,
+};
+
+// Wall time of each stage of the last Process call, in milliseconds
+struct StageTimings {
+    double detection;
+    double keypoints;
+    double mask;
+};
 
 class Pipeline {
 public:
+    // modelBuffers holds the detector, keypoints and mask models when they are
+    // already in memory (see ModelBuffer), the paths are then only names.
+    // The three models are loaded in parallel. With lazyStages only the
+    // detector is loaded here, the keypoints and mask models on the first
+    // frame that has a face. stages is the initial SetStages value, the
+    // models of the other stages are not loaded until a call needs them.
     Pipeline(const std::string &fdtModelDir, const int fdtCPUThreadNum,
-             const std::string &detCPUPowerMode, float fdtInputScale,
+             const std::string &detCPUPowerMode, int fdtInputSize,
              const std::vector<float> &fdtInputMean,
              const std::vector<float> &fdtInputStd, float fdtScoreThreshold,
              const std::string &fkpModelDir, const int fkpCPUThreadNum,
@@ -102,12 +343,160 @@ public:
              const std::string &maskClassifierModel, const int mclCPUThreadNum,
              const std::string &mclCPUPowerMode, int mclInputWidth,
              int mclInputHeight, const std::vector<float> &mclInputMean,
-             const std::vector<float> &mclInputStd);
+             const std::vector<float> &mclInputStd,
+             InferenceBackendType backendType = BACKEND_DEFAULT,
+             const ModelBuffer *modelBuffers = nullptr, bool lazyStages = false,
+             int stages = STAGE_ALL);
+
+    ~Pipeline();
 
     bool Process(cv::Mat &rgbaImage, std::vector<Face> &faces);
 
+    // Independent images, e.g. stored photos: no tracking, the detector runs
+    // on batches of images of the same size, the keypoints and mask stages on
+    // the faces of all the images at once. Returns false in THROUGHPUT_FIRST,
+    // where the stages are busy on the worker threads.
+    bool ProcessBatch(const std::vector<cv::Mat> &rgbaImages,
+                      std::vector<std::vector<Face>> *faces);
+
+    FrameArena &Arena() { return arena_; }
+
+    // Only filled in LATENCY_FIRST mode
+    const StageTimings &LastTimings() const { return timings_; }
+
+    // Cumulative, updated in both modes, reset with Metrics().Reset()
+    PipelineMetrics &Metrics() { return metrics_; }
+
+    // Must be called from the thread that calls Process.
+    void SetExecutionMode(ExecutionMode mode);
+
+    // Number of Process calls between submitting a frame and getting its
+    // result back.
+    int ResultDelay() const;
+
+    // Only applies to LATENCY_FIRST, the pipelined mode has no previous
+    // keypoints to propagate from and detects every frame
+    void SetDetectInterval(int detectInterval);
+
+    // See FaceDetector::SetMinFaceSize
+    void SetMinFaceSize(int minFaceSize);
+
+    // PipelineStage bits run by the following Process and ProcessBatch
+    // calls. Without STAGE_KEYPOINTS the faces can't be tracked, so the
+    // detector runs on every frame; without STAGE_MASK the faces get
+    // classid -1. May be called from any thread, a frame already in the
+    // pipelined stages keeps the stages it was submitted with.
+    void SetStages(int stages);
+
+    // Frames of a static scene skip the three stages and get the faces of the
+    // last processed frame, see MotionGate. Only applies to LATENCY_FIRST,
+    // in THROUGHPUT_FIRST the results would no longer line up with
+    // ResultDelay. Disabled by default.
+    void SetMotionGate(float sensitivity, int maxSkipFrames);
+
+    // For fixed-mount cameras: the detector only runs on these regions, given
+    // as fractions (0..1) of the frame size so they don't depend on the
+    // preview resolution. The faces are still in frame coordinates. Empty runs
+    // the detector on the whole frame. Only applies to Process.
+    void SetDetectionRegions(const std::vector<cv::Rect2f> &regions);
+
+    // Optional mask of where faces can appear, CV_8UC1 of any size stretched
+    // over the frame, nonzero pixels are watched. Faces whose center is on a
+    // zero pixel are dropped, and without regions the detector only runs on
+    // the bounding box of the watched pixels. An empty mask disables it.
+    void SetDetectionMask(const cv::Mat &mask);
+
+    // Runs the loaded stages once on a synthetic frame so that the first real
+    // frame doesn't pay for kernel selection and first-run allocations. Only
+    // in LATENCY_FIRST, the tracker is left untouched.
+    void WarmUp();
+
 private:
+    struct PipelineJob {
+        cv::Mat rgbaImage;
+        std::vector<Face> faces;
+        int stages;
+        FacePatches patches;
+    };
+    typedef BoundedQueue<std::shared_ptr<PipelineJob>> JobQueue;
+
+    bool ProcessSerial(cv::Mat &rgbaImage, std::vector<Face> &faces, int stages);
+
+    bool ProcessPipelined(cv::Mat &rgbaImage, std::vector<Face> &faces, int stages);
+
+    // Marks the faces as not classified when the mask stage didn't run
+    static void ClearMaskResults(std::vector<Face> *faces);
+
+    // Stage1 restricted to the detection regions and mask, if any
+    void DetectFaces(const cv::Mat &rgbaImage, std::vector<Face> *faces);
+
+    void StartWorkers();
+
+    void StopWorkers();
+
+    void DetectWorker();
+
+    void KeypointsWorker();
+
+    void MaskWorker();
+
+    // Loaded on first use when the pipeline was created with lazyStages
+    FaceKeypointsDetector *KeypointsStage();
+
+    MaskClassifier *MaskStage();
+
+    void LoadKeypointsStage();
+
+    void LoadMaskStage();
+
+private:
+    // One job per stage can be in flight at the same time
+    static const int kPipelineDepth = 3;
+    // Largest detector batch of ProcessBatch
+    static const int kMaxDetectorBatch = 8;
+
+    FrameArena arena_;
     std::shared_ptr<FaceDetector> faceDetector_;
     std::shared_ptr<FaceKeypointsDetector> faceKeypointsDetector_;
     std::shared_ptr<MaskClassifier> maskClassifier_;
+    // Build the stages that are not loaded yet, reset once they have run so
+    // the model buffers are released
+    std::function<void()> loadKeypoints_;
+    std::function<void()> loadMask_;
+    FaceTracker faceTracker_;
+    std::atomic<int> stages_;
+    // Size of the face patches shared by the keypoints and mask stages, empty
+    // when their inputs have different aspect ratios
+    cv::Size patchSize_;
+    MotionGate motionGate_;
+    // Result of the last frame that went through the stages, returned for the
+    // frames the motion gate skips
+    std::vector<Face> lastFaces_;
+    // Detection regions and mask, set from any thread, copied under the lock
+    // by the thread running the detector
+    std::mutex regionsMutex_;
+    std::vector<cv::Rect2f> detectionRegions_;
+    cv::Mat detectionMask_;
+    // Bounding box of the watched pixels of the mask, as fractions of its size
+    cv::Rect2f detectionMaskBounds_;
+    // Only touched by the detecting thread
+    std::vector<cv::Rect2f> activeRegions_;
+    std::vector<Face> regionFaces_;
+    StageTimings timings_;
+    PipelineMetrics metrics_;
+
+    ExecutionMode executionMode_;
+    int inFlight_;
+    std::unique_ptr<JobQueue> detectQueue_;
+    std::unique_ptr<JobQueue> keypointsQueue_;
+    std::unique_ptr<JobQueue> maskQueue_;
+    std::unique_ptr<JobQueue> resultQueue_;
+    std::vector<std::thread> workers_;
+    // Jobs whose results have been returned, reused for the next frames
+    std::vector<std::shared_ptr<PipelineJob>> freeJobs_;
+
+    // Image order and stage arguments of ProcessBatch
+    std::vector<int> batchOrder_;
+    std::vector<const cv::Mat *> batchImages_;
+    std::vector<std::vector<Face> *> batchFaces_;
 };
@@ -1,20 +1,39 @@
 #pragma once
 
-#include "paddle_api.h"
-#include <android/log.h>
+#include "Kernels.h"
+#include <chrono>
 #include <fstream>
 #include <string>
 #include <vector>
 
 #define TAG "JNI"
+#ifdef __ANDROID__
+#include <android/log.h>
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
 #define LOGF(...) __android_log_print(ANDROID_LOG_FATAL, TAG, __VA_ARGS__)
+#else
+// Host builds (see host/CMakeLists.txt) log to stderr
+#include <cstdio>
+#define HOST_LOG(level, ...)                                                   \
+  do {                                                                         \
+    std::fprintf(stderr, "%s/%s: ", level, TAG);                               \
+    std::fprintf(stderr, __VA_ARGS__);                                         \
+    std::fprintf(stderr, "\n");                                                \
+  } while (0)
+#define LOGD(...) HOST_LOG("D", __VA_ARGS__)
+#define LOGI(...) HOST_LOG("I", __VA_ARGS__)
+#define LOGW(...) HOST_LOG("W", __VA_ARGS__)
+#define LOGE(...) HOST_LOG("E", __VA_ARGS__)
+#define LOGF(...) HOST_LOG("F", __VA_ARGS__)
+#endif
 
 int64_t ShapeProduction(const std::vector<int64_t> &shape);
 
+int64_t ShapeProduction(const int64_t *shape, int dims);
+
 template <typename T>
 bool ReadFile(const std::string &path, std::vector<T> *data) {
   std::ifstream file(path, std::ifstream::binary);
@@ -46,36 +65,13 @@ bool WriteFile(const std::string &path, const std::vector<T> &data) {
   return true;
 }
 
+// Microseconds on a monotonic clock, only meaningful as a difference
 inline int64_t GetCurrentTime() {
-  struct timeval time;
-  gettimeofday(&time, NULL);
-  return 1000000LL * (int64_t)time.tv_sec + (int64_t)time.tv_usec;
+  return std::chrono::duration_cast<std::chrono::microseconds>(
+             std::chrono::steady_clock::now().time_since_epoch())
+      .count();
 }
 
 inline double GetElapsedTime(int64_t time) {
   return (GetCurrentTime() - time) / 1000.0f;
 }
-
-inline paddle::lite_api::PowerMode ParsePowerMode(std::string mode) {
-  if (mode == "LITE_POWER_HIGH") {
-    return paddle::lite_api::LITE_POWER_HIGH;
-  } else if (mode == "LITE_POWER_LOW") {
-    return paddle::lite_api::LITE_POWER_LOW;
-  } else if (mode == "LITE_POWER_FULL") {
-    return paddle::lite_api::LITE_POWER_FULL;
-  } else if (mode == "LITE_POWER_RAND_HIGH") {
-    return paddle::lite_api::LITE_POWER_RAND_HIGH;
-  } else if (mode == "LITE_POWER_RAND_LOW") {
-    return paddle::lite_api::LITE_POWER_RAND_LOW;
-  }
-  return paddle::lite_api::LITE_POWER_NO_BIND;
-}
-
-void NHWC3ToNC3HW(const float *src, float *dst, const float *mean,
-                  const float *std, int width, int height);
-
-void NHWC1ToNC1HW(const float *src, float *dst, const float *mean,
-                  const float *std, int width, int height);
-
-void NHWC2NCHW(const float *src, float *dst, const float *mean,
-               const float *std, int width, int height);
\ No newline at end of file
@@ -0,0 +1,102 @@
+// Streams a video file through the native pipeline and writes one CSV row per
+// face to stdout, so long recordings can be audited without extracting the
+// frames first. Only the frame being decoded is kept in memory.
+//
+//   ./AnalyzeVideo <video> [model dir] [frame stride] [detect interval] > faces.csv
+//
+// Every frame is decoded (inter frames depend on the previous ones) but only
+// every <frame stride>-th one is retrieved, i.e. converted to BGR, and
+// analyzed. A detect interval above 1 lets the
+// tracker carry the faces between detections, which only makes sense for a
+// small stride.
+
+#include "Pipeline.h"
+#include <opencv2/videoio.hpp>
+#include <algorithm>
+#include <cstdio>
+#include <cstdlib>
+
+namespace {
+
+const int kMaxImageSize = 700;
+const int kNumThreads = 4;
+const char *kPowerMode = "LITE_POWER_HIGH";
+
+} // namespace
+
+int main(int argc, char **argv) {
+    if (argc < 2) {
+        std::fprintf(stderr,
+                     "Usage: %s <video> [model dir] [frame stride] [detect interval]\n",
+                     argv[0]);
+        return 1;
+    }
+    std::string videoPath = argv[1];
+    std::string modelDir = argc > 2 ? argv[2] : ".";
+    int frameStride = argc > 3 ? std::max(1, std::atoi(argv[3])) : 1;
+    int detectInterval = argc > 4 ? std::max(1, std::atoi(argv[4])) : 1;
+
+    cv::VideoCapture capture(videoPath);
+    if (!capture.isOpened()) {
+        std::fprintf(stderr, "Failed to open %s\n", videoPath.c_str());
+        return 1;
+    }
+
+    Pipeline pipeline(modelDir + "/pyramidbox.nb", kNumThreads, kPowerMode, 160,
+                      {0.407843f, 0.694118f, 0.482353f}, {0.5f, 0.5f, 0.5f}, 0.7f,
+                      modelDir + "/facekeypoints.nb", kNumThreads, kPowerMode, 60, 60,
+                      modelDir + "/maskclassifier.nb", kNumThreads, kPowerMode, 128, 128,
+                      {0.5f, 0.5f, 0.5f}, {1.0f, 1.0f, 1.0f});
+    pipeline.SetDetectInterval(detectInterval);
+
+    // Reused for every frame, the decoder and cvtColor write into the same
+    // buffers once the first frame has been seen
+    cv::Mat bgrFrame;
+    cv::Mat scaledFrame;
+    cv::Mat rgbaFrame;
+    std::vector<Face> &faces = pipeline.Arena().faces;
+    long frameIndex = 0;
+    long analyzedFrames = 0;
+    auto start = GetCurrentTime();
+    std::printf("frame,time_ms,id,left,top,width,height,classid,confidence\n");
+    for (; capture.grab(); frameIndex++) {
+        // Skipped frames are only grabbed, the colour conversion of
+        // retrieve() is the bulk of the decoding cost left
+        if (frameIndex % frameStride != 0) {
+            continue;
+        }
+        if (!capture.retrieve(bgrFrame)) {
+            break;
+        }
+        double timeMs = capture.get(cv::CAP_PROP_POS_MSEC);
+        // Coordinates are reported in the original frame
+        float scale = 1.0f;
+        int maxSize = std::max(bgrFrame.cols, bgrFrame.rows);
+        if (maxSize > kMaxImageSize) {
+            scale = static_cast<float>(kMaxImageSize) / maxSize;
+            cv::resize(bgrFrame, scaledFrame,
+                       cv::Size(static_cast<int>(bgrFrame.cols * scale),
+                                static_cast<int>(bgrFrame.rows * scale)));
+            cv::cvtColor(scaledFrame, rgbaFrame, cv::COLOR_BGR2RGBA);
+        } else {
+            cv::cvtColor(bgrFrame, rgbaFrame, cv::COLOR_BGR2RGBA);
+        }
+        analyzedFrames++;
+        if (!pipeline.Process(rgbaFrame, faces)) {
+            continue;
+        }
+        for (const Face &face : faces) {
+            std::printf("%ld,%.1f,%d,%d,%d,%d,%d,%d,%.4f\n", frameIndex, timeMs, face.id,
+                        static_cast<int>(face.roi.x / scale),
+                        static_cast<int>(face.roi.y / scale),
+                        static_cast<int>(face.roi.width / scale),
+                        static_cast<int>(face.roi.height / scale), face.classid,
+                        face.confidence);
+        }
+    }
+    double elapsed = GetElapsedTime(start);
+    std::fprintf(stderr, "%ld frames decoded, %ld analyzed in %.1f s (%.1f fps)\n",
+                 frameIndex, analyzedFrames, elapsed / 1000,
+                 analyzedFrames * 1000 / std::max(elapsed, 1.0));
+    return 0;
+}
@@ -0,0 +1,195 @@
+// Replays a directory of images through the native pipeline and prints the
+// per-stage latency distribution. Uses the same defaults as FaceDetectionUtil.
+//
+//   ./Benchmark <image dir> [model dir] [repeat] [batch size]
+//
+// With a batch size above 1 the images go through Pipeline::ProcessBatch and
+// only the total time per image is reported.
+//
+// The first pass over the images is the warm-up. With repeat >= 2, the
+// cv::Mat buffers and the operator new allocations made after it are counted,
+// so anything still allocating per frame shows up as a non-zero count.
+
+#include "Pipeline.h"
+#include <algorithm>
+#include <atomic>
+#include <cstdio>
+#include <cstdlib>
+#include <new>
+
+namespace {
+
+std::atomic<int64_t> heapAllocations(0);
+
+} // namespace
+
+// Counts every operator new of this binary, the pipeline included. cv::Mat
+// buffers come from OpenCV's own allocator, see MatAllocations()
+void *operator new(size_t size) {
+    heapAllocations.fetch_add(1, std::memory_order_relaxed);
+    void *p = std::malloc(size == 0 ? 1 : size);
+    if (p == nullptr) {
+        throw std::bad_alloc();
+    }
+    return p;
+}
+
+void *operator new[](size_t size) {
+    return operator new(size);
+}
+
+void operator delete(void *p) noexcept {
+    std::free(p);
+}
+
+void operator delete[](void *p) noexcept {
+    std::free(p);
+}
+
+namespace {
+
+const int kMaxImageSize = 700;
+const int kNumThreads = 4;
+const char *kPowerMode = "LITE_POWER_HIGH";
+
+struct StageSamples {
+    const char *name;
+    std::vector<double> samples;
+};
+
+double Percentile(const std::vector<double> &sorted, double p) {
+    if (sorted.empty()) {
+        return 0;
+    }
+    size_t index = static_cast<size_t>(p * (sorted.size() - 1) + 0.5);
+    return sorted[index];
+}
+
+void PrintStage(StageSamples &stage) {
+    std::vector<double> &samples = stage.samples;
+    std::sort(samples.begin(), samples.end());
+    double sum = 0;
+    for (double sample : samples) {
+        sum += sample;
+    }
+    double mean = samples.empty() ? 0 : sum / samples.size();
+    std::printf("%-10s %6zu %9.3f %9.3f %9.3f %9.3f\n", stage.name, samples.size(),
+                Percentile(samples, 0.5), Percentile(samples, 0.9),
+                Percentile(samples, 0.99), mean);
+}
+
+// Same size as the camera frames, see FaceDetectionUtil.obtainYUVOutputBitmap()
+void LoadFrame(const std::string &path, cv::Mat *rgbaImage) {
+    cv::Mat bgrImage = cv::imread(path, cv::IMREAD_COLOR);
+    if (bgrImage.empty()) {
+        return;
+    }
+    int maxSize = std::max(bgrImage.cols, bgrImage.rows);
+    if (maxSize > kMaxImageSize) {
+        float scale = static_cast<float>(kMaxImageSize) / maxSize;
+        cv::resize(bgrImage, bgrImage,
+                   cv::Size(static_cast<int>(bgrImage.cols * scale),
+                            static_cast<int>(bgrImage.rows * scale)));
+    }
+    cv::cvtColor(bgrImage, *rgbaImage, cv::COLOR_BGR2RGBA);
+}
+
+} // namespace
+
+int main(int argc, char **argv) {
+    if (argc < 2) {
+        std::fprintf(stderr, "Usage: %s <image dir> [model dir] [repeat] [batch size]\n", argv[0]);
+        return 1;
+    }
+    std::string imageDir = argv[1];
+    std::string modelDir = argc > 2 ? argv[2] : ".";
+    int repeat = argc > 3 ? std::max(1, std::atoi(argv[3])) : 1;
+    int batchSize = argc > 4 ? std::max(1, std::atoi(argv[4])) : 1;
+
+    std::vector<cv::String> paths;
+    cv::glob(imageDir, paths, false);
+    std::vector<cv::Mat> frames;
+    for (const auto &path : paths) {
+        cv::Mat rgbaImage;
+        LoadFrame(path, &rgbaImage);
+        if (!rgbaImage.empty()) {
+            frames.push_back(rgbaImage);
+        }
+    }
+    if (frames.empty()) {
+        std::fprintf(stderr, "No images found in %s\n", imageDir.c_str());
+        return 1;
+    }
+
+    Pipeline pipeline(modelDir + "/pyramidbox.nb", kNumThreads, kPowerMode, 160,
+                      {0.407843f, 0.694118f, 0.482353f}, {0.5f, 0.5f, 0.5f}, 0.7f,
+                      modelDir + "/facekeypoints.nb", kNumThreads, kPowerMode, 60, 60,
+                      modelDir + "/maskclassifier.nb", kNumThreads, kPowerMode, 128, 128,
+                      {0.5f, 0.5f, 0.5f}, {1.0f, 1.0f, 1.0f});
+
+    StageSamples detection = {"detection", {}};
+    StageSamples keypoints = {"keypoints", {}};
+    StageSamples mask = {"mask", {}};
+    StageSamples total = {"total", {}};
+    std::vector<Face> &faces = pipeline.Arena().faces;
+    // Reserved up front so that the samples don't show up as allocations
+    size_t sampleNum = frames.size() * repeat;
+    for (StageSamples *stage : {&detection, &keypoints, &mask, &total}) {
+        stage->samples.reserve(sampleNum);
+    }
+    int64_t matAllocations = 0;
+    int64_t heapAllocationsAfterWarmUp = 0;
+    std::vector<cv::Mat> batch;
+    batch.reserve(batchSize);
+    for (int i = 0; i < repeat && batchSize > 1; i++) {
+        if (i == 1) {
+            matAllocations = MatAllocations();
+            heapAllocationsAfterWarmUp = heapAllocations.load();
+        }
+        for (size_t start = 0; start < frames.size(); start += batchSize) {
+            size_t end = std::min(frames.size(), start + batchSize);
+            batch.assign(frames.begin() + start, frames.begin() + end);
+            auto t = GetCurrentTime();
+            pipeline.ProcessBatch(batch, &pipeline.Arena().batchFaces);
+            double perImage = GetElapsedTime(t) / (end - start);
+            for (size_t j = start; j < end; j++) {
+                total.samples.push_back(perImage);
+            }
+        }
+    }
+    for (int i = 0; i < repeat && batchSize == 1; i++) {
+        if (i == 1) {
+            matAllocations = MatAllocations();
+            heapAllocationsAfterWarmUp = heapAllocations.load();
+        }
+        for (auto &frame : frames) {
+            auto t = GetCurrentTime();
+            pipeline.Process(frame, faces);
+            total.samples.push_back(GetElapsedTime(t));
+            const StageTimings &timings = pipeline.LastTimings();
+            detection.samples.push_back(timings.detection);
+            if (!faces.empty()) {
+                keypoints.samples.push_back(timings.keypoints);
+                mask.samples.push_back(timings.mask);
+            }
+        }
+    }
+    matAllocations = MatAllocations() - matAllocations;
+    heapAllocationsAfterWarmUp = heapAllocations.load() - heapAllocationsAfterWarmUp;
+
+    std::printf("%zu images x %d, batch size %d, times in ms\n", frames.size(), repeat,
+                batchSize);
+    std::printf("%-10s %6s %9s %9s %9s %9s\n", "stage", "count", "p50", "p90", "p99", "mean");
+    PrintStage(detection);
+    PrintStage(keypoints);
+    PrintStage(mask);
+    PrintStage(total);
+    if (repeat > 1) {
+        std::printf("allocations after warm-up: cv::Mat %lld, heap %lld\n",
+                    static_cast<long long>(matAllocations),
+                    static_cast<long long>(heapAllocationsAfterWarmUp));
+    } else {
+        std::printf("allocations are counted with repeat >= 2\n");
+    }
+    return 0;
+}
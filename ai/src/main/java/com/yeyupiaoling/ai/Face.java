@@ -3,6 +3,9 @@ package com.yeyupiaoling.ai;
 public class Face {
     public float[] roi;
     public float confidence;
+    // 1为戴口罩，0为没有戴口罩，-1表示没有执行口罩分类
     public int classid;
     public float[] keypoints;
+    // 跟踪id，同一个人脸在连续的帧中保持不变，没有跟踪时为-1
+    public int id;
 }
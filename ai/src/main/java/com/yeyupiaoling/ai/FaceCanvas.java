@@ -0,0 +1,15 @@
+package com.yeyupiaoling.ai;
+
+/**
+ * 画人脸识别结果的画布，Android上由Canvas实现，基准测试中可以换成其他实现
+ */
+public interface FaceCanvas {
+    // 人脸框
+    void drawFaceRect(int left, int top, int right, int bottom);
+
+    // 关键点的序号
+    void drawKeypointLabel(String label, float x, float y);
+
+    // 是否戴口罩
+    void drawMaskLabel(String label, int x, int y);
+}
@@ -1,19 +1,40 @@
 package com.yeyupiaoling.ai;
 
 import android.content.Context;
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.RectF;
+import android.media.Image;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 public class FaceDetectionUtil {
     private static final String TAG = FaceDetectionUtil.class.getName();
-    // 缩放大小
-    private static final int maxSize = 700;
+    // 相机YUV图像转换后的大小，以及批量预测图像文件时解码的大小
+    static final int maxSize = 700;
     private static final int NUM_THREADS = 4;
-    private static final float FD_INPUT_SCALE = 0.25f;
+    // 吞吐量优先模式下三个模型同时执行，各自的线程数加起来与NUM_THREADS相同
+    private static final int FD_PIPELINE_NUM_THREADS = 2;
+    private static final int FK_PIPELINE_NUM_THREADS = 1;
+    private static final int MCL_PIPELINE_NUM_THREADS = 1;
+    // assets中的模型文件，打包时不压缩，见build.gradle的aaptOptions
+    private static final String PYRAMIDBOX_MODEL = "pyramidbox.nb";
+    private static final String FACEKEYPOINTS_MODEL = "facekeypoints.nb";
+    private static final String MASK_CLASSIFIER_MODEL = "maskclassifier.nb";
+    private static final String[] MODELS = {PYRAMIDBOX_MODEL, FACEKEYPOINTS_MODEL, MASK_CLASSIFIER_MODEL};
+    // 人脸检测模型的输入是固定大小的正方形，图像保持宽高比缩放后补边
+    private static final int FD_INPUT_SIZE = 160;
     private static final float[] FD_INPUT_MEAN = new float[]{0.407843f, 0.694118f, 0.482353f};
     private static final float[] FD_INPUT_STD = new float[]{0.5f, 0.5f, 0.5f};
     private static final float FD_SCORE_THRESHOLD = 0.7f;
@@ -21,58 +42,203 @@ public class FaceDetectionUtil {
     private static final int[] MCL_INPUT_SHAPE = new int[]{1, 3, 128, 128};
     private static final float[] MCL_INPUT_MEAN = new float[]{0.5f, 0.5f, 0.5f};
     private static final float[] MCL_INPUT_STD = new float[]{1.0f, 1.0f, 1.0f};
-    private static FaceDetectionUtil faceDetectionUtil;
+    // 批量预测时每次native调用处理的图像数量
+    private static final int BATCH_SIZE = 8;
+    private static volatile FaceDetectionUtil faceDetectionUtil;
+    // getInstanceAsync启动的后台初始化
+    private static FutureTask<FaceDetectionUtil> initTask;
     private Bitmap predictBitmap;
+    // 吞吐量优先模式下还没有返回结果的图像
+    private final ArrayDeque<Bitmap> pendingBitmaps = new ArrayDeque<>();
+    // 相机图像转换后的Bitmap，轮流重复使用，不用每一帧都创建新的Bitmap
+    private Bitmap[] yuvBitmaps = new Bitmap[0];
+    private int yuvBitmapIndex = 0;
 
-    private PaddleNative predictor = new PaddleNative();
+    private final PaddleNative predictor;
 
     public static FaceDetectionUtil getInstance(Context context) throws Exception {
+        return getInstance(context, PaddleNative.MODE_LATENCY_FIRST);
+    }
+
+    /**
+     * @param context       应用上下文
+     * @param executionMode 执行模式，只在第一次创建实例时生效
+     */
+    public static FaceDetectionUtil getInstance(Context context, int executionMode) throws Exception {
+        FutureTask<FaceDetectionUtil> pendingTask;
         if (faceDetectionUtil == null) {
             synchronized (FaceDetectionUtil.class) {
-                if (faceDetectionUtil == null) {
-                    faceDetectionUtil = new FaceDetectionUtil(context);
+                pendingTask = initTask;
+                if (faceDetectionUtil == null && pendingTask == null) {
+                    // 在调用的线程上初始化时只加载人脸检测模型，尽快处理第一帧
+                    faceDetectionUtil = new FaceDetectionUtil(context, executionMode, true,
+                            PaddleNative.STAGE_ALL);
                 }
             }
+            if (faceDetectionUtil == null) {
+                // 等待getInstanceAsync的后台初始化
+                return pendingTask.get();
+            }
         }
         return faceDetectionUtil;
     }
 
+    public static Future<FaceDetectionUtil> getInstanceAsync(Context context) {
+        return getInstanceAsync(context, PaddleNative.MODE_LATENCY_FIRST);
+    }
+
+    public static Future<FaceDetectionUtil> getInstanceAsync(Context context, int executionMode) {
+        return getInstanceAsync(context, executionMode, PaddleNative.STAGE_ALL);
+    }
+
+    /**
+     * 在后台线程并行加载需要的模型并预热，适合在onCreate中调用，第一帧图像到来时模型已经准备好。
+     * 之后的getInstance会返回同一个实例
+     *
+     * @param context       应用上下文
+     * @param executionMode 执行模式，只在第一次创建实例时生效
+     * @param stages        执行的阶段，只加载这些阶段的模型，见{@link PaddleNative#setStages(int)}
+     */
+    public static synchronized Future<FaceDetectionUtil> getInstanceAsync(Context context,
+                                                                          final int executionMode,
+                                                                          final int stages) {
+        if (initTask == null) {
+            final Context appContext = context.getApplicationContext();
+            initTask = new FutureTask<>(new Callable<FaceDetectionUtil>() {
+                @Override
+                public FaceDetectionUtil call() {
+                    synchronized (FaceDetectionUtil.class) {
+                        if (faceDetectionUtil != null) {
+                            return faceDetectionUtil;
+                        }
+                    }
+                    long start = System.currentTimeMillis();
+                    FaceDetectionUtil instance = new FaceDetectionUtil(appContext, executionMode,
+                            false, stages);
+                    Log.d(TAG, "后台初始化时间：" + (System.currentTimeMillis() - start));
+                    faceDetectionUtil = instance;
+                    return instance;
+                }
+            });
+            new Thread(initTask, "FaceDetectionInit").start();
+        }
+        return initTask;
+    }
+
 
     /**
      * @param context 应用上下文
      */
     public FaceDetectionUtil(Context context) {
-        String pyramidboxModelPath = context.getCacheDir().getAbsolutePath() + File.separator + "pyramidbox.nb";
-        Utils.copyFileFromAsset(context, "pyramidbox.nb", pyramidboxModelPath);
-        String facekeypointsModelPath = context.getCacheDir().getAbsolutePath() + File.separator + "facekeypoints.nb";
-        Utils.copyFileFromAsset(context, "facekeypoints.nb", facekeypointsModelPath);
-        String maskClassifierModelPath = context.getCacheDir().getAbsolutePath() + File.separator + "maskclassifier.nb";
-        Utils.copyFileFromAsset(context, "maskclassifier.nb", maskClassifierModelPath);
-
-        boolean loadResult = predictor.init(
-                pyramidboxModelPath,
-                NUM_THREADS,
+        this(context, PaddleNative.MODE_LATENCY_FIRST);
+    }
+
+    /**
+     * @param context       应用上下文
+     * @param executionMode {@link PaddleNative#MODE_LATENCY_FIRST}适合单张图像，
+     *                      {@link PaddleNative#MODE_THROUGHPUT_FIRST}适合连续的相机图像，
+     *                      返回的结果会延迟{@link PaddleNative#getResultDelay()}帧
+     */
+    public FaceDetectionUtil(Context context, int executionMode) {
+        this(context, executionMode, PaddleNative.STAGE_ALL);
+    }
+
+    /**
+     * @param stages 执行的阶段，只加载这些阶段的模型，见{@link PaddleNative#setStages(int)}
+     */
+    public FaceDetectionUtil(Context context, int executionMode, int stages) {
+        this(context, executionMode, false, stages);
+    }
+
+    /**
+     * @param lazyStages 为true时关键点和口罩模型在第一次检测到人脸时才加载，不预热；
+     *                   否则需要的模型并行加载后预热
+     */
+    private FaceDetectionUtil(Context context, int executionMode, boolean lazyStages, int stages) {
+        boolean pipelined = executionMode == PaddleNative.MODE_THROUGHPUT_FIRST;
+        predictor = createPredictor(context,
+                pipelined ? FD_PIPELINE_NUM_THREADS : NUM_THREADS,
+                pipelined ? FK_PIPELINE_NUM_THREADS : NUM_THREADS,
+                pipelined ? MCL_PIPELINE_NUM_THREADS : NUM_THREADS,
+                lazyStages, stages);
+        if (!lazyStages) {
+            predictor.warmUp();
+        }
+        predictor.setExecutionMode(executionMode);
+    }
+
+    /**
+     * 加载三个模型，创建一个独立的预测器
+     *
+     * @param fdNumThreads  人脸检测模型的线程数
+     * @param fkNumThreads  关键点检测模型的线程数
+     * @param mclNumThreads 口罩分类模型的线程数
+     * @param lazyStages    见{@link PaddleNative#setLazyStages(boolean)}
+     * @param stages        见{@link PaddleNative#setStages(int)}
+     */
+    static PaddleNative createPredictor(Context context, int fdNumThreads, int fkNumThreads,
+                                        int mclNumThreads, boolean lazyStages, int stages) {
+        PaddleNative predictor = new PaddleNative();
+        predictor.setLazyStages(lazyStages);
+        predictor.setStages(stages);
+        // 直接从APK中映射模型，不再复制到缓存目录
+        boolean loadResult = initPredictor(predictor, context.getAssets(), PYRAMIDBOX_MODEL,
+                FACEKEYPOINTS_MODEL, MASK_CLASSIFIER_MODEL, fdNumThreads, fkNumThreads, mclNumThreads);
+        if (loadResult) {
+            // 删除旧版本复制到缓存目录的模型和它们的.stamp文件
+            for (String model : MODELS) {
+                File cacheFile = new File(context.getCacheDir(), model);
+                if (cacheFile.exists()) {
+                    cacheFile.delete();
+                }
+                File stampFile = new File(context.getCacheDir(), model + ".stamp");
+                if (stampFile.exists()) {
+                    stampFile.delete();
+                }
+            }
+        } else {
+            Log.w(TAG, "无法从assets直接加载模型，复制到缓存目录再加载");
+            String cacheDir = context.getCacheDir().getAbsolutePath() + File.separator;
+            for (String model : MODELS) {
+                Utils.copyFileFromAsset(context, model, cacheDir + model, true);
+            }
+            loadResult = initPredictor(predictor, null, cacheDir + PYRAMIDBOX_MODEL,
+                    cacheDir + FACEKEYPOINTS_MODEL, cacheDir + MASK_CLASSIFIER_MODEL,
+                    fdNumThreads, fkNumThreads, mclNumThreads);
+        }
+        Log.e(TAG, "模型加载情况：" + loadResult);
+        return predictor;
+    }
+
+    // assetManager不为null时模型参数是assets中的文件名，否则是文件路径
+    private static boolean initPredictor(PaddleNative predictor, AssetManager assetManager,
+                                         String pyramidboxModel, String facekeypointsModel,
+                                         String maskClassifierModel, int fdNumThreads,
+                                         int fkNumThreads, int mclNumThreads) {
+        return predictor.init(
+                assetManager,
+                pyramidboxModel,
+                fdNumThreads,
                 "LITE_POWER_HIGH",
-                FD_INPUT_SCALE,
+                FD_INPUT_SIZE,
                 FD_INPUT_MEAN,
                 FD_INPUT_STD,
                 FD_SCORE_THRESHOLD,
-                facekeypointsModelPath,
-                NUM_THREADS,
+                facekeypointsModel,
+                fkNumThreads,
                 "LITE_POWER_HIGH",
                 FK_INPUT_SHAPE[2],
                 FK_INPUT_SHAPE[3],
-                maskClassifierModelPath,
-                NUM_THREADS,
+                maskClassifierModel,
+                mclNumThreads,
                 "LITE_POWER_HIGH",
                 MCL_INPUT_SHAPE[2],
                 MCL_INPUT_SHAPE[3],
                 MCL_INPUT_MEAN,
                 MCL_INPUT_STD);
-        Log.e(TAG, "模型加载情况：" + loadResult);
     }
 
-    public Face[] predictImage(String image_path) throws Exception {
+    public synchronized Face[] predictImage(String image_path) throws Exception {
         if (!new File(image_path).exists()) {
             throw new Exception("image file is not exists!");
         }
@@ -81,23 +247,341 @@ public class FaceDetectionUtil {
         return predictImage(bitmap);
     }
 
-    public Face[] predictImage(Bitmap bitmap) throws Exception {
+    public synchronized Face[] predictImage(Bitmap bitmap) throws Exception {
         return predict(bitmap);
     }
 
+    /**
+     * 直接使用相机ImageReader的YUV_420_888图像预测，不需要先读取成Bitmap。
+     * 转换后的图像保存在重复使用的Bitmap中，getBitmap()返回的Bitmap在下一次预测之后仍然有效，
+     * 再之后会被新的图像覆盖
+     *
+     * @param image    YUV_420_888格式的图像，调用者负责close
+     * @param rotation 把图像转正需要顺时针旋转的角度
+     */
+    public synchronized Face[] predictImage(Image image, int rotation) throws Exception {
+        predictBitmap = obtainYUVOutputBitmap(image, rotation);
+        Image.Plane[] planes = image.getPlanes();
+        long start = System.currentTimeMillis();
+        Face[] faces = predictor.processYUV(planes[0].getBuffer(), planes[1].getBuffer(),
+                planes[2].getBuffer(), image.getWidth(), image.getHeight(),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                rotation, predictBitmap);
+        predictBitmap = resultBitmap(predictBitmap);
+        long end = System.currentTimeMillis();
+        Log.d(TAG, "单纯预测时间：" + (end - start));
+        return faces;
+    }
+
+    /**
+     * 与predictImage(Image, int)相同，但结果写入调用者的FaceBatch，适合人脸多的连续帧，减少GC
+     *
+     * @param result 保存结果，可以在每一帧之间重复使用
+     * @return 检测到的人脸数量
+     */
+    public synchronized int predictImage(Image image, int rotation, FaceBatch result) throws Exception {
+        predictBitmap = obtainYUVOutputBitmap(image, rotation);
+        Image.Plane[] planes = image.getPlanes();
+        long start = System.currentTimeMillis();
+        int faceNum = predictor.processYUV(planes[0].getBuffer(), planes[1].getBuffer(),
+                planes[2].getBuffer(), image.getWidth(), image.getHeight(),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                rotation, predictBitmap, result);
+        predictBitmap = resultBitmap(predictBitmap);
+        long end = System.currentTimeMillis();
+        Log.d(TAG, "单纯预测时间：" + (end - start));
+        return faceNum;
+    }
+
+    // 取出下一个YUV图像转换用的Bitmap，图像大小、旋转角度或者结果延迟改变时重新创建。
+    // 吞吐量优先模式下结果对应的图像要保留到结果返回，另外多留一个给调用者显示上一帧
+    private Bitmap obtainYUVOutputBitmap(Image image, int rotation) throws Exception {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            throw new Exception("only YUV_420_888 image is supported!");
+        }
+        int[] size = yuvOutputSize(image.getWidth(), image.getHeight(), rotation);
+        int count = predictor.getResultDelay() + 2;
+        Bitmap current = yuvBitmaps.length > 0 ? yuvBitmaps[0] : null;
+        if (yuvBitmaps.length != count || current == null || current.getWidth() != size[0]
+                || current.getHeight() != size[1]) {
+            recycleYUVBitmaps();
+            yuvBitmaps = new Bitmap[count];
+            for (int i = 0; i < count; i++) {
+                yuvBitmaps[i] = Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+            }
+        }
+        Bitmap bitmap = yuvBitmaps[yuvBitmapIndex];
+        yuvBitmapIndex = (yuvBitmapIndex + 1) % yuvBitmaps.length;
+        return bitmap;
+    }
+
+    // 创建YUV图像转换后的Bitmap，长边压缩到maxSize
+    static Bitmap createYUVOutputBitmap(int imageWidth, int imageHeight, int rotation) {
+        int[] size = yuvOutputSize(imageWidth, imageHeight, rotation);
+        return Bitmap.createBitmap(size[0], size[1], Bitmap.Config.ARGB_8888);
+    }
+
+    private static int[] yuvOutputSize(int imageWidth, int imageHeight, int rotation) {
+        int width = rotation % 180 == 0 ? imageWidth : imageHeight;
+        int height = rotation % 180 == 0 ? imageHeight : imageWidth;
+        float scale = Math.min(1.0f, (float) maxSize / Math.max(width, height));
+        // YUV420的色度平面是宽高减半的，输出的宽高要保持偶数
+        return new int[]{Math.round(width * scale) & ~1, Math.round(height * scale) & ~1};
+    }
+
+    // 回收重复使用的Bitmap，还没有返回结果的图像也一起丢弃
+    private void recycleYUVBitmaps() {
+        if (yuvBitmaps.length == 0) {
+            return;
+        }
+        for (Bitmap bitmap : yuvBitmaps) {
+            pendingBitmaps.remove(bitmap);
+            if (bitmap == predictBitmap) {
+                predictBitmap = null;
+            }
+            recycle(bitmap);
+        }
+        yuvBitmaps = new Bitmap[0];
+        yuvBitmapIndex = 0;
+    }
+
+
+    /**
+     * 批量预测多张图像，适合离线处理大量照片，只支持延迟优先模式。
+     * 结果的坐标对应传入的原图，调用者的Bitmap不会被回收
+     *
+     * @param bitmaps 图像
+     * @return 每张图像的结果，没有人脸时为空数组
+     */
+    public synchronized List<Face[]> predictBatch(List<Bitmap> bitmaps) throws Exception {
+        List<Face[]> results = new ArrayList<>(bitmaps.size());
+        Bitmap[] batch = new Bitmap[Math.min(BATCH_SIZE, bitmaps.size())];
+        float[] scales = new float[batch.length];
+        Arrays.fill(scales, 1.0f);
+        for (int start = 0; start < bitmaps.size(); start += BATCH_SIZE) {
+            int size = Math.min(BATCH_SIZE, bitmaps.size() - start);
+            if (size != batch.length) {
+                batch = new Bitmap[size];
+            }
+            // native直接把原图缩放到人脸检测模型的输入大小，不需要先缩放
+            for (int i = 0; i < size; i++) {
+                batch[i] = bitmaps.get(start + i);
+            }
+            predictBatch(batch, scales, results);
+        }
+        return results;
+    }
+
+    /**
+     * 批量预测图像文件，解码时直接按需要的大小采样，不会先解码成原图大小，只支持延迟优先模式。
+     * 结果的坐标对应原图
+     *
+     * @param imagePaths 图像路径
+     * @return 每张图像的结果，没有人脸时为空数组
+     */
+    public synchronized List<Face[]> predictBatchFiles(List<String> imagePaths) throws Exception {
+        List<Face[]> results = new ArrayList<>(imagePaths.size());
+        Bitmap[] batch = new Bitmap[Math.min(BATCH_SIZE, imagePaths.size())];
+        float[] scales = new float[batch.length];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        for (int start = 0; start < imagePaths.size(); start += BATCH_SIZE) {
+            int size = Math.min(BATCH_SIZE, imagePaths.size() - start);
+            if (size != batch.length) {
+                batch = new Bitmap[size];
+            }
+            try {
+                for (int i = 0; i < size; i++) {
+                    String imagePath = imagePaths.get(start + i);
+                    // 先只读取图像大小，按2的幂次采样到不小于maxSize再解码
+                    options.inJustDecodeBounds = true;
+                    options.inSampleSize = 1;
+                    BitmapFactory.decodeFile(imagePath, options);
+                    if (options.outWidth <= 0 || options.outHeight <= 0) {
+                        throw new Exception("can't decode image file " + imagePath);
+                    }
+                    int imageWidth = options.outWidth;
+                    int longSide = Math.max(options.outWidth, options.outHeight);
+                    while (longSide / (options.inSampleSize * 2) >= maxSize) {
+                        options.inSampleSize *= 2;
+                    }
+                    options.inJustDecodeBounds = false;
+                    options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                    Bitmap bitmap = BitmapFactory.decodeFile(imagePath, options);
+                    if (bitmap == null) {
+                        throw new Exception("can't decode image file " + imagePath);
+                    }
+                    batch[i] = bitmap;
+                    scales[i] = (float) imageWidth / bitmap.getWidth();
+                }
+                predictBatch(batch, scales, results);
+            } finally {
+                for (int i = 0; i < size; i++) {
+                    if (batch[i] != null) {
+                        recycle(batch[i]);
+                        batch[i] = null;
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    // 预测一批图像，把结果的坐标乘以scales换算回原图后加入results
+    private void predictBatch(Bitmap[] batch, float[] scales, List<Face[]> results) throws Exception {
+        long start = System.currentTimeMillis();
+        Face[][] faces = predictor.processBatch(batch);
+        if (faces == null) {
+            throw new Exception("batch prediction failed!");
+        }
+        for (int i = 0; i < faces.length; i++) {
+            scaleFaces(faces[i], scales[i]);
+            results.add(faces[i]);
+        }
+        long end = System.currentTimeMillis();
+        Log.d(TAG, "批量预测" + batch.length + "张图像的时间：" + (end - start));
+    }
+
 
-    // 执行预测
+    // 执行预测，native直接把原图缩放到人脸检测模型的输入大小，结果的坐标对应原图
     private Face[] predict(Bitmap bmp) throws Exception {
-        predictBitmap = Utils.getScaleBitmap(bmp, maxSize);
-        recycle(bmp);
+        predictBitmap = bmp;
         long start = System.currentTimeMillis();
         Face[] faces = predictor.process(predictBitmap);
+        predictBitmap = resultBitmap(predictBitmap);
         long end = System.currentTimeMillis();
         Log.d(TAG, "单纯预测时间：" + (end - start));
         return faces;
     }
 
-    public Bitmap getBitmap() {
+    /**
+     * 与predictImage(Bitmap)相同，但结果写入调用者的FaceBatch
+     *
+     * @param result 保存结果，可以在每一帧之间重复使用
+     * @return 检测到的人脸数量
+     */
+    public synchronized int predictImage(Bitmap bitmap, FaceBatch result) throws Exception {
+        predictBitmap = bitmap;
+        long start = System.currentTimeMillis();
+        int faceNum = predictor.process(predictBitmap, result);
+        predictBitmap = resultBitmap(predictBitmap);
+        long end = System.currentTimeMillis();
+        Log.d(TAG, "单纯预测时间：" + (end - start));
+        return faceNum;
+    }
+
+    // 把结果的坐标乘以scale
+    static void scaleFaces(Face[] faces, float scale) {
+        for (Face face : faces) {
+            for (int j = 0; j < face.roi.length; j++) {
+                face.roi[j] *= scale;
+            }
+            for (int j = 0; j < face.keypoints.length; j++) {
+                face.keypoints[j] *= scale;
+            }
+        }
+    }
+
+    // 吞吐量优先模式下返回的结果属于之前的图像，取出与结果对应的图像，这样getBitmap()才能画出正确的结果
+    private Bitmap resultBitmap(Bitmap bitmap) {
+        int delay = predictor.getResultDelay();
+        if (delay == 0) {
+            pendingBitmaps.clear();
+            return bitmap;
+        }
+        pendingBitmaps.addLast(bitmap);
+        if (pendingBitmaps.size() <= delay) {
+            return bitmap;
+        }
+        return pendingBitmaps.pollFirst();
+    }
+
+    /**
+     * 逐帧解码视频文件并预测，不需要把视频全部读进内存，也不需要先导出图片。
+     * 在调用的线程上同步执行，处理完或者callback返回false时才返回
+     *
+     * @param videoPath   视频文件路径
+     * @param frameStride 每多少帧预测一次，其他帧只解码不预测
+     * @param callback    接收每一帧的结果，坐标对应转正后的原始视频帧
+     */
+    public synchronized void analyzeVideo(String videoPath, int frameStride,
+                                          VideoAnalyzer.Callback callback) throws Exception {
+        new VideoAnalyzer(predictor).analyze(videoPath, frameStride, callback);
+    }
+
+    /**
+     * 设置人脸检测的间隔帧数，适合连续的相机图像，中间的帧使用上一帧的关键点跟踪人脸
+     *
+     * @param detectInterval 每多少帧执行一次人脸检测，小于等于1表示每一帧都检测
+     */
+    public synchronized void setDetectInterval(int detectInterval) {
+        predictor.setDetectInterval(detectInterval);
+    }
+
+    /**
+     * 设置需要检测的最小人脸，见{@link PaddleNative#setMinFaceSize(int)}。
+     * 例如距离较远的监控相机设置小一些，自拍相机设置大一些
+     *
+     * @param minFaceSize 最小人脸在输入图像中的像素大小，小于等于0表示使用默认的输入大小
+     */
+    public synchronized void setMinFaceSize(int minFaceSize) {
+        predictor.setMinFaceSize(minFaceSize);
+    }
+
+    /**
+     * 设置之后的预测执行哪些阶段，没有加载的模型在第一次需要时加载，见{@link PaddleNative#setStages(int)}
+     *
+     * @param stages {@link PaddleNative#STAGE_DETECT}、{@link PaddleNative#STAGE_KEYPOINTS}、
+     *               {@link PaddleNative#STAGE_MASK}的组合
+     */
+    public synchronized void setStages(int stages) {
+        predictor.setStages(stages);
+    }
+
+    /**
+     * 场景没有变化时跳过预测，直接返回上一次的结果，见{@link PaddleNative#setMotionGate(float, int)}
+     *
+     * @param sensitivity   灵敏度，0到1之间，小于等于0表示关闭
+     * @param maxSkipFrames 最多连续跳过的帧数，小于等于0表示不限制
+     */
+    public synchronized void setMotionGate(float sensitivity, int maxSkipFrames) {
+        predictor.setMotionGate(sensitivity, maxSkipFrames);
+    }
+
+    /**
+     * 只在这些区域检测人脸，适合固定安装的相机，见{@link PaddleNative#setDetectionRegions(float[])}
+     *
+     * @param regions 相对图像宽高的比例（0到1），没有区域时检测整张图像
+     */
+    public synchronized void setDetectionRegions(RectF... regions) {
+        float[] values = new float[regions.length * 4];
+        for (int i = 0; i < regions.length; i++) {
+            values[i * 4] = regions[i].left;
+            values[i * 4 + 1] = regions[i].top;
+            values[i * 4 + 2] = regions[i].width();
+            values[i * 4 + 3] = regions[i].height();
+        }
+        predictor.setDetectionRegions(values);
+    }
+
+    /**
+     * 设置人脸可能出现的区域的掩码，见{@link PaddleNative#setDetectionMask(byte[], int, int)}
+     */
+    public synchronized void setDetectionMask(byte[] mask, int width, int height) {
+        predictor.setDetectionMask(mask, width, height);
+    }
+
+    /**
+     * native Pipeline各阶段的耗时分布、人脸数和丢帧数，见{@link PipelineStats}
+     */
+    public synchronized PipelineStats getStats() {
+        return predictor.getStats();
+    }
+
+    public synchronized void resetStats() {
+        predictor.resetStats();
+    }
+
+    public synchronized Bitmap getBitmap() {
         return predictBitmap;
     }
 
@@ -108,9 +592,10 @@ public class FaceDetectionUtil {
         }
     }
 
-    public void release() {
+    public synchronized void release() {
         if (predictor != null) {
             predictor.release();
         }
+        recycleYUVBitmaps();
     }
 }
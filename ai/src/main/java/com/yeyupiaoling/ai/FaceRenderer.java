@@ -0,0 +1,44 @@
+package com.yeyupiaoling.ai;
+
+/**
+ * 把人脸识别结果画到FaceCanvas上
+ */
+public class FaceRenderer {
+    private static final String MASK_LABEL = "戴口罩";
+    private static final String NO_MASK_LABEL = "未戴口罩";
+    // 关键点序号的文字，避免每帧都创建字符串
+    private static final String[] KEYPOINT_LABELS = new String[68];
+
+    static {
+        for (int i = 0; i < KEYPOINT_LABELS.length; i++) {
+            KEYPOINT_LABELS[i] = String.valueOf(i);
+        }
+    }
+
+    public static void draw(Face[] faces, FaceCanvas canvas) {
+        int left, top, right, bottom;
+        for (Face face : faces) {
+            left = (int) (face.roi[0]);
+            top = (int) (face.roi[1]);
+            right = (int) (face.roi[2] + face.roi[0]);
+            bottom = (int) (face.roi[3] + face.roi[1]);
+
+            canvas.drawFaceRect(left, top, right, bottom);
+
+            for (int j = 0; j < face.keypoints.length; j = j + 2) {
+                canvas.drawKeypointLabel(getKeypointLabel(j / 2), face.keypoints[j], face.keypoints[j + 1]);
+            }
+
+            // classid为-1时没有执行口罩分类
+            if (face.classid == 1) {
+                canvas.drawMaskLabel(MASK_LABEL, left, top);
+            } else if (face.classid == 0) {
+                canvas.drawMaskLabel(NO_MASK_LABEL, left, top);
+            }
+        }
+    }
+
+    private static String getKeypointLabel(int index) {
+        return index < KEYPOINT_LABELS.length ? KEYPOINT_LABELS[index] : String.valueOf(index);
+    }
+}
@@ -0,0 +1,73 @@
+package com.yeyupiaoling.ai;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 相机预测的调度器，代替在Handler中不停重新post自己的预测循环。
+ * 有新的相机图像时调用onFrameAvailable()，同一时间最多只有一个待执行的预测任务，
+ * 预测还没完成时到达的图像会合并成一次，由任务自己读取最新的一帧；
+ * 两次预测之间至少间隔1000 / targetFps毫秒，没有新图像时不会执行预测
+ */
+public class FrameScheduler {
+    private final Handler handler;
+    private final Runnable task;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile long intervalMillis;
+    private volatile long lastRunMillis = 0;
+    private volatile boolean stopped = false;
+
+    private final Runnable runner = new Runnable() {
+        @Override
+        public void run() {
+            // 先清除标志，预测期间到达的新图像会再安排一次预测
+            scheduled.set(false);
+            if (stopped) {
+                return;
+            }
+            lastRunMillis = SystemClock.uptimeMillis();
+            task.run();
+        }
+    };
+
+    /**
+     * @param handler   执行预测任务的线程的Handler
+     * @param task      预测任务，自己读取最新的一帧图像
+     * @param targetFps 每秒最多预测的次数，小于等于0时不限制
+     */
+    public FrameScheduler(Handler handler, Runnable task, float targetFps) {
+        this.handler = handler;
+        this.task = task;
+        setTargetFps(targetFps);
+    }
+
+    public void setTargetFps(float targetFps) {
+        intervalMillis = targetFps > 0 ? (long) (1000 / targetFps) : 0;
+    }
+
+    /**
+     * 有新的相机图像时调用，可以在任意线程调用
+     */
+    public void onFrameAvailable() {
+        if (stopped || !scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = lastRunMillis + intervalMillis - SystemClock.uptimeMillis();
+        if (delay > 0) {
+            handler.postDelayed(runner, delay);
+        } else {
+            handler.post(runner);
+        }
+    }
+
+    /**
+     * 停止调度，移除还没执行的预测任务
+     */
+    public void stop() {
+        stopped = true;
+        handler.removeCallbacks(runner);
+        scheduled.set(false);
+    }
+}
@@ -0,0 +1,55 @@
+package com.yeyupiaoling.ai;
+
+import android.os.Handler;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 只保存最新一帧的显示槽，预测线程用post()提交结果，UI线程来不及显示时旧结果直接被覆盖，
+ * Handler的消息队列中最多只有一个待显示的任务，不会堆积过期的图像
+ */
+public class LatestFrameSlot<T> {
+    public interface Consumer<T> {
+        void accept(T frame);
+    }
+
+    private final Handler handler;
+    private final Consumer<T> consumer;
+    private final AtomicReference<T> pending = new AtomicReference<>();
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            T frame = pending.getAndSet(null);
+            if (frame != null) {
+                consumer.accept(frame);
+            }
+        }
+    };
+
+    /**
+     * @param handler  显示线程的Handler，一般是主线程
+     * @param consumer 在显示线程中显示最新的一帧
+     */
+    public LatestFrameSlot(Handler handler, Consumer<T> consumer) {
+        this.handler = handler;
+        this.consumer = consumer;
+    }
+
+    /**
+     * 提交最新的一帧，上一帧还没显示时直接被替换
+     */
+    public void post(T frame) {
+        if (pending.getAndSet(frame) == null) {
+            handler.post(drain);
+        }
+    }
+
+    /**
+     * 丢弃还没显示的帧
+     */
+    public void clear() {
+        pending.set(null);
+        handler.removeCallbacks(drain);
+    }
+}
@@ -1,18 +1,60 @@
 package com.yeyupiaoling.ai;
 
+import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
 public class PaddleNative {
     static {
         System.loadLibrary("Native");
     }
 
+    // 输入图像格式，与native的ANDROID_BITMAP_FORMAT_RGBA_8888保持一致
+    public static final int FORMAT_RGBA_8888 = 1;
+    // 执行模式：延迟优先，三个模型在调用线程上依次执行，返回的是当前图像的结果
+    public static final int MODE_LATENCY_FIRST = 0;
+    // 执行模式：吞吐量优先，三个模型在各自的线程上流水线执行，返回的是之前图像的结果
+    public static final int MODE_THROUGHPUT_FIRST = 1;
+    // 预测执行的阶段，可以组合，与native的PipelineStage保持一致。人脸检测总是执行
+    public static final int STAGE_DETECT = 1;
+    // 人脸关键点，连续的相机图像需要关键点才能跟踪人脸
+    public static final int STAGE_KEYPOINTS = 2;
+    // 口罩分类，不需要关键点，没有执行时Face.classid为-1
+    public static final int STAGE_MASK = 4;
+    public static final int STAGE_ALL = STAGE_DETECT | STAGE_KEYPOINTS | STAGE_MASK;
+
     private long ctx = 0;
+    private boolean lazyStages = false;
+    private int stages = STAGE_ALL;
+
+    /**
+     * 为true时init只加载人脸检测模型，关键点和口罩模型在第一次检测到人脸时才加载，
+     * 否则三个模型在init中并行加载。必须在init之前调用
+     */
+    public void setLazyStages(boolean lazyStages) {
+        this.lazyStages = lazyStages;
+    }
+
+    /**
+     * 设置之后的预测执行哪些阶段，例如只需要人脸框和口罩状态时用STAGE_DETECT | STAGE_MASK，
+     * 每一帧少执行一次关键点模型。在init之前调用时，没有用到的模型在init中不加载，
+     * 之后需要时才加载
+     *
+     * @param stages {@link #STAGE_DETECT}、{@link #STAGE_KEYPOINTS}、{@link #STAGE_MASK}的组合
+     */
+    public void setStages(int stages) {
+        this.stages = stages;
+        if (ctx != 0) {
+            nativeSetStages(ctx, stages);
+        }
+    }
 
     public boolean init(String pyramidboxModelPath,
                         int fdtCPUThreadNum,
                         String fdtCPUPowerMode,
-                        float fdtInputScale,
+                        int fdtInputSize,
                         float[] fdtInputMean,
                         float[] fdtInputStd,
                         float fdtScoreThreshold,
@@ -28,11 +70,11 @@ public class PaddleNative {
                         int mclInputHeight,
                         float[] mclInputMean,
                         float[] mclInputStd) {
-        ctx = nativeInit(
+        return init(null,
                 pyramidboxModelPath,
                 fdtCPUThreadNum,
                 fdtCPUPowerMode,
-                fdtInputScale,
+                fdtInputSize,
                 fdtInputMean,
                 fdtInputStd,
                 fdtScoreThreshold,
@@ -48,9 +90,94 @@ public class PaddleNative {
                 mclInputHeight,
                 mclInputMean,
                 mclInputStd);
+    }
+
+    /**
+     * 直接从APK的assets加载模型，不需要先复制到缓存目录，模型在APK中不压缩时不会额外读写文件
+     *
+     * @param assetManager 不为null时pyramidboxModelPath、faceKeyPointsModelPath和mclModelDir是assets中的文件名，
+     *                     为null时是文件路径
+     */
+    public boolean init(AssetManager assetManager,
+                        String pyramidboxModelPath,
+                        int fdtCPUThreadNum,
+                        String fdtCPUPowerMode,
+                        int fdtInputSize,
+                        float[] fdtInputMean,
+                        float[] fdtInputStd,
+                        float fdtScoreThreshold,
+                        String faceKeyPointsModelPath,
+                        int fkpCPUThreadNum,
+                        String fkpCPUPowerMode,
+                        int fkpInputWidth,
+                        int fkpInputHeight,
+                        String mclModelDir,
+                        int mclCPUThreadNum,
+                        String mclCPUPowerMode,
+                        int mclInputWidth,
+                        int mclInputHeight,
+                        float[] mclInputMean,
+                        float[] mclInputStd) {
+        ctx = nativeInit(
+                assetManager,
+                pyramidboxModelPath,
+                fdtCPUThreadNum,
+                fdtCPUPowerMode,
+                fdtInputSize,
+                fdtInputMean,
+                fdtInputStd,
+                fdtScoreThreshold,
+                faceKeyPointsModelPath,
+                fkpCPUThreadNum,
+                fkpCPUPowerMode,
+                fkpInputWidth,
+                fkpInputHeight,
+                mclModelDir,
+                mclCPUThreadNum,
+                mclCPUPowerMode,
+                mclInputWidth,
+                mclInputHeight,
+                mclInputMean,
+                mclInputStd,
+                lazyStages,
+                stages);
         return ctx != 0;
     }
 
+    /**
+     * 用合成的图像把已经加载的模型各执行一次，让第一帧真实图像不用承担首次执行的开销。
+     * 只支持延迟优先模式，应该在setExecutionMode之前调用
+     */
+    public void warmUp() {
+        if (ctx == 0) {
+            return;
+        }
+        nativeWarmUp(ctx);
+    }
+
+    /**
+     * 获取从创建或者上次resetStats以来的统计数据，开销很小，可以一直开着
+     *
+     * @return 没有初始化时返回null
+     */
+    public PipelineStats getStats() {
+        if (ctx == 0) {
+            return null;
+        }
+        long[] data = new long[PipelineStats.SIZE];
+        if (!nativeGetStats(ctx, data)) {
+            return null;
+        }
+        return new PipelineStats(data);
+    }
+
+    public void resetStats() {
+        if (ctx == 0) {
+            return;
+        }
+        nativeResetStats(ctx);
+    }
+
     public boolean release() {
         if (ctx == 0) {
             return false;
@@ -58,16 +185,226 @@ public class PaddleNative {
         return nativeRelease(ctx);
     }
 
+    /**
+     * 设置执行模式，需要在调用process的线程上调用
+     *
+     * @param mode {@link #MODE_LATENCY_FIRST}或者{@link #MODE_THROUGHPUT_FIRST}
+     */
+    public void setExecutionMode(int mode) {
+        if (ctx == 0) {
+            return;
+        }
+        nativeSetExecutionMode(ctx, mode);
+    }
+
+    /**
+     * 设置人脸检测的间隔帧数，中间的帧根据上一帧的人脸关键点跟踪人脸，跟踪不可靠时会立即重新检测，
+     * 只在延迟优先模式下生效
+     *
+     * @param detectInterval 每多少帧执行一次人脸检测，小于等于1表示每一帧都检测
+     */
+    public void setDetectInterval(int detectInterval) {
+        if (ctx == 0) {
+            return;
+        }
+        nativeSetDetectInterval(ctx, detectInterval);
+    }
+
+    /**
+     * 设置需要检测的最小人脸，人脸越大人脸检测模型的输入越小，速度越快，但会漏掉更小的人脸。
+     * 输入图像大小不变时模型的输入大小也不变
+     *
+     * @param minFaceSize 最小人脸在输入图像中的像素大小，小于等于0表示始终使用init时的输入大小
+     */
+    public void setMinFaceSize(int minFaceSize) {
+        if (ctx == 0) {
+            return;
+        }
+        nativeSetMinFaceSize(ctx, minFaceSize);
+    }
+
+    /**
+     * 设置运动检测，场景没有变化时跳过三个模型，直接返回上一次的结果，适合大部分时间没有人的场景。
+     * 只在延迟优先模式下生效，默认关闭
+     *
+     * @param sensitivity   灵敏度，0到1之间，越大越小的变化也会重新预测，小于等于0表示关闭
+     * @param maxSkipFrames 最多连续跳过的帧数，超过后即使场景没有变化也会预测一次，小于等于0表示不限制
+     */
+    public void setMotionGate(float sensitivity, int maxSkipFrames) {
+        if (ctx == 0) {
+            return;
+        }
+        nativeSetMotionGate(ctx, sensitivity, maxSkipFrames);
+    }
+
+    /**
+     * 固定安装的相机只在这些区域检测人脸，检测时间随区域面积减少，返回的坐标仍然对应整张图像。
+     * 只对process和processYUV生效，不影响processBatch
+     *
+     * @param regions 每4个数是一个区域的left、top、width、height，都是相对图像宽高的比例（0到1），
+     *                为null或者空数组时检测整张图像
+     */
+    public void setDetectionRegions(float[] regions) {
+        if (ctx == 0) {
+            return;
+        }
+        nativeSetDetectionRegions(ctx, regions);
+    }
+
+    /**
+     * 设置人脸可能出现的区域，掩码拉伸到图像大小，人脸中心在值为0的像素上时丢弃。
+     * 没有设置检测区域时只检测掩码中不为0的像素的外接矩形
+     *
+     * @param mask   width * height个字节，不为0表示检测，为null时取消掩码
+     * @param width  掩码宽度，可以与图像大小不同
+     * @param height 掩码高度
+     */
+    public void setDetectionMask(byte[] mask, int width, int height) {
+        if (ctx == 0) {
+            return;
+        }
+        nativeSetDetectionMask(ctx, mask, width, height);
+    }
+
+    /**
+     * 吞吐量优先模式下，process返回的是之前第几次调用传入图像的结果，延迟优先模式下为0
+     */
+    public int getResultDelay() {
+        if (ctx == 0) {
+            return 0;
+        }
+        return nativeGetResultDelay(ctx);
+    }
+
+    /**
+     * 调试用：进程内分配过的cv::Mat缓冲区数量，预测的中间结果都复用了缓冲区，预热之后这个值应该不再增长
+     */
+    public static long getMatAllocations() {
+        return nativeGetMatAllocations();
+    }
+
     public Face[] process(Bitmap ARGB8888ImageBitmap) {
         if (ctx == 0) {
             return null;
         }
         return nativeProcess(ctx, ARGB8888ImageBitmap);
     }
-    public static native long nativeInit(String pyramidboxModelPath,
+
+    /**
+     * 直接使用调用者的内存进行预测，不会复制图像
+     *
+     * @param buffer 图像数据，必须是direct ByteBuffer
+     * @param width  图像宽度
+     * @param height 图像高度
+     * @param stride 每一行的字节数
+     * @param format 图像格式，目前只支持{@link #FORMAT_RGBA_8888}
+     */
+    public Face[] process(ByteBuffer buffer, int width, int height, int stride, int format) {
+        if (ctx == 0) {
+            return null;
+        }
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("buffer must be a direct ByteBuffer");
+        }
+        return nativeProcessBuffer(ctx, buffer, width, height, stride, format);
+    }
+
+    /**
+     * 直接使用相机YUV_420_888图像的三个平面进行预测，缩小、旋转和颜色转换都在native中完成
+     *
+     * @param yBuffer       Y平面
+     * @param uBuffer       U平面
+     * @param vBuffer       V平面
+     * @param width         图像宽度
+     * @param height        图像高度
+     * @param yRowStride    Y平面每一行的字节数
+     * @param uvRowStride   UV平面每一行的字节数
+     * @param uvPixelStride UV平面相邻像素的间隔
+     * @param rotation      顺时针旋转角度，只支持0、90、180、270
+     * @param outputBitmap  转换后的图像会写入这个ARGB_8888的Bitmap，预测也是在这个大小上进行，宽高必须是偶数
+     * @throws IllegalArgumentException 平面不是direct ByteBuffer，或者容量小于宽高和行间隔需要的大小
+     */
+    public Face[] processYUV(ByteBuffer yBuffer, ByteBuffer uBuffer, ByteBuffer vBuffer,
+                             int width, int height, int yRowStride, int uvRowStride,
+                             int uvPixelStride, int rotation, Bitmap outputBitmap) {
+        if (ctx == 0) {
+            return null;
+        }
+        return nativeProcessYUV(ctx, yBuffer, uBuffer, vBuffer, width, height, yRowStride,
+                uvRowStride, uvPixelStride, rotation, outputBitmap);
+    }
+
+    /**
+     * 与process(Bitmap)相同，但结果写入调用者的FaceBatch，不创建Face对象
+     *
+     * @return 检测到的人脸数量，出错时返回-1
+     */
+    public int process(Bitmap ARGB8888ImageBitmap, FaceBatch result) {
+        if (ctx == 0) {
+            return -1;
+        }
+        int faceNum = nativeProcessInto(ctx, ARGB8888ImageBitmap, result.buffer());
+        result.setDetectedNum(faceNum);
+        return faceNum;
+    }
+
+    /**
+     * 与process(ByteBuffer, int, int, int, int)相同，但结果写入调用者的FaceBatch，不创建Face对象
+     *
+     * @return 检测到的人脸数量，出错时返回-1
+     */
+    public int process(ByteBuffer buffer, int width, int height, int stride, int format,
+                       FaceBatch result) {
+        if (ctx == 0) {
+            return -1;
+        }
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("buffer must be a direct ByteBuffer");
+        }
+        int faceNum = nativeProcessBufferInto(ctx, buffer, width, height, stride, format,
+                result.buffer());
+        result.setDetectedNum(faceNum);
+        return faceNum;
+    }
+
+    /**
+     * 与processYUV相同，但结果写入调用者的FaceBatch，不创建Face对象
+     *
+     * @return 检测到的人脸数量，出错时返回-1
+     */
+    public int processYUV(ByteBuffer yBuffer, ByteBuffer uBuffer, ByteBuffer vBuffer,
+                          int width, int height, int yRowStride, int uvRowStride,
+                          int uvPixelStride, int rotation, Bitmap outputBitmap,
+                          FaceBatch result) {
+        if (ctx == 0) {
+            return -1;
+        }
+        int faceNum = nativeProcessYUVInto(ctx, yBuffer, uBuffer, vBuffer, width, height,
+                yRowStride, uvRowStride, uvPixelStride, rotation, outputBitmap,
+                result.buffer());
+        result.setDetectedNum(faceNum);
+        return faceNum;
+    }
+
+    /**
+     * 一次预测多张图像，同样大小的图像一起做人脸检测，所有图像的人脸一起做关键点检测和口罩分类，
+     * 只支持延迟优先模式
+     *
+     * @param ARGB8888ImageBitmaps ARGB_8888格式的图像
+     * @return 每张图像的结果，没有人脸时为空数组，出错时返回null
+     */
+    public Face[][] processBatch(Bitmap[] ARGB8888ImageBitmaps) {
+        if (ctx == 0) {
+            return null;
+        }
+        return nativeProcessBatch(ctx, ARGB8888ImageBitmaps);
+    }
+
+    public static native long nativeInit(AssetManager assetManager,
+                                         String pyramidboxModelPath,
                                          int fdtCPUThreadNum,
                                          String fdtCPUPowerMode,
-                                         float fdtInputScale,
+                                         int fdtInputSize,
                                          float[] fdtInputMean,
                                          float[] fdtInputStd,
                                          float fdtScoreThreshold,
@@ -82,9 +419,60 @@ public class PaddleNative {
                                          int mclInputWidth,
                                          int mclInputHeight,
                                          float[] mclInputMean,
-                                         float[] mclInputStd);
+                                         float[] mclInputStd,
+                                         boolean lazyStages,
+                                         int stages);
 
     public static native boolean nativeRelease(long ctx);
 
+    public static native void nativeWarmUp(long ctx);
+
+    public static native boolean nativeGetStats(long ctx, long[] stats);
+
+    public static native void nativeResetStats(long ctx);
+
+    public static native long nativeGetMatAllocations();
+
+    public static native void nativeSetExecutionMode(long ctx, int mode);
+
+    public static native int nativeGetResultDelay(long ctx);
+
+    public static native void nativeSetDetectInterval(long ctx, int detectInterval);
+
+    public static native void nativeSetMinFaceSize(long ctx, int minFaceSize);
+
+    public static native void nativeSetStages(long ctx, int stages);
+
+    public static native void nativeSetMotionGate(long ctx, float sensitivity, int maxSkipFrames);
+
+    public static native void nativeSetDetectionRegions(long ctx, float[] regions);
+
+    public static native void nativeSetDetectionMask(long ctx, byte[] mask, int width, int height);
+
     public static native Face[] nativeProcess(long ctx, Bitmap ARGB888ImageBitmap);
+
+    public static native Face[] nativeProcessBuffer(long ctx, ByteBuffer buffer, int width,
+                                                    int height, int stride, int format);
+
+    public static native Face[] nativeProcessYUV(long ctx, ByteBuffer yBuffer, ByteBuffer uBuffer,
+                                                 ByteBuffer vBuffer, int width, int height,
+                                                 int yRowStride, int uvRowStride,
+                                                 int uvPixelStride, int rotation,
+                                                 Bitmap ARGB8888OutputBitmap);
+
+    public static native Face[][] nativeProcessBatch(long ctx, Bitmap[] ARGB8888ImageBitmaps);
+
+    public static native int nativeProcessInto(long ctx, Bitmap ARGB888ImageBitmap,
+                                               FloatBuffer result);
+
+    public static native int nativeProcessBufferInto(long ctx, ByteBuffer buffer, int width,
+                                                     int height, int stride, int format,
+                                                     FloatBuffer result);
+
+    public static native int nativeProcessYUVInto(long ctx, ByteBuffer yBuffer,
+                                                  ByteBuffer uBuffer, ByteBuffer vBuffer,
+                                                  int width, int height, int yRowStride,
+                                                  int uvRowStride, int uvPixelStride,
+                                                  int rotation, Bitmap ARGB8888OutputBitmap,
+                                                  FloatBuffer result);
 }
@@ -0,0 +1,122 @@
+package com.yeyupiaoling.ai;
+
+import java.util.Locale;
+
+/**
+ * native Pipeline累计的统计数据，由{@link PaddleNative#getStats()}返回，是调用时的快照。
+ * 耗时用单调时钟测量，按2的幂次分桶统计，分位数是所在桶的上界，误差在2倍以内
+ */
+public class PipelineStats {
+    // 计时项，与native的MetricTimer顺序一致
+    public static final int DETECT_PREPROCESS = 0;
+    public static final int DETECT_RUN = 1;
+    public static final int DETECT_POSTPROCESS = 2;
+    public static final int KEYPOINTS_PREPROCESS = 3;
+    public static final int KEYPOINTS_RUN = 4;
+    public static final int KEYPOINTS_POSTPROCESS = 5;
+    public static final int MASK_PREPROCESS = 6;
+    public static final int MASK_RUN = 7;
+    public static final int MASK_POSTPROCESS = 8;
+    // 锁定输入图像的像素或者转换相机的YUV图像
+    public static final int JNI_INPUT = 9;
+    // 把结果写回Face数组或者FaceBatch
+    public static final int JNI_OUTPUT = 10;
+    // 一次完整的预测
+    public static final int FRAME = 11;
+    public static final int TIMER_NUM = 12;
+
+    private static final String[] TIMER_NAMES = {
+            "detect.pre", "detect.run", "detect.post",
+            "keypoints.pre", "keypoints.run", "keypoints.post",
+            "mask.pre", "mask.run", "mask.post",
+            "jni.input", "jni.output", "frame"};
+
+    // 与native的LatencyHistogram保持一致
+    static final int BUCKET_NUM = 20;
+    private static final long BUCKET_BASE_MICROS = 64;
+    private static final int TIMER_SIZE = 3 + BUCKET_NUM;
+    static final int SIZE = 4 + TIMER_NUM * TIMER_SIZE;
+
+    private final long[] data;
+
+    PipelineStats(long[] data) {
+        this.data = data;
+    }
+
+    // 送进Pipeline的图像数量
+    public long getFrames() {
+        return data[0];
+    }
+
+    // 返回结果中的人脸总数
+    public long getFaces() {
+        return data[1];
+    }
+
+    // 送进Pipeline但没有得到结果的图像数量，包括输入出错和切换执行模式时丢弃的图像
+    public long getDroppedFrames() {
+        return data[2];
+    }
+
+    // 场景没有变化，直接返回上一次结果的图像数量，见{@link PaddleNative#setMotionGate(float, int)}
+    public long getSkippedFrames() {
+        return data[3];
+    }
+
+    public long getCount(int timer) {
+        return data[offset(timer)];
+    }
+
+    public double getMeanMillis(int timer) {
+        long count = getCount(timer);
+        return count == 0 ? 0 : data[offset(timer) + 1] / 1000.0 / count;
+    }
+
+    public double getMaxMillis(int timer) {
+        return data[offset(timer) + 2] / 1000.0;
+    }
+
+    /**
+     * @param percentile 0到100之间
+     * @return 估计的分位数，单位毫秒，没有数据时为0
+     */
+    public double getPercentileMillis(int timer, double percentile) {
+        int offset = offset(timer);
+        long count = data[offset];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_NUM - 1; i++) {
+            seen += data[offset + 3 + i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_BASE_MICROS << i, data[offset + 2]) / 1000.0;
+            }
+        }
+        return getMaxMillis(timer);
+    }
+
+    private static int offset(int timer) {
+        if (timer < 0 || timer >= TIMER_NUM) {
+            throw new IllegalArgumentException("unknown timer " + timer);
+        }
+        return 4 + timer * TIMER_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "frames=%d faces=%d dropped=%d skipped=%d",
+                getFrames(), getFaces(), getDroppedFrames(), getSkippedFrames()));
+        for (int i = 0; i < TIMER_NUM; i++) {
+            if (getCount(i) == 0) {
+                continue;
+            }
+            sb.append(String.format(Locale.US, "\n%-15s n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                    TIMER_NAMES[i], getCount(i), getMeanMillis(i), getPercentileMillis(i, 50),
+                    getPercentileMillis(i, 99), getMaxMillis(i)));
+        }
+        return sb.toString();
+    }
+}
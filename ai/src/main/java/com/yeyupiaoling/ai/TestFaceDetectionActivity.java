@@ -15,6 +15,7 @@ import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
 import android.os.Bundle;
@@ -32,6 +33,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.yeyupiaoling.ai.view.AutoFitTextureView;
 
 import java.util.Arrays;
+import java.util.concurrent.Future;
 
 public class TestFaceDetectionActivity extends AppCompatActivity {
     private static final String TAG = TestFaceDetectionActivity.class.getName();
@@ -46,20 +48,39 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
     private ImageReader mImageReader;
     private boolean isFont = true;
     private Size mPreviewSize;
+    // 相机图像转正需要顺时针旋转的角度
+    private int mImageRotation;
     private boolean mCapturing;
 
     private ImageView imageView;
     private AutoFitTextureView mTextureView;
 
-    private final Object lock = new Object();
-    private boolean runClassifier = false;
     private boolean isInfer = true;
+    // 每秒最多预测的次数
+    private static final float TARGET_FPS = 15;
+    // 场景没有变化时跳过预测，至少每秒预测一次
+    private static final float MOTION_SENSITIVITY = 0.5f;
+    private static final int MOTION_MAX_SKIP_FRAMES = (int) TARGET_FPS;
+    private boolean motionGateConfigured = false;
+    // 有新的相机图像时才调度预测，预测慢于相机帧率时只处理最新的一帧
+    private FrameScheduler mFrameScheduler;
+    // 预测结果的显示槽，UI线程来不及显示时只显示最新的结果
+    private LatestFrameSlot<Bitmap> mDisplaySlot;
+    // 模型在后台加载，加载完成之前跳过相机图像
+    private Future<FaceDetectionUtil> faceDetectionUtilFuture;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        faceDetectionUtilFuture = FaceDetectionUtil.getInstanceAsync(this);
         setContentView(R.layout.activity_test_face_detection);
         initView();
+        mDisplaySlot = new LatestFrameSlot<>(new Handler(getMainLooper()), new LatestFrameSlot.Consumer<Bitmap>() {
+            @Override
+            public void accept(Bitmap frame) {
+                imageView.setImageBitmap(frame);
+            }
+        });
         if (!hasPermission()) {
             requestPermission();
         }
@@ -72,21 +93,14 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
         imageView = findViewById(R.id.image_view);
     }
 
-    // 预测图片线程
+    // 预测图片任务，由mFrameScheduler在有新的相机图像时调度
     private Runnable periodicClassify =
             new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (lock) {
-                        if (runClassifier) {
-                            // 开始预测前要判断相机是否已经准备好
-                            if (getApplicationContext() != null && mCameraDevice != null && isInfer) {
-                                detection();
-                            }
-                        }
-                    }
-                    if (mInferThread != null && mInferHandler != null && mCaptureHandler != null && mCaptureThread != null) {
-                        mInferHandler.post(periodicClassify);
+                    // 开始预测前要判断相机是否已经准备好
+                    if (getApplicationContext() != null && mCameraDevice != null && isInfer) {
+                        detection();
                     }
                 }
             };
@@ -94,30 +108,43 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
 
     // detection
     private void detection() {
-        Bitmap bitmap = mTextureView.getBitmap();
+        // 直接读取相机YUV_420_888的最新一帧，不再从TextureView读取Bitmap
+        ImageReader imageReader = mImageReader;
+        Image image;
+        try {
+            image = imageReader == null ? null : imageReader.acquireLatestImage();
+        } catch (IllegalStateException e) {
+            // 相机已经关闭
+            return;
+        }
+        if (image == null) {
+            return;
+        }
         try {
             long start = System.currentTimeMillis();
-            final Face[] result = FaceDetectionUtil.getInstance(TestFaceDetectionActivity.this).predictImage(bitmap);
+            if (!faceDetectionUtilFuture.isDone()) {
+                return;
+            }
+            final FaceDetectionUtil faceDetectionUtil = faceDetectionUtilFuture.get();
+            if (!motionGateConfigured) {
+                faceDetectionUtil.setMotionGate(MOTION_SENSITIVITY, MOTION_MAX_SKIP_FRAMES);
+                motionGateConfigured = true;
+            }
+            final Face[] result = faceDetectionUtil.predictImage(image, mImageRotation);
+            final Bitmap bitmap = faceDetectionUtil.getBitmap();
             long end = System.currentTimeMillis();
             Log.d(TAG, "预测时间：" + (end - start) + "ms");
 
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        if (result != null && result.length > 0) {
-                            Bitmap b = Utils.drawBitmap(FaceDetectionUtil.getInstance(TestFaceDetectionActivity.this).getBitmap(), result);
-                            imageView.setImageBitmap(b);
-                        }else {
-                            imageView.setImageBitmap(FaceDetectionUtil.getInstance(TestFaceDetectionActivity.this).getBitmap());
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            });
+            // 在预测线程画好结果，UI线程只负责显示最新的一帧
+            if (result != null && result.length > 0) {
+                mDisplaySlot.post(Utils.drawBitmap(bitmap, result));
+            } else {
+                mDisplaySlot.post(bitmap);
+            }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            image.close();
         }
     }
 
@@ -199,6 +226,8 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
                     mTextureView.getHeight());
             Log.d("mPreviewSize", String.valueOf(mPreviewSize));
             mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+            Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            mImageRotation = getImageRotation(sensorOrientation == null ? 0 : sensorOrientation);
 
             // float aspectRatio = mPreviewSize.getWidth() * 1.0f / mPreviewSize.getHeight();
             // imageView.setTextureViewDimen(mTextureView.getWidth(),
@@ -242,8 +271,20 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
             final CaptureRequest.Builder captureRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             captureRequestBuilder.addTarget(surface);
 
+            // 预测直接使用这个ImageReader的YUV数据
             mImageReader = ImageReader.newInstance(
-                    mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.JPEG, 10);
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight(), ImageFormat.YUV_420_888, 2);
+            captureRequestBuilder.addTarget(mImageReader.getSurface());
+            mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    // 这里不读取图像，由预测任务用acquireLatestImage()读取最新的一帧
+                    FrameScheduler frameScheduler = mFrameScheduler;
+                    if (frameScheduler != null) {
+                        frameScheduler.onFrameAvailable();
+                    }
+                }
+            }, mCaptureHandler);
 
             mCameraDevice.createCaptureSession(
                     Arrays.asList(surface, mImageReader.getSurface()),
@@ -299,6 +340,16 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
         }
     }
 
+    // 计算相机图像转正需要顺时针旋转的角度
+    private int getImageRotation(int sensorOrientation) {
+        int displayRotation = getWindowManager().getDefaultDisplay().getRotation() * 90;
+        if (isFont) {
+            return (sensorOrientation + displayRotation) % 360;
+        } else {
+            return (sensorOrientation - displayRotation + 360) % 360;
+        }
+    }
+
     // 关闭相机
     private void closeCamera() {
         if (mCaptureSession != null) {
@@ -333,15 +384,17 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
     // 关闭预测线程
     private void stopInferThread() {
         try {
+            if (mFrameScheduler != null) {
+                mFrameScheduler.stop();
+                mFrameScheduler = null;
+            }
+            mDisplaySlot.clear();
             if (mInferThread != null) {
                 mInferThread.quitSafely();
                 mInferThread.join();
             }
             mInferThread = null;
             mInferHandler = null;
-            synchronized (lock) {
-                runClassifier = false;
-            }
         } catch (final Exception e) {
             e.printStackTrace();
         }
@@ -379,10 +432,7 @@ public class TestFaceDetectionActivity extends AppCompatActivity {
         mInferThread = new HandlerThread("inference");
         mInferThread.start();
         mInferHandler = new Handler(mInferThread.getLooper());
-        synchronized (lock) {
-            runClassifier = true;
-        }
-        mInferHandler.post(periodicClassify);
+        mFrameScheduler = new FrameScheduler(mInferHandler, periodicClassify, TARGET_FPS);
     }
 
     @Override
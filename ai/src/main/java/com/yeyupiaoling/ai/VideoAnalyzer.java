@@ -0,0 +1,166 @@
+package com.yeyupiaoling.ai;
+
+import android.graphics.Bitmap;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 用MediaCodec逐帧解码视频文件并预测，解码后的YUV图像直接交给native处理，
+ * 同一时间只有解码器自己的几个缓冲区在内存中，适合处理很长的监控录像
+ */
+public class VideoAnalyzer {
+    private static final String TAG = VideoAnalyzer.class.getName();
+    private static final long TIMEOUT_US = 10000;
+    // MediaFormat.KEY_ROTATION要API 23，低版本的解码器也会带这个字段
+    private static final String KEY_ROTATION = "rotation-degrees";
+
+    public interface Callback {
+        /**
+         * @param frameIndex         视频帧的序号，从0开始
+         * @param presentationTimeUs 视频帧的时间戳，单位微秒
+         * @param faces              检测到的人脸，没有人脸时为空数组
+         * @return 返回false停止处理
+         */
+        boolean onFrame(long frameIndex, long presentationTimeUs, Face[] faces);
+    }
+
+    private final PaddleNative predictor;
+
+    VideoAnalyzer(PaddleNative predictor) {
+        this.predictor = predictor;
+    }
+
+    /**
+     * 吞吐量优先模式下结果会延迟{@link PaddleNative#getResultDelay()}帧，
+     * 这里会把结果对应回正确的帧，但视频最后几帧的结果不会返回
+     *
+     * @param videoPath   视频文件路径
+     * @param frameStride 每多少帧预测一次
+     * @param callback    接收每一帧的结果
+     */
+    public void analyze(String videoPath, int frameStride, Callback callback) throws IOException {
+        frameStride = Math.max(1, frameStride);
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        Bitmap outputBitmap = null;
+        try {
+            extractor.setDataSource(videoPath);
+            int track = selectVideoTrack(extractor);
+            if (track < 0) {
+                throw new IOException("no video track in " + videoPath);
+            }
+            extractor.selectTrack(track);
+            MediaFormat format = extractor.getTrackFormat(track);
+            int rotation = format.containsKey(KEY_ROTATION) ? format.getInteger(KEY_ROTATION) : 0;
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            // 已经送进预测器、还没有拿到结果的帧，{序号, 时间戳}
+            ArrayDeque<long[]> pendingFrames = new ArrayDeque<>();
+            int resultDelay = predictor.getResultDelay();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            boolean outputDone = false;
+            long frameIndex = 0;
+            long start = System.currentTimeMillis();
+            while (!outputDone) {
+                if (!inputDone) {
+                    int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                    if (inputIndex >= 0) {
+                        ByteBuffer inputBuffer = codec.getInputBuffer(inputIndex);
+                        int size = extractor.readSampleData(inputBuffer, 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(inputIndex, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+                if (outputIndex < 0) {
+                    continue;
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    outputDone = true;
+                }
+                // 中间的帧也要解码，后面的帧依赖它们，只是不预测
+                if (info.size > 0 && frameIndex % frameStride == 0) {
+                    Image image = codec.getOutputImage(outputIndex);
+                    if (image != null) {
+                        try {
+                            if (outputBitmap == null) {
+                                outputBitmap = FaceDetectionUtil.createYUVOutputBitmap(
+                                        image.getWidth(), image.getHeight(), rotation);
+                            }
+                            Face[] faces = predict(image, rotation, outputBitmap);
+                            pendingFrames.add(new long[]{frameIndex, info.presentationTimeUs});
+                            if (pendingFrames.size() > resultDelay) {
+                                long[] frame = pendingFrames.poll();
+                                if (!callback.onFrame(frame[0], frame[1], faces)) {
+                                    outputDone = true;
+                                }
+                            }
+                        } finally {
+                            image.close();
+                        }
+                    }
+                }
+                if (info.size > 0) {
+                    frameIndex++;
+                }
+                codec.releaseOutputBuffer(outputIndex, false);
+            }
+            long end = System.currentTimeMillis();
+            Log.d(TAG, "解码" + frameIndex + "帧视频的时间：" + (end - start));
+        } finally {
+            if (codec != null) {
+                codec.stop();
+                codec.release();
+            }
+            extractor.release();
+            if (outputBitmap != null) {
+                outputBitmap.recycle();
+            }
+        }
+    }
+
+    private Face[] predict(Image image, int rotation, Bitmap outputBitmap) {
+        Image.Plane[] planes = image.getPlanes();
+        Face[] faces = predictor.processYUV(planes[0].getBuffer(), planes[1].getBuffer(),
+                planes[2].getBuffer(), image.getWidth(), image.getHeight(),
+                planes[0].getRowStride(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                rotation, outputBitmap);
+        if (faces == null) {
+            return new Face[0];
+        }
+        // 坐标换算回转正后的原始视频帧
+        int width = rotation % 180 == 0 ? image.getWidth() : image.getHeight();
+        FaceDetectionUtil.scaleFaces(faces, (float) width / outputBitmap.getWidth());
+        return faces;
+    }
+
+    private static int selectVideoTrack(MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            String mime = extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
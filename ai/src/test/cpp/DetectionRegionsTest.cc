@@ -0,0 +1,112 @@
+// Detection regions and mask: faces come back in frame coordinates from
+// inside the regions, faces found twice by overlapping regions are dropped,
+// and the mask filters faces by their center.
+
+#include "PipelineTestUtils.h"
+#include "TestUtils.h"
+
+namespace {
+
+const cv::Rect kFrame(0, 0, 640, 480);
+// Where FakeBackend puts its two faces on a whole 640x480 frame
+const cv::Rect kLeftFace(192, 128, 160, 256);
+const cv::Rect kRightFace(384, 160, 128, 236);
+
+std::vector<Face> Detect(Pipeline *pipeline) {
+  cv::Mat frame = GrayFrame(kFrame.width, kFrame.height);
+  std::vector<Face> faces;
+  pipeline->Process(frame, faces);
+  return faces;
+}
+
+bool Inside(const std::vector<Face> &faces, const cv::Rect &rect) {
+  for (const Face &face : faces) {
+    if ((face.roi & rect) != face.roi) {
+      return false;
+    }
+  }
+  return true;
+}
+
+void TestWholeFrame() {
+  std::unique_ptr<Pipeline> pipeline = CreateFakePipeline();
+  std::vector<Face> faces = Detect(pipeline.get());
+  Expect(faces.size() == 2, "two faces without regions");
+  if (faces.size() == 2) {
+    Expect(faces[0].roi == kLeftFace && faces[1].roi == kRightFace,
+           "whole frame faces");
+  }
+}
+
+void TestRegions() {
+  std::unique_ptr<Pipeline> pipeline = CreateFakePipeline();
+  const cv::Rect rightHalf(320, 0, 320, 480);
+  pipeline->SetDetectionRegions({cv::Rect2f(0.5f, 0.0f, 0.5f, 1.0f)});
+  std::vector<Face> faces = Detect(pipeline.get());
+  Expect(faces.size() == 2, "two faces in the region");
+  Expect(Inside(faces, rightHalf), "faces offset into the region");
+
+  // Disjoint regions each find their own faces
+  pipeline->SetDetectionRegions({cv::Rect2f(0.0f, 0.0f, 0.5f, 1.0f),
+                                 cv::Rect2f(0.5f, 0.0f, 0.5f, 1.0f)});
+  faces = Detect(pipeline.get());
+  Expect(faces.size() == 4, "faces of disjoint regions are all kept");
+
+  // The same region twice finds every face twice, the copies are dropped
+  pipeline->SetDetectionRegions({cv::Rect2f(0.5f, 0.0f, 0.5f, 1.0f),
+                                 cv::Rect2f(0.5f, 0.0f, 0.5f, 1.0f)});
+  faces = Detect(pipeline.get());
+  Expect(faces.size() == 2, "duplicates of overlapping regions dropped");
+  Expect(Inside(faces, rightHalf), "deduplicated faces in the region");
+
+  // No regions is the whole frame again
+  pipeline->SetDetectionRegions({});
+  faces = Detect(pipeline.get());
+  Expect(faces.size() == 2 && faces[0].roi == kLeftFace,
+         "regions cleared");
+}
+
+void TestMask() {
+  std::unique_ptr<Pipeline> pipeline = CreateFakePipeline();
+  // Four columns stretched over the frame, the second one is not watched.
+  // Its bounding box is the whole frame, so the faces are the whole frame
+  // ones, and the left face has its center in the second column.
+  cv::Mat mask(1, 4, CV_8UC1, cv::Scalar(255));
+  mask.at<uint8_t>(0, 1) = 0;
+  pipeline->SetDetectionMask(mask);
+  std::vector<Face> faces = Detect(pipeline.get());
+  Expect(faces.size() == 1, "face centered on a masked pixel dropped");
+  if (faces.size() == 1) {
+    Expect(faces[0].roi == kRightFace, "face on a watched pixel kept");
+  }
+
+  // Without regions the detector only looks at the bounding box of the
+  // watched pixels
+  mask.setTo(cv::Scalar(0));
+  mask.at<uint8_t>(0, 2) = 255;
+  mask.at<uint8_t>(0, 3) = 255;
+  pipeline->SetDetectionMask(mask);
+  faces = Detect(pipeline.get());
+  Expect(!faces.empty(), "faces in the watched half");
+  Expect(Inside(faces, cv::Rect(320, 0, 320, 480)),
+         "detector limited to the watched half");
+
+  // Nothing watched, nothing detected
+  mask.setTo(cv::Scalar(0));
+  pipeline->SetDetectionMask(mask);
+  faces = Detect(pipeline.get());
+  Expect(faces.empty(), "empty mask finds nothing");
+
+  pipeline->SetDetectionMask(cv::Mat());
+  faces = Detect(pipeline.get());
+  Expect(faces.size() == 2, "mask cleared");
+}
+
+}  // namespace
+
+int main() {
+  TestWholeFrame();
+  TestRegions();
+  TestMask();
+  return TestResult();
+}
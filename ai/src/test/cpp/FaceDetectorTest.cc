@@ -0,0 +1,123 @@
+// Round-trips face boxes through the letterboxed detector input and
+// FaceDetector::Postprocess, for landscape and portrait frames.
+
+#include "Pipeline.h"
+#include "TestUtils.h"
+#include <algorithm>
+#include <cstdlib>
+#include <memory>
+
+namespace {
+
+const std::vector<float> kMean = {0.407843f, 0.694118f, 0.482353f};
+const std::vector<float> kStd = {0.5f, 0.5f, 0.5f};
+
+// Detector stand-in that "detects" the white rectangle in its own input: it
+// reports the box of the input pixels brighter than mid-gray, in the
+// normalized coordinates of the letterboxed input like the real model.
+class BrightBoxBackend : public InferenceBackend {
+public:
+  void SetInputShape(const int64_t *shape, int dims) override {
+    shape_.assign(shape, shape + dims);
+    input_.resize(ShapeProduction(shape_));
+  }
+
+  float *MutableInputData() override { return input_.data(); }
+
+  bool Run() override {
+    int size = static_cast<int>(shape_[2]);
+    // Blue plane, mid-gray after normalization
+    const float *plane = input_.data();
+    float threshold = (0.5f - kMean[0]) / kStd[0];
+    int left = size, top = size, right = -1, bottom = -1;
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        if (plane[y * size + x] > threshold) {
+          left = std::min(left, x);
+          top = std::min(top, y);
+          right = std::max(right, x);
+          bottom = std::max(bottom, y);
+        }
+      }
+    }
+    output_ = {1.0f, 1.0f, static_cast<float>(left) / size,
+               static_cast<float>(top) / size,
+               static_cast<float>(right + 1) / size,
+               static_cast<float>(bottom + 1) / size};
+    return true;
+  }
+
+  const float *OutputData(int index) const override { return output_.data(); }
+
+  void OutputShape(int index, std::vector<int64_t> *shape) const override {
+    shape->assign({1, 6});
+  }
+
+  void OutputLoD(int index, std::vector<uint64_t> *lod) const override {
+    lod->assign({0, 1});
+  }
+
+  const std::vector<float> &Input() const { return input_; }
+
+  const std::vector<int64_t> &Shape() const { return shape_; }
+
+private:
+  std::vector<int64_t> shape_;
+  std::vector<float> input_;
+  std::vector<float> output_;
+};
+
+void TestRoundTrip(int width, int height, const cv::Rect &box) {
+  cv::Mat image(height, width, CV_8UC4, cv::Scalar(0, 0, 0, 255));
+  image(box).setTo(cv::Scalar(255, 255, 255, 255));
+
+  StageScratch scratch;
+  LatencyHistogram timers[3];
+  auto *backend = new BrightBoxBackend();
+  FaceDetector detector(std::unique_ptr<InferenceBackend>(backend), 160, kMean,
+                        kStd, 0.5f, &scratch, timers);
+  std::vector<Face> faces;
+  detector.Predict(image, &faces);
+
+  // The image fills the input along its long side, the rest of the square is
+  // padded with 0 below or to the right of it
+  int size = static_cast<int>(backend->Shape()[2]);
+  int contentWidth = width * size / std::max(width, height);
+  int contentHeight = height * size / std::max(width, height);
+  bool padded = true;
+  for (int c = 0; c < 3; c++) {
+    const float *plane = backend->Input().data() + c * size * size;
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        if (x >= contentWidth || y >= contentHeight) {
+          padded &= plane[y * size + x] == 0.0f;
+        }
+      }
+    }
+  }
+  Expect(padded, "detector input padding");
+
+  // One input pixel covers long side / size image pixels, allow for that on
+  // each edge plus the truncation in Postprocess
+  int tolerance = std::max(width, height) / size + 1;
+  Expect(faces.size() == 1, "one face detected");
+  if (faces.size() == 1) {
+    const cv::Rect &roi = faces[0].roi;
+    Expect(std::abs(roi.x - box.x) <= tolerance, "left edge maps back");
+    Expect(std::abs(roi.y - box.y) <= tolerance, "top edge maps back");
+    Expect(std::abs(roi.x + roi.width - box.x - box.width) <= tolerance,
+           "right edge maps back");
+    Expect(std::abs(roi.y + roi.height - box.y - box.height) <= tolerance,
+           "bottom edge maps back");
+  }
+}
+
+}  // namespace
+
+int main() {
+  TestRoundTrip(640, 360, cv::Rect(400, 120, 96, 128));
+  TestRoundTrip(360, 640, cv::Rect(60, 420, 128, 96));
+  // Larger than the input in both directions, area averaging on both axes
+  TestRoundTrip(1920, 1080, cv::Rect(1500, 700, 240, 300));
+  return TestResult();
+}
@@ -0,0 +1,161 @@
+// Face patches: the keypoints stage leaves the face crops for the mask stage,
+// the mask stage reads them only when they were made for the same batch of
+// faces, and crops the faces from the frame otherwise.
+
+#include "PipelineTestUtils.h"
+#include "TestUtils.h"
+#include <algorithm>
+
+namespace {
+
+// Where FakeBackend puts its two faces on a whole 640x480 frame
+const cv::Rect kLeftFace(192, 128, 160, 256);
+const cv::Rect kRightFace(384, 160, 128, 236);
+// Same as the mask input, so the mask stage uses the patches as they are
+const cv::Size kPatchSize(128, 128);
+const int kMaskInputSize = 3 * 128 * 128;
+
+// Frame with gradients, so that crops of different places differ
+cv::Mat GradientFrame() {
+  cv::Mat frame = GrayFrame();
+  for (int y = 0; y < frame.rows; y++) {
+    uint8_t *pixel = frame.ptr<uint8_t>(y);
+    for (int x = 0; x < frame.cols; x++, pixel += 4) {
+      pixel[0] = static_cast<uint8_t>(x * 255 / frame.cols);
+      pixel[1] = static_cast<uint8_t>(y * 255 / frame.rows);
+      pixel[2] = static_cast<uint8_t>((x + y) % 256);
+    }
+  }
+  return frame;
+}
+
+std::vector<Face> FakeFaces() {
+  std::vector<Face> faces(2, Face());
+  faces[0].roi = kLeftFace;
+  faces[1].roi = kRightFace;
+  return faces;
+}
+
+// Keypoints and mask stages on fake backends, the mask one recording what
+// it was fed
+class Stages {
+public:
+  Stages() : maskBackend_(new RecordingBackend("maskclassifier.nb")) {
+    keypoints_.reset(new FaceKeypointsDetector(
+        std::unique_ptr<InferenceBackend>(new FakeBackend("facekeypoints.nb")),
+        60, 60, &keypointsScratch_, keypointsTimers_));
+    mask_.reset(new MaskClassifier(
+        std::unique_ptr<InferenceBackend>(maskBackend_), 128, 128,
+        {0.5f, 0.5f, 0.5f}, {1.0f, 1.0f, 1.0f}, &maskScratch_, maskTimers_));
+  }
+
+  void Keypoints(const cv::Mat &frame, std::vector<Face> *faces,
+                 FacePatches *patches) {
+    keypoints_->Predict(frame, faces, patches);
+  }
+
+  // Input of the mask model for the faces
+  std::vector<float> MaskInput(const cv::Mat &frame, std::vector<Face> faces,
+                               const FacePatches *patches) {
+    mask_->Predict(frame, &faces, patches);
+    return maskBackend_->LastInput();
+  }
+
+private:
+  StageScratch keypointsScratch_;
+  StageScratch maskScratch_;
+  LatencyHistogram keypointsTimers_[3];
+  LatencyHistogram maskTimers_[3];
+  // Owned by mask_
+  RecordingBackend *maskBackend_;
+  std::unique_ptr<FaceKeypointsDetector> keypoints_;
+  std::unique_ptr<MaskClassifier> mask_;
+};
+
+bool SameFaceInput(const std::vector<float> &a, const std::vector<float> &b,
+                   int face) {
+  if (a.size() < static_cast<size_t>((face + 1) * kMaskInputSize) ||
+      a.size() != b.size()) {
+    return false;
+  }
+  return std::equal(a.begin() + face * kMaskInputSize,
+                    a.begin() + (face + 1) * kMaskInputSize,
+                    b.begin() + face * kMaskInputSize);
+}
+
+void TestKeypointsFillPatches() {
+  Stages stages;
+  cv::Mat frame = GradientFrame();
+  std::vector<Face> faces = FakeFaces();
+  FacePatches patches;
+  stages.Keypoints(frame, &faces, &patches);
+  Expect(patches.count == 0, "no patches without a patch size");
+
+  faces = FakeFaces();
+  patches.size = kPatchSize;
+  stages.Keypoints(frame, &faces, &patches);
+  Expect(patches.count == faces.size(), "one patch per face");
+  for (size_t k = 0; k < patches.count && k < patches.images.size(); k++) {
+    Expect(patches.images[k].size() == kPatchSize, "patch size");
+    cv::Point center(faces[k].roi.x + faces[k].roi.width / 2,
+                     faces[k].roi.y + faces[k].roi.height / 2);
+    Expect(patches.rois[k].contains(center), "patch around its face");
+    Expect(faces[k].keypoints.size() == 68, "keypoints with patches");
+  }
+}
+
+void TestMaskUsesPatches() {
+  Stages stages;
+  cv::Mat frame = GradientFrame();
+  std::vector<Face> faces = FakeFaces();
+  FacePatches patches;
+  patches.size = kPatchSize;
+  stages.Keypoints(frame, &faces, &patches);
+
+  std::vector<float> cropped = stages.MaskInput(frame, faces, nullptr);
+  Expect(cropped.size() == static_cast<size_t>(2 * kMaskInputSize),
+         "mask input of both faces");
+  std::vector<float> shared = stages.MaskInput(frame, faces, &patches);
+  Expect(shared == cropped, "patches give the same input as cropping");
+
+  // Only a mask stage reading the patch can see this
+  patches.images[0].setTo(cv::Scalar(0, 0, 0, 255));
+  shared = stages.MaskInput(frame, faces, &patches);
+  Expect(!SameFaceInput(shared, cropped, 0), "first face read from its patch");
+  Expect(SameFaceInput(shared, cropped, 1), "second face unchanged");
+}
+
+void TestStalePatchesIgnored() {
+  Stages stages;
+  cv::Mat frame = GradientFrame();
+  std::vector<Face> faces = FakeFaces();
+  FacePatches patches;
+  patches.size = kPatchSize;
+  stages.Keypoints(frame, &faces, &patches);
+  patches.images[0].setTo(cv::Scalar(0, 0, 0, 255));
+  std::vector<float> cropped = stages.MaskInput(frame, faces, nullptr);
+
+  // Patches of another batch, e.g. the keypoints stage didn't run
+  patches.count = 0;
+  Expect(stages.MaskInput(frame, faces, &patches) == cropped,
+         "no patches, faces cropped");
+  patches.count = 1;
+  Expect(stages.MaskInput(frame, faces, &patches) == cropped,
+         "fewer patches than faces, faces cropped");
+
+  // Two patches but a single face: patch 0 belongs to another face
+  patches.count = 2;
+  std::vector<Face> rightFace(1, faces[1]);
+  Expect(stages.MaskInput(frame, rightFace, &patches) ==
+             stages.MaskInput(frame, rightFace, nullptr),
+         "more patches than faces, faces cropped");
+}
+
+}  // namespace
+
+int main() {
+  TestKeypointsFillPatches();
+  TestMaskUsesPatches();
+  TestStalePatchesIgnored();
+  return TestResult();
+}
@@ -0,0 +1,150 @@
+// Tracking between detector runs: ids carried over on tracked frames and
+// across re-detections, lost tracks, and the detector schedule of a pipeline
+// with a detect interval.
+
+#include "PipelineTestUtils.h"
+#include "TestUtils.h"
+#include <algorithm>
+#include <cstdlib>
+
+namespace {
+
+Face MakeFace(const cv::Rect &roi) {
+  Face face;
+  face.roi = roi;
+  face.confidence = 0;
+  face.classid = 0;
+  face.id = -1;
+  return face;
+}
+
+// Stand-in for the keypoints stage: the corners of the face rectangle shrunk
+// by a margin, moved by (dx, dy)
+void SetKeypoints(Face *face, int dx, int dy) {
+  const int margin = 10;
+  double left = face->roi.x + margin + dx;
+  double top = face->roi.y + margin + dy;
+  double right = face->roi.x + face->roi.width - margin + dx;
+  double bottom = face->roi.y + face->roi.height - margin + dy;
+  face->keypoints = {cv::Point2d(left, top), cv::Point2d(right, top),
+                     cv::Point2d(left, bottom), cv::Point2d(right, bottom)};
+}
+
+bool Near(const cv::Rect &a, const cv::Rect &b, int tolerance) {
+  return std::abs(a.x - b.x) <= tolerance && std::abs(a.y - b.y) <= tolerance &&
+         std::abs(a.width - b.width) <= tolerance &&
+         std::abs(a.height - b.height) <= tolerance;
+}
+
+const cv::Size kImageSize(640, 480);
+const cv::Rect kFaceA(100, 100, 80, 100);
+const cv::Rect kFaceB(300, 120, 80, 100);
+
+void TestIdsCarriedOverWhileTracking() {
+  FaceTracker tracker;
+  tracker.SetDetectInterval(3);
+  Expect(tracker.NeedDetection(), "first frame is detected");
+
+  std::vector<Face> faces = {MakeFace(kFaceA), MakeFace(kFaceB)};
+  tracker.AssignIds(&faces);
+  Expect(faces[0].id == 0 && faces[1].id == 1, "new faces get new ids");
+  for (Face &face : faces) {
+    SetKeypoints(&face, 0, 0);
+  }
+  tracker.Update(kImageSize, true, &faces);
+
+  // Two tracked frames, the faces move a few pixels each time
+  for (int frame = 1; frame <= 2; frame++) {
+    Expect(!tracker.NeedDetection(), "tracked frame skips the detector");
+    tracker.Propagate(&faces);
+    Expect(faces.size() == 2, "tracks propagated");
+    if (faces.size() != 2) {
+      return;
+    }
+    Expect(faces[0].id == 0 && faces[1].id == 1, "ids kept while tracking");
+    cv::Rect expectedA = kFaceA + cv::Point(6 * (frame - 1), 4 * (frame - 1));
+    Expect(Near(faces[0].roi, expectedA, 1), "propagated rectangle");
+    for (Face &face : faces) {
+      SetKeypoints(&face, 6, 4);
+    }
+    tracker.Update(kImageSize, false, &faces);
+    Expect(Near(faces[0].roi, expectedA + cv::Point(6, 4), 1),
+           "rectangle follows the keypoints");
+  }
+  Expect(tracker.NeedDetection(), "detector runs again after the interval");
+}
+
+void TestIdsCarriedOverAcrossDetection() {
+  FaceTracker tracker;
+  tracker.SetDetectInterval(3);
+  std::vector<Face> faces = {MakeFace(kFaceA), MakeFace(kFaceB)};
+  tracker.AssignIds(&faces);
+  for (Face &face : faces) {
+    SetKeypoints(&face, 0, 0);
+  }
+  tracker.Update(kImageSize, true, &faces);
+
+  // The detector finds the faces slightly moved, in another order, next to a
+  // new one
+  const cv::Rect newFace(500, 300, 60, 80);
+  std::vector<Face> detected = {MakeFace(kFaceB + cv::Point(8, 4)),
+                                MakeFace(newFace),
+                                MakeFace(kFaceA + cv::Point(-6, 6))};
+  tracker.AssignIds(&detected);
+  Expect(detected[0].id == 1, "id kept by overlap, not by order");
+  Expect(detected[1].id == 2, "new face gets the next id");
+  Expect(detected[2].id == 0, "id kept across the re-detection");
+}
+
+void TestLostTrack() {
+  FaceTracker tracker;
+  tracker.SetDetectInterval(10);
+  std::vector<Face> faces = {MakeFace(kFaceA)};
+  tracker.AssignIds(&faces);
+  SetKeypoints(&faces[0], 0, 0);
+  tracker.Update(kImageSize, true, &faces);
+
+  // The keypoints land far from the rectangle they were searched in
+  tracker.Propagate(&faces);
+  SetKeypoints(&faces[0], 120, 0);
+  tracker.Update(kImageSize, false, &faces);
+  Expect(tracker.NeedDetection(), "jump loses the track");
+
+  // Without keypoints there is nothing to propagate from
+  faces = {MakeFace(kFaceA)};
+  tracker.AssignIds(&faces);
+  tracker.Update(kImageSize, true, &faces);
+  Expect(tracker.NeedDetection(), "face without keypoints is not tracked");
+}
+
+void TestPipelineDetectInterval() {
+  std::unique_ptr<Pipeline> pipeline = CreateFakePipeline();
+  pipeline->SetDetectInterval(3);
+  cv::Mat frame = GrayFrame();
+  std::vector<Face> faces;
+  const int frameNum = 7;
+  for (int i = 0; i < frameNum; i++) {
+    Expect(pipeline->Process(frame, faces), "faces found");
+    std::vector<int> ids;
+    for (const Face &face : faces) {
+      ids.push_back(face.id);
+    }
+    std::sort(ids.begin(), ids.end());
+    Expect(ids == std::vector<int>({0, 1}), "pipeline keeps the ids");
+  }
+  // Frames 1, 4 and 7 run the detector
+  Expect(TimerCount(pipeline->Metrics().timers[TIMER_DETECT_RUN]) == 3,
+         "detector runs once per interval");
+  Expect(TimerCount(pipeline->Metrics().timers[TIMER_KEYPOINTS_RUN]) == frameNum,
+         "keypoints run on every frame");
+}
+
+}  // namespace
+
+int main() {
+  TestIdsCarriedOverWhileTracking();
+  TestIdsCarriedOverAcrossDetection();
+  TestLostTrack();
+  TestPipelineDetectInterval();
+  return TestResult();
+}
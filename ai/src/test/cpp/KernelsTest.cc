@@ -0,0 +1,314 @@
+// Checks that every SIMD variant of the preprocessing kernels available on
+// this machine produces the same output as the scalar one, and the fused
+// resize against straightforward bilinear and area references.
+
+#include "Kernels.h"
+#include "TestUtils.h"
+#include <algorithm>
+#include <cmath>
+#include <cstdio>
+#include <cstring>
+#include <random>
+#include <vector>
+
+namespace {
+
+std::vector<float> RandomData(size_t size, std::mt19937 *rng) {
+  std::uniform_real_distribution<float> dist(0.0f, 1.0f);
+  std::vector<float> data(size);
+  for (auto &v : data) {
+    v = dist(*rng);
+  }
+  return data;
+}
+
+void TestVariant(const PreprocessKernels &scalar,
+                 const PreprocessKernels &variant) {
+  std::mt19937 rng(2020);
+  const float mean[3] = {0.407843f, 0.694118f, 0.482353f};
+  const float std[3] = {0.5f, 0.5f, 0.5f};
+  // Odd sizes so the vector loops leave a scalar tail
+  const int sizes[][2] = {{1, 1}, {3, 5}, {60, 60}, {175, 131}, {128, 128}};
+  for (const auto &size : sizes) {
+    int width = size[0], height = size[1];
+    int count = width * height;
+
+    std::vector<float> src3 = RandomData(count * 3, &rng);
+    std::vector<float> expected3(count * 3), actual3(count * 3);
+    scalar.nhwc3ToNc3hw(src3.data(), expected3.data(), mean, std, width, height);
+    variant.nhwc3ToNc3hw(src3.data(), actual3.data(), mean, std, width, height);
+    Expect(std::memcmp(expected3.data(), actual3.data(),
+                       expected3.size() * sizeof(float)) == 0,
+           variant.name);
+
+    std::vector<float> src1 = RandomData(count, &rng);
+    std::vector<float> expected1(count), actual1(count);
+    scalar.nhwc1ToNc1hw(src1.data(), expected1.data(), mean, std, width, height);
+    variant.nhwc1ToNc1hw(src1.data(), actual1.data(), mean, std, width, height);
+    Expect(std::memcmp(expected1.data(), actual1.data(),
+                       expected1.size() * sizeof(float)) == 0,
+           variant.name);
+
+    // Row blend, the scalar loop may be contracted into FMAs so allow the
+    // last bit to differ
+    const float scale[3] = {1.0f / 127.5f, 1.0f / 127.5f, 1.0f / 127.5f};
+    const float bias[3] = {-0.8f, -1.4f, -1.0f};
+    for (int taps = 1; taps <= 5; taps++) {
+      std::vector<float> rowData = RandomData(taps * width * 3, &rng);
+      std::vector<const float *> rows(taps);
+      for (int k = 0; k < taps; k++) {
+        rows[k] = rowData.data() + k * width * 3;
+      }
+      std::vector<float> weights = RandomData(taps, &rng);
+      // Planes of height rows so the plane stride differs from the width
+      std::vector<float> expected(count * 3), actual(count * 3);
+      scalar.blendRowsToNc3hw(rows.data(), weights.data(), taps, scale, bias,
+                              expected.data(), count, width);
+      variant.blendRowsToNc3hw(rows.data(), weights.data(), taps, scale, bias,
+                               actual.data(), count, width);
+      bool same = true;
+      for (size_t i = 0; i < expected.size(); i++) {
+        same &= std::fabs(expected[i] - actual[i]) <=
+                1e-6f * (1.0f + std::fabs(expected[i]));
+      }
+      Expect(same, variant.name);
+    }
+  }
+}
+
+std::vector<uint8_t> RandomImage(int width, int height, int stride,
+                                 std::mt19937 *rng) {
+  Expect(stride >= width * 4, "RGBA row fits in the stride");
+  std::uniform_int_distribution<int> dist(0, 255);
+  std::vector<uint8_t> image(stride * height);
+  for (auto &v : image) {
+    v = static_cast<uint8_t>(dist(*rng));
+  }
+  return image;
+}
+
+// Per-pixel bilinear sampling, the way the fused kernel computed it before
+// the row cache
+void ReferenceResize(const uint8_t *src, int srcWidth, int srcHeight,
+                     int srcStride, float *dst, int dstWidth, int dstHeight,
+                     const float *mean, const float *std) {
+  float scaleX = static_cast<float>(srcWidth) / dstWidth;
+  float scaleY = static_cast<float>(srcHeight) / dstHeight;
+  int size = dstWidth * dstHeight;
+  for (int dy = 0; dy < dstHeight; dy++) {
+    float fy = std::max((dy + 0.5f) * scaleY - 0.5f, 0.0f);
+    int y0 = std::min(static_cast<int>(fy), srcHeight - 1);
+    int y1 = std::min(y0 + 1, srcHeight - 1);
+    float wy = y0 == srcHeight - 1 ? 0.0f : fy - y0;
+    for (int dx = 0; dx < dstWidth; dx++) {
+      float fx = std::max((dx + 0.5f) * scaleX - 0.5f, 0.0f);
+      int x0 = std::min(static_cast<int>(fx), srcWidth - 1);
+      int x1 = std::min(x0 + 1, srcWidth - 1);
+      float wx = x0 == srcWidth - 1 ? 0.0f : fx - x0;
+      for (int c = 0; c < 3; c++) {
+        auto at = [&](int x, int y) {
+          return static_cast<float>(src[y * srcStride + x * 4 + c]);
+        };
+        float top = at(x0, y0) * (1 - wx) + at(x1, y0) * wx;
+        float bottom = at(x0, y1) * (1 - wx) + at(x1, y1) * wx;
+        float v = top * (1 - wy) + bottom * wy;
+        // RGBA -> BGR planes
+        int out = 2 - c;
+        dst[out * size + dy * dstWidth + dx] =
+            (v / 255.0f - mean[out]) / std[out];
+      }
+    }
+  }
+}
+
+void TestResizeAgainstReference() {
+  std::mt19937 rng(2021);
+  const float mean[3] = {0.407843f, 0.694118f, 0.482353f};
+  const float std[3] = {0.5f, 0.5f, 0.5f};
+  // Up and down scaling by less than 2, odd sizes and a padded stride
+  const int sizes[][4] = {{37, 23, 60, 60}, {128, 96, 75, 61},
+                          {60, 60, 60, 60}, {1, 1, 5, 3}, {90, 131, 61, 92}};
+  for (const auto &size : sizes) {
+    int srcWidth = size[0], srcHeight = size[1];
+    int dstWidth = size[2], dstHeight = size[3];
+    int stride = srcWidth * 4 + 12;
+    std::vector<uint8_t> image = RandomImage(srcWidth, srcHeight, stride, &rng);
+    std::vector<float> expected(dstWidth * dstHeight * 3);
+    std::vector<float> actual(expected.size());
+    ReferenceResize(image.data(), srcWidth, srcHeight, stride, expected.data(),
+                    dstWidth, dstHeight, mean, std);
+    ResizeRGBAToNC3HW(image.data(), srcWidth, srcHeight, stride, actual.data(),
+                      dstWidth, dstHeight, mean, std);
+    float maxError = 0.0f;
+    for (size_t i = 0; i < expected.size(); i++) {
+      maxError = std::max(maxError, std::fabs(expected[i] - actual[i]));
+    }
+    // Well below one gray level, which is 2 / 255 after normalization
+    Expect(maxError < 1e-4f, "ResizeRGBAToNC3HW against reference");
+  }
+}
+
+void TestResizeRGBAToNC3HW() {
+  // 8x4 RGBA image downscaled to 2x1, every output pixel is the average of
+  // the two source columns around its center
+  const int width = 8, height = 4;
+  std::vector<uint8_t> image(width * height * 4);
+  for (int i = 0; i < width * height; i++) {
+    image[i * 4] = 10;
+    image[i * 4 + 1] = 20;
+    image[i * 4 + 2] = (i % width) * 30;
+    image[i * 4 + 3] = 255;
+  }
+  const float mean[3] = {0.0f, 0.0f, 0.0f};
+  const float std[3] = {1.0f, 1.0f, 1.0f};
+  float out[6];
+  ResizeRGBAToNC3HW(image.data(), width, height, width * 4, out, 2, 1, mean, std);
+  const float expected[6] = {45, 165, 20, 20, 10, 10};
+  for (int i = 0; i < 6; i++) {
+    Expect(std::fabs(out[i] * 255.0f - expected[i]) < 1e-3f,
+           "ResizeRGBAToNC3HW");
+  }
+}
+
+// Average of the source pixels covered by each output pixel, partly covered
+// pixels weighted by the covered fraction
+void ReferenceAreaResize(const uint8_t *src, int srcWidth, int srcHeight,
+                         int srcStride, float *dst, int dstWidth,
+                         int dstHeight) {
+  double scaleX = static_cast<double>(srcWidth) / dstWidth;
+  double scaleY = static_cast<double>(srcHeight) / dstHeight;
+  auto coverage = [](int i, double begin, double end) {
+    return std::max(0.0, std::min(end, i + 1.0) - std::max(begin, i + 0.0));
+  };
+  int size = dstWidth * dstHeight;
+  for (int dy = 0; dy < dstHeight; dy++) {
+    for (int dx = 0; dx < dstWidth; dx++) {
+      double sum[3] = {0, 0, 0};
+      for (int y = 0; y < srcHeight; y++) {
+        double wy = coverage(y, dy * scaleY, (dy + 1) * scaleY);
+        for (int x = 0; x < srcWidth && wy > 0; x++) {
+          double w = wy * coverage(x, dx * scaleX, (dx + 1) * scaleX);
+          for (int c = 0; c < 3; c++) {
+            sum[c] += w * src[y * srcStride + x * 4 + c];
+          }
+        }
+      }
+      for (int c = 0; c < 3; c++) {
+        // RGBA -> BGR planes, without normalization
+        dst[(2 - c) * size + dy * dstWidth + dx] =
+            static_cast<float>(sum[c] / (scaleX * scaleY) / 255.0);
+      }
+    }
+  }
+}
+
+void TestAreaDownscale() {
+  std::mt19937 rng(2022);
+  const float mean[3] = {0.0f, 0.0f, 0.0f};
+  const float std[3] = {1.0f, 1.0f, 1.0f};
+  // Integer and fractional factors, and one axis shrinking by less than 2
+  // (bilinear there) next to one shrinking by more (area)
+  const int sizes[][4] = {{12, 8, 3, 2}, {10, 10, 4, 4}, {700, 394, 160, 90}};
+  for (const auto &size : sizes) {
+    int srcWidth = size[0], srcHeight = size[1];
+    int dstWidth = size[2], dstHeight = size[3];
+    int stride = srcWidth * 4;
+    std::vector<uint8_t> image = RandomImage(srcWidth, srcHeight, stride, &rng);
+    std::vector<float> expected(dstWidth * dstHeight * 3);
+    std::vector<float> actual(expected.size());
+    ReferenceAreaResize(image.data(), srcWidth, srcHeight, stride,
+                        expected.data(), dstWidth, dstHeight);
+    ResizeRGBAToNC3HW(image.data(), srcWidth, srcHeight, stride, actual.data(),
+                      dstWidth, dstHeight, mean, std);
+    float maxError = 0.0f;
+    for (size_t i = 0; i < expected.size(); i++) {
+      maxError = std::max(maxError, std::fabs(expected[i] - actual[i]));
+    }
+    Expect(maxError < 1e-4f, "ResizeRGBAToNC3HW area averaging");
+  }
+
+  // A one pixel checkerboard shrunk 5 times is close to uniform gray (an odd
+  // block holds one more pixel of one color), bilinear sampling would pick
+  // single pixels and turn it into a pattern of black and white
+  const int width = 100, height = 100;
+  std::vector<uint8_t> board(width * height * 4);
+  for (int y = 0; y < height; y++) {
+    for (int x = 0; x < width; x++) {
+      uint8_t v = (x + y) % 2 == 0 ? 255 : 0;
+      uint8_t *p = &board[(y * width + x) * 4];
+      p[0] = p[1] = p[2] = v;
+      p[3] = 255;
+    }
+  }
+  std::vector<float> out(20 * 20 * 3);
+  ResizeRGBAToNC3HW(board.data(), width, height, width * 4, out.data(), 20, 20,
+                    mean, std);
+  bool gray = true;
+  for (float v : out) {
+    gray &= std::fabs(v * 255.0f - 127.5f) <= 255.0f / 25 / 2 + 1e-3f;
+  }
+  Expect(gray, "ResizeRGBAToNC3HW area averaging removes aliasing");
+}
+
+void TestLetterbox() {
+  std::mt19937 rng(2023);
+  const float mean[3] = {0.407843f, 0.694118f, 0.482353f};
+  const float std[3] = {0.5f, 0.5f, 0.5f};
+  // Landscape and portrait, with the content in the top-left corner
+  const int sizes[][2] = {{64, 36}, {36, 64}, {350, 197}};
+  const int inputSize = 32;
+  for (const auto &size : sizes) {
+    int srcWidth = size[0], srcHeight = size[1];
+    float scale = static_cast<float>(inputSize) / std::max(srcWidth, srcHeight);
+    int contentWidth = static_cast<int>(std::lround(srcWidth * scale));
+    int contentHeight = static_cast<int>(std::lround(srcHeight * scale));
+    int stride = srcWidth * 4;
+    std::vector<uint8_t> image = RandomImage(srcWidth, srcHeight, stride, &rng);
+    std::vector<float> content(contentWidth * contentHeight * 3);
+    ResizeRGBAToNC3HW(image.data(), srcWidth, srcHeight, stride, content.data(),
+                      contentWidth, contentHeight, mean, std);
+    // Filled with a marker first, so unwritten pixels are caught too
+    std::vector<float> input(inputSize * inputSize * 3, 1234.0f);
+    ResizeRGBAToNC3HWLetterbox(image.data(), srcWidth, srcHeight, stride,
+                               input.data(), inputSize, inputSize, contentWidth,
+                               contentHeight, mean, std);
+    bool padded = true, same = true;
+    for (int c = 0; c < 3; c++) {
+      for (int y = 0; y < inputSize; y++) {
+        for (int x = 0; x < inputSize; x++) {
+          float v = input[(c * inputSize + y) * inputSize + x];
+          if (x < contentWidth && y < contentHeight) {
+            same &= v == content[(c * contentHeight + y) * contentWidth + x];
+          } else {
+            // 0 is the mean color after normalization
+            padded &= v == 0.0f;
+          }
+        }
+      }
+    }
+    Expect(same, "ResizeRGBAToNC3HWLetterbox content");
+    Expect(padded, "ResizeRGBAToNC3HWLetterbox padding");
+  }
+}
+
+}  // namespace
+
+int main() {
+  const PreprocessKernels *scalar = GetPreprocessKernels(SIMD_SCALAR);
+  const SimdLevel levels[] = {SIMD_NEON, SIMD_SSE2, SIMD_AVX2};
+  for (SimdLevel level : levels) {
+    const PreprocessKernels *variant = GetPreprocessKernels(level);
+    if (variant == nullptr) {
+      continue;
+    }
+    std::printf("checking %s against scalar\n", variant->name);
+    TestVariant(*scalar, *variant);
+  }
+  TestResizeRGBAToNC3HW();
+  TestResizeAgainstReference();
+  TestAreaDownscale();
+  TestLetterbox();
+  std::printf("active kernels: %s\n",
+              GetPreprocessKernels(DetectSimdLevel())->name);
+  return TestResult();
+}
@@ -0,0 +1,118 @@
+// MotionGate: static frames are skipped, changes and slow drifts resume
+// processing, maxSkipFrames forces a frame through, and a pipeline answers
+// skipped frames with the faces of the last processed one.
+
+#include "PipelineTestUtils.h"
+#include "TestUtils.h"
+
+namespace {
+
+// Gray frame with the top-left quarter painted white
+cv::Mat ChangedFrame() {
+  cv::Mat frame = GrayFrame();
+  frame(cv::Rect(0, 0, frame.cols / 2, frame.rows / 2))
+      .setTo(cv::Scalar(255, 255, 255, 255));
+  return frame;
+}
+
+void TestDisabledByDefault() {
+  MotionGate gate;
+  cv::Mat frame = GrayFrame();
+  Expect(!gate.Enabled(), "disabled by default");
+  Expect(gate.ShouldProcess(frame) && gate.ShouldProcess(frame),
+         "disabled gate processes every frame");
+  gate.Configure(0.0f, 0);
+  Expect(!gate.Enabled() && gate.ShouldProcess(frame),
+         "sensitivity 0 disables the gate");
+}
+
+void TestSkipAndResume() {
+  MotionGate gate;
+  gate.Configure(0.5f, 0);
+  cv::Mat frame = GrayFrame();
+  Expect(gate.ShouldProcess(frame), "first frame processed");
+  Expect(!gate.ShouldProcess(frame), "static frame skipped");
+
+  // Sensor noise sized changes over the whole frame don't count
+  cv::Mat noisy = GrayFrame();
+  noisy.setTo(cv::Scalar(133, 133, 133, 255));
+  Expect(!gate.ShouldProcess(noisy), "small change skipped");
+
+  Expect(gate.ShouldProcess(ChangedFrame()), "large change processed");
+  Expect(!gate.ShouldProcess(ChangedFrame()), "new scene is the reference");
+  Expect(gate.ShouldProcess(frame), "changing back processed");
+
+  gate.Reset();
+  Expect(gate.ShouldProcess(frame), "frame after Reset processed");
+  Expect(gate.ShouldProcess(GrayFrame(320, 240)),
+         "frame of another size processed");
+}
+
+void TestSlowDrift() {
+  // Each frame only differs a little from the previous one, but frames are
+  // compared with the last processed one, so the drift adds up
+  MotionGate gate;
+  gate.Configure(0.5f, 0);
+  cv::Mat frame = GrayFrame();
+  Expect(gate.ShouldProcess(frame), "first frame processed");
+  int processedAt = -1;
+  for (int step = 1; step <= 6 && processedAt < 0; step++) {
+    int v = 128 + step * 10;
+    frame.setTo(cv::Scalar(v, v, v, 255));
+    if (gate.ShouldProcess(frame)) {
+      processedAt = step;
+    }
+  }
+  Expect(processedAt > 1, "single small step skipped");
+  Expect(processedAt > 0, "accumulated drift processed");
+}
+
+void TestMaxSkipFrames() {
+  MotionGate gate;
+  gate.Configure(0.5f, 3);
+  cv::Mat frame = GrayFrame();
+  const bool expected[] = {true, false, false, false, true, false};
+  bool same = true;
+  for (bool process : expected) {
+    same &= gate.ShouldProcess(frame) == process;
+  }
+  Expect(same, "every 4th static frame processed with maxSkipFrames 3");
+}
+
+void TestPipelineReusesLastFaces() {
+  std::unique_ptr<Pipeline> pipeline = CreateFakePipeline();
+  pipeline->SetMotionGate(0.5f, 0);
+  const LatencyHistogram &detectorRuns =
+      pipeline->Metrics().timers[TIMER_DETECT_RUN];
+  cv::Mat frame = GrayFrame();
+  std::vector<Face> processed, skipped;
+  Expect(pipeline->Process(frame, processed), "first frame has faces");
+  for (int i = 0; i < 2; i++) {
+    Expect(pipeline->Process(frame, skipped), "skipped frame has faces");
+    bool same = skipped.size() == processed.size();
+    for (size_t j = 0; same && j < skipped.size(); j++) {
+      same = skipped[j].roi == processed[j].roi &&
+             skipped[j].keypoints == processed[j].keypoints &&
+             skipped[j].classid == processed[j].classid;
+    }
+    Expect(same, "skipped frame gets the last faces");
+  }
+  Expect(pipeline->Metrics().skippedFrames == 2, "skipped frames counted");
+  Expect(TimerCount(detectorRuns) == 1, "no inference on skipped frames");
+
+  cv::Mat changed = ChangedFrame();
+  Expect(pipeline->Process(changed, skipped), "changed frame has faces");
+  Expect(TimerCount(detectorRuns) == 2, "changed frame processed");
+  Expect(pipeline->Metrics().skippedFrames == 2, "changed frame not skipped");
+}
+
+}  // namespace
+
+int main() {
+  TestDisabledByDefault();
+  TestSkipAndResume();
+  TestSlowDrift();
+  TestMaxSkipFrames();
+  TestPipelineReusesLastFaces();
+  return TestResult();
+}
@@ -0,0 +1,73 @@
+#pragma once
+
+#include "FakeBackend.h"
+#include "Pipeline.h"
+#include "Utils.h"
+#include <memory>
+#include <string>
+#include <vector>
+
+// Helpers of the pipeline tests. Everything runs on FakeBackend, so the
+// results are fixed by FakeBackend.h: two faces per frame, keypoints on an
+// ellipse inside each face crop, and alternating mask classes.
+
+// Latency-first pipeline with the input sizes of the shipped models
+inline std::unique_ptr<Pipeline> CreateFakePipeline() {
+  return std::unique_ptr<Pipeline>(new Pipeline(
+      "pyramidbox.nb", 1, "LITE_POWER_HIGH", 160,
+      {0.407843f, 0.694118f, 0.482353f}, {0.5f, 0.5f, 0.5f}, 0.7f,
+      "facekeypoints.nb", 1, "LITE_POWER_HIGH", 60, 60, "maskclassifier.nb", 1,
+      "LITE_POWER_HIGH", 128, 128, {0.5f, 0.5f, 0.5f}, {1.0f, 1.0f, 1.0f},
+      BACKEND_FAKE));
+}
+
+// Uniform gray RGBA frame
+inline cv::Mat GrayFrame(int width = 640, int height = 480) {
+  return cv::Mat(height, width, CV_8UC4, cv::Scalar(128, 128, 128, 255));
+}
+
+// Number of samples a timer has recorded
+inline int64_t TimerCount(const LatencyHistogram &timer) {
+  int64_t snapshot[LatencyHistogram::kSnapshotSize];
+  timer.Snapshot(snapshot);
+  return snapshot[0];
+}
+
+// Answers like FakeBackend and keeps a copy of the input of the last run, so
+// a test can compare what two runs of a stage were fed
+class RecordingBackend : public InferenceBackend {
+public:
+  explicit RecordingBackend(const std::string &modelPath) : fake_(modelPath) {}
+
+  void SetInputShape(const int64_t *shape, int dims) override {
+    inputSize_ = ShapeProduction(shape, dims);
+    fake_.SetInputShape(shape, dims);
+  }
+
+  float *MutableInputData() override { return fake_.MutableInputData(); }
+
+  bool Run() override {
+    const float *input = fake_.MutableInputData();
+    lastInput_.assign(input, input + inputSize_);
+    return fake_.Run();
+  }
+
+  const float *OutputData(int index) const override {
+    return fake_.OutputData(index);
+  }
+
+  void OutputShape(int index, std::vector<int64_t> *shape) const override {
+    fake_.OutputShape(index, shape);
+  }
+
+  void OutputLoD(int index, std::vector<uint64_t> *lod) const override {
+    fake_.OutputLoD(index, lod);
+  }
+
+  const std::vector<float> &LastInput() const { return lastInput_; }
+
+private:
+  FakeBackend fake_;
+  int64_t inputSize_ = 0;
+  std::vector<float> lastInput_;
+};
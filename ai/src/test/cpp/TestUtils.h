@@ -0,0 +1,20 @@
+#pragma once
+
+#include <cstdio>
+
+// Minimal checks shared by the host tests: failed checks are printed and
+// counted, and main() returns TestResult() so ctest sees the failure.
+
+inline int &TestFailures() {
+  static int failures = 0;
+  return failures;
+}
+
+inline void Expect(bool condition, const char *what) {
+  if (!condition) {
+    std::printf("FAILED: %s\n", what);
+    TestFailures()++;
+  }
+}
+
+inline int TestResult() { return TestFailures() == 0 ? 0 : 1; }
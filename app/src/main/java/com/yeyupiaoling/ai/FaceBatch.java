@@ -0,0 +1,116 @@
+package com.yeyupiaoling.ai;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * 一帧的人脸识别结果，所有人脸按固定的步长存放在同一个direct FloatBuffer中，
+ * 可以在每一帧之间重复使用，不会为每个人脸创建Face对象和数组。
+ * 每个人脸的布局：roi(x, y, width, height)、confidence、classid、id、68个关键点(x, y)
+ */
+public class FaceBatch {
+    public static final int KEYPOINTS_NUM = 68;
+    public static final int STRIDE = 7 + KEYPOINTS_NUM * 2;
+
+    private static final int ROI = 0;
+    private static final int CONFIDENCE = 4;
+    private static final int CLASSID = 5;
+    private static final int ID = 6;
+    private static final int KEYPOINTS = 7;
+
+    private final FloatBuffer buffer;
+    private final int capacity;
+    private int size = 0;
+    private int detectedNum = 0;
+
+    /**
+     * @param capacity 最多保存的人脸数量，超过的人脸会被丢弃
+     */
+    public FaceBatch(int capacity) {
+        this.capacity = capacity;
+        this.buffer = ByteBuffer.allocateDirect(capacity * STRIDE * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    FloatBuffer buffer() {
+        return buffer;
+    }
+
+    // 由PaddleNative在写入结果后调用
+    void setDetectedNum(int detectedNum) {
+        this.detectedNum = Math.max(detectedNum, 0);
+        this.size = Math.min(this.detectedNum, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    // 保存的人脸数量
+    public int size() {
+        return size;
+    }
+
+    // 检测到的人脸数量，大于size()说明容量不够，有人脸被丢弃了
+    public int detectedNum() {
+        return detectedNum;
+    }
+
+    public float left(int i) {
+        return buffer.get(i * STRIDE + ROI);
+    }
+
+    public float top(int i) {
+        return buffer.get(i * STRIDE + ROI + 1);
+    }
+
+    public float width(int i) {
+        return buffer.get(i * STRIDE + ROI + 2);
+    }
+
+    public float height(int i) {
+        return buffer.get(i * STRIDE + ROI + 3);
+    }
+
+    public float confidence(int i) {
+        return buffer.get(i * STRIDE + CONFIDENCE);
+    }
+
+    public int classid(int i) {
+        return (int) buffer.get(i * STRIDE + CLASSID);
+    }
+
+    public int id(int i) {
+        return (int) buffer.get(i * STRIDE + ID);
+    }
+
+    public float keypointX(int i, int k) {
+        return buffer.get(i * STRIDE + KEYPOINTS + k * 2);
+    }
+
+    public float keypointY(int i, int k) {
+        return buffer.get(i * STRIDE + KEYPOINTS + k * 2 + 1);
+    }
+
+    /**
+     * 转换成Face数组，兼容原来的接口，会创建新的对象
+     */
+    public Face[] toFaces() {
+        Face[] faces = new Face[size];
+        for (int i = 0; i < size; i++) {
+            Face face = new Face();
+            face.roi = new float[]{left(i), top(i), width(i), height(i)};
+            face.confidence = confidence(i);
+            face.classid = classid(i);
+            face.id = id(i);
+            face.keypoints = new float[KEYPOINTS_NUM * 2];
+            for (int k = 0; k < KEYPOINTS_NUM * 2; k++) {
+                face.keypoints[k] = buffer.get(i * STRIDE + KEYPOINTS + k);
+            }
+            faces[i] = face;
+        }
+        return faces;
+    }
+}
@@ -0,0 +1,142 @@
+package com.yeyupiaoling.ai;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个相互独立的预测器组成的池，每个预测器有自己的native Pipeline和模型，
+ * 多个线程可以同时预测，适合核心多的设备同时处理多路相机。
+ * 连续的相机图像需要人脸跟踪时，用acquire()为每一路图像固定一个预测器，用完后release()
+ */
+public class FaceDetectionPool {
+    // 等待空闲预测器时每隔这么久检查一次池是否已经关闭
+    private static final long CLOSE_CHECK_INTERVAL_MS = 100;
+
+    private final PaddleNative[] predictors;
+    private final BlockingQueue<PaddleNative> idlePredictors;
+    private boolean closed = false;
+
+    /**
+     * 预测器数量为CPU核心数除以每个预测器的线程数
+     *
+     * @param context    应用上下文
+     * @param numThreads 每个预测器的每个模型使用的线程数
+     */
+    public FaceDetectionPool(Context context, int numThreads) {
+        this(context, Math.max(1, Runtime.getRuntime().availableProcessors() / numThreads), numThreads);
+    }
+
+    /**
+     * @param context    应用上下文
+     * @param poolSize   预测器数量
+     * @param numThreads 每个预测器的每个模型使用的线程数
+     */
+    public FaceDetectionPool(Context context, int poolSize, int numThreads) {
+        if (poolSize <= 0 || numThreads <= 0) {
+            throw new IllegalArgumentException("poolSize and numThreads must be positive");
+        }
+        predictors = new PaddleNative[poolSize];
+        idlePredictors = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            predictors[i] = FaceDetectionUtil.createPredictor(context, numThreads, numThreads,
+                    numThreads, false, PaddleNative.STAGE_ALL);
+            predictors[i].warmUp();
+            idlePredictors.add(predictors[i]);
+        }
+    }
+
+    public int size() {
+        return predictors.length;
+    }
+
+    /**
+     * 取出一个空闲的预测器，没有空闲的预测器时等待，等待中池被关闭时抛出IllegalStateException
+     */
+    public PaddleNative acquire() throws InterruptedException {
+        while (true) {
+            PaddleNative predictor = pollIdle(CLOSE_CHECK_INTERVAL_MS);
+            if (predictor != null) {
+                return predictor;
+            }
+        }
+    }
+
+    /**
+     * 取出一个空闲的预测器，超时返回null，等待中池被关闭时抛出IllegalStateException
+     */
+    public PaddleNative acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            PaddleNative predictor = pollIdle(Math.max(0, Math.min(remainingMs, CLOSE_CHECK_INTERVAL_MS)));
+            if (predictor != null || remainingMs <= 0) {
+                return predictor;
+            }
+        }
+    }
+
+    /**
+     * 归还acquire()取出的预测器，池已经关闭时直接销毁
+     */
+    public synchronized void release(PaddleNative predictor) {
+        // 在锁内放回，close()清空队列之后不会再有预测器放进来
+        if (closed) {
+            predictor.release();
+            return;
+        }
+        idlePredictors.add(predictor);
+    }
+
+    /**
+     * 用任意一个空闲的预测器预测一张图像，可以在多个线程同时调用。
+     * 结果的坐标对应传入的原图，调用者的Bitmap不会被回收
+     *
+     * @param bitmap ARGB_8888格式的图像
+     */
+    public Face[] predictImage(Bitmap bitmap) throws Exception {
+        PaddleNative predictor = acquire();
+        try {
+            // native直接把原图缩放到人脸检测模型的输入大小
+            return predictor.process(bitmap);
+        } finally {
+            release(predictor);
+        }
+    }
+
+    /**
+     * 销毁空闲的预测器，正在使用的预测器在归还时销毁
+     */
+    public synchronized void close() {
+        closed = true;
+        PaddleNative predictor;
+        while ((predictor = idlePredictors.poll()) != null) {
+            predictor.release();
+        }
+    }
+
+    // 最多等待timeoutMs毫秒，取到的预测器在池关闭之后直接销毁
+    private PaddleNative pollIdle(long timeoutMs) throws InterruptedException {
+        checkNotClosed();
+        PaddleNative predictor = idlePredictors.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (predictor != null) {
+            synchronized (this) {
+                if (closed) {
+                    predictor.release();
+                    predictor = null;
+                }
+            }
+        }
+        checkNotClosed();
+        return predictor;
+    }
+
+    private synchronized void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("FaceDetectionPool is closed");
+        }
+    }
+}
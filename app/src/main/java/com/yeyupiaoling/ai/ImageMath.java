@@ -0,0 +1,70 @@
+package com.yeyupiaoling.ai;
+
+/**
+ * Utils中不依赖Android的计算部分，可以直接在JVM上运行和做基准测试
+ */
+public class ImageMath {
+
+    // get max probability label
+    public static int getMaxResult(float[] result) {
+        float probability = 0;
+        int r = 0;
+        for (int i = 0; i < result.length; i++) {
+            if (probability < result[i]) {
+                probability = result[i];
+                r = i;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * 获取最优的预览图片大小
+     *
+     * @param widths  候选大小的宽
+     * @param heights 候选大小的高
+     * @param width   期望的宽
+     * @param height  期望的高
+     * @return 选中的候选大小的下标
+     */
+    public static int chooseOptimalSize(int[] widths, int[] heights, int width, int height) {
+        // Collect the supported resolutions that are at least as big as the preview Surface
+        float desiredAspectRatio = width * 1.0f / height; //in landscape perspective
+        float bestAspectRatio = 0;
+        int best = -1;
+        for (int i = 0; i < widths.length; i++) {
+            if (widths[i] == width && heights[i] == height) {
+                return i;
+            }
+
+            float aspectRatio = widths[i] * 1.0f / heights[i];
+            if (aspectRatio > desiredAspectRatio) continue; //smaller than screen
+            if (heights[i] < height || widths[i] < width) continue;
+            //try to find the best aspect ratio which fits in screen, then the smallest area
+            if (aspectRatio > bestAspectRatio) {
+                bestAspectRatio = aspectRatio;
+                best = i;
+            } else if (aspectRatio == bestAspectRatio
+                    && (long) widths[i] * heights[i] < (long) widths[best] * heights[best]) {
+                best = i;
+            }
+        }
+        return best >= 0 ? best : 0;
+    }
+
+    /**
+     * 把图片的长边压缩到size的缩放比例
+     *
+     * @return 缩放比例，图片的宽高都小于size时为1
+     */
+    public static float getScale(int width, int height, int size) {
+        if (height < size && width < size) {
+            return 1;
+        }
+        if (height > width) {
+            return (float) size / height;
+        } else {
+            return (float) size / width;
+        }
+    }
+}
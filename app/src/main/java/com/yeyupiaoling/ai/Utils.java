@@ -19,62 +19,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.Properties;
 
 public class Utils {
     private static final String TAG = Utils.class.getName();
+    private static final String MODEL_MANIFEST = "model_manifest.properties";
+    private static Properties modelManifest;
 
 
     // 获取最优的预览图片大小
     public static Size chooseOptimalSize(final Size[] choices, final int width, final int height) {
-        final Size desiredSize = new Size(width, height);
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        boolean exactSizeFound = false;
-        float desiredAspectRatio = width * 1.0f / height; //in landscape perspective
-        float bestAspectRatio = 0;
-        final List<Size> bigEnough = new ArrayList<Size>();
-        for (final Size option : choices) {
-            if (option.equals(desiredSize)) {
-                // Set the size but don't return yet so that remaining sizes will still be logged.
-                exactSizeFound = true;
-                break;
-            }
-
-            float aspectRatio = option.getWidth() * 1.0f / option.getHeight();
-            if (aspectRatio > desiredAspectRatio) continue; //smaller than screen
-            //try to find the best aspect ratio which fits in screen
-            if (aspectRatio > bestAspectRatio) {
-                if (option.getHeight() >= height && option.getWidth() >= width) {
-                    bigEnough.clear();
-                    bigEnough.add(option);
-                    bestAspectRatio = aspectRatio;
-                }
-            } else if (aspectRatio == bestAspectRatio) {
-                if (option.getHeight() >= height && option.getWidth() >= width) {
-                    bigEnough.add(option);
-                }
-            }
-        }
-        if (exactSizeFound) {
-            return desiredSize;
-        }
-
-        if (bigEnough.size() > 0) {
-            final Size chosenSize = Collections.min(bigEnough, new Comparator<Size>() {
-                @Override
-                public int compare(Size lhs, Size rhs) {
-                    return Long.signum(
-                            (long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
-                }
-            });
-            return chosenSize;
-        } else {
-            return choices[0];
+        int[] widths = new int[choices.length];
+        int[] heights = new int[choices.length];
+        for (int i = 0; i < choices.length; i++) {
+            widths[i] = choices[i].getWidth();
+            heights[i] = choices[i].getHeight();
         }
+        return choices[ImageMath.chooseOptimalSize(widths, heights, width, height)];
     }
 
     /**
@@ -85,25 +46,54 @@ public class Utils {
      * @param new_path    copy to new path
      */
     public static void copyFileFromAsset(Context context, String assets_path, String new_path) {
+        copyFileFromAsset(context, assets_path, new_path, false);
+    }
+
+    /**
+     * copy model file to local. 构建时生成了模型清单时，只比较大小、修改时间和清单中的MD5，
+     * 不用每次启动都计算整个文件的MD5
+     *
+     * @param context            activity context
+     * @param assets_path        model in assets path
+     * @param new_path           copy to new path
+     * @param verifyInBackground 在后台线程完整校验已有文件的MD5，不一致时删除，下次启动重新复制
+     */
+    public static void copyFileFromAsset(Context context, String assets_path, String new_path,
+                                         boolean verifyInBackground) {
         File father_path = new File(new File(new_path).getParent());
         if (!father_path.exists()) {
             father_path.mkdirs();
         }
+        File new_file = new File(new_path);
+        Properties manifest = loadModelManifest(context);
+        String md5 = manifest.getProperty(assets_path + ".md5");
+        String size = manifest.getProperty(assets_path + ".size");
         try {
-            File new_file = new File(new_path);
-            InputStream is_temp = context.getAssets().open(assets_path);
-            if (new_file.exists() && new_file.isFile()) {
-                if (contrastFileMD5(new_file, is_temp)) {
+            if (md5 != null && size != null) {
+                if (isCopyUpToDate(new_file, Long.parseLong(size), md5)) {
                     Log.d(TAG, new_path + " is exists!");
+                    if (verifyInBackground) {
+                        verifyFileInBackground(new_file, md5);
+                    }
                     return;
-                } else {
-                    Log.d(TAG, "delete old model file!");
-                    new_file.delete();
                 }
+            } else if (new_file.exists() && new_file.isFile()) {
+                // 没有模型清单时还是比较整个文件的MD5
+                InputStream is_temp = context.getAssets().open(assets_path);
+                boolean same = contrastFileMD5(new_file, is_temp);
+                is_temp.close();
+                if (same) {
+                    Log.d(TAG, new_path + " is exists!");
+                    return;
+                }
+            }
+            if (new_file.exists()) {
+                Log.d(TAG, "delete old model file!");
+                new_file.delete();
             }
             InputStream is = context.getAssets().open(assets_path);
             FileOutputStream fos = new FileOutputStream(new_file);
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[64 * 1024];
             int byteCount;
             while ((byteCount = is.read(buffer)) != -1) {
                 fos.write(buffer, 0, byteCount);
@@ -111,26 +101,101 @@ public class Utils {
             fos.flush();
             is.close();
             fos.close();
+            if (md5 != null) {
+                writeStamp(new_file, md5);
+            }
             Log.d(TAG, "the model file is copied");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // 构建时生成的模型大小和MD5，见ai/build.gradle的generateModelManifest，没有时为空
+    private static synchronized Properties loadModelManifest(Context context) {
+        if (modelManifest == null) {
+            modelManifest = new Properties();
+            try {
+                InputStream is = context.getAssets().open(MODEL_MANIFEST);
+                modelManifest.load(is);
+                is.close();
+            } catch (IOException e) {
+                Log.w(TAG, "no " + MODEL_MANIFEST + " in assets, fall back to MD5 check");
+            }
+        }
+        return modelManifest;
+    }
+
+    // 复制完成后记录模型的MD5和文件的修改时间，文件被替换或者模型更新后就对不上了
+    private static File stampFile(File file) {
+        return new File(file.getPath() + ".stamp");
+    }
+
+    private static void writeStamp(File file, String md5) throws IOException {
+        FileOutputStream fos = new FileOutputStream(stampFile(file));
+        fos.write((md5 + " " + file.lastModified()).getBytes("UTF-8"));
+        fos.close();
+    }
+
+    private static boolean isCopyUpToDate(File file, long size, String md5) throws IOException {
+        File stamp = stampFile(file);
+        if (!file.isFile() || file.length() != size || !stamp.isFile()) {
+            return false;
+        }
+        byte[] buffer = new byte[(int) stamp.length()];
+        FileInputStream in = new FileInputStream(stamp);
+        int len = in.read(buffer);
+        in.close();
+        String expected = md5 + " " + file.lastModified();
+        return len == buffer.length && expected.equals(new String(buffer, "UTF-8"));
+    }
+
+    private static void verifyFileInBackground(final File file, final String md5) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("MD5");
+                    byte[] buffer = new byte[64 * 1024];
+                    FileInputStream in = new FileInputStream(file);
+                    int len;
+                    while ((len = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, len);
+                    }
+                    in.close();
+                    if (!md5.equals(toHex(digest.digest()))) {
+                        Log.w(TAG, file + " is corrupted, it will be copied again on next start");
+                        stampFile(file).delete();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "VerifyModel").start();
+    }
+
+    // 32位小写十六进制，与generateModelManifest的格式相同
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
     //get bin file's md5 string
     private static boolean contrastFileMD5(File new_file, InputStream assets_file) {
         MessageDigest new_file_digest, assets_file_digest;
         int len;
         try {
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[64 * 1024];
             new_file_digest = MessageDigest.getInstance("MD5");
             FileInputStream in = new FileInputStream(new_file);
-            while ((len = in.read(buffer, 0, 1024)) != -1) {
+            while ((len = in.read(buffer)) != -1) {
                 new_file_digest.update(buffer, 0, len);
             }
 
             assets_file_digest = MessageDigest.getInstance("MD5");
-            while ((len = assets_file.read(buffer, 0, 1024)) != -1) {
+            while ((len = assets_file.read(buffer)) != -1) {
                 assets_file_digest.update(buffer, 0, len);
             }
             in.close();
@@ -147,15 +212,7 @@ public class Utils {
 
     // get max probability label
     public static int getMaxResult(float[] result) {
-        float probability = 0;
-        int r = 0;
-        for (int i = 0; i < result.length; i++) {
-            if (probability < result[i]) {
-                probability = result[i];
-                r = i;
-            }
-        }
-        return r;
+        return ImageMath.getMaxResult(result);
     }
 
     // get photo from Uri
@@ -180,12 +237,7 @@ public class Utils {
         if (bmpHeight < size && bmpWidth < size){
             return bitmap;
         }
-        float scale;
-        if (bmpHeight > bmpWidth){
-            scale = (float) size / bmpHeight;
-        }else {
-            scale = (float) size / bmpWidth;
-        }
+        float scale = ImageMath.getScale(bmpWidth, bmpHeight, size);
         Matrix matrix = new Matrix();
         matrix.postScale(scale, scale);
         return Bitmap.createBitmap(bitmap, 0, 0, bmpWidth, bmpHeight, matrix, true);
@@ -193,40 +245,47 @@ public class Utils {
 
 
     public static Bitmap drawBitmap(Bitmap bitmap, Face[] faces){
-        int left, top, right, bottom;
-        Canvas canvas = new Canvas(bitmap);
-        Paint paint = new Paint();
-        paint.setColor(Color.GREEN);
-        paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeWidth(2);
-        Paint paint1 = new Paint();
-        paint1.setColor(Color.RED);
-        paint1.setStyle(Paint.Style.STROKE);
-        paint1.setStrokeWidth(3);
-        Paint paint2 = new Paint();
-        paint2.setColor(Color.CYAN);
-        paint2.setStyle(Paint.Style.STROKE);
-        paint2.setTextSize(22);
-        paint2.setStrokeWidth(1);
-
-        for (Face face : faces) {
-            left = (int) (face.roi[0]);
-            top = (int) (face.roi[1]);
-            right = (int) (face.roi[2] + face.roi[0]);
-            bottom = (int) (face.roi[3] + face.roi[1]);
+        FaceRenderer.draw(faces, new BitmapFaceCanvas(bitmap));
+        return bitmap;
+    }
+
+    // 用Canvas实现的FaceCanvas
+    private static class BitmapFaceCanvas implements FaceCanvas {
+        private final Canvas canvas;
+        private final Paint paint;
+        private final Paint paint1;
+        private final Paint paint2;
 
+        BitmapFaceCanvas(Bitmap bitmap) {
+            canvas = new Canvas(bitmap);
+            paint = new Paint();
+            paint.setColor(Color.GREEN);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeWidth(2);
+            paint1 = new Paint();
+            paint1.setColor(Color.RED);
+            paint1.setStyle(Paint.Style.STROKE);
+            paint1.setStrokeWidth(3);
+            paint2 = new Paint();
+            paint2.setColor(Color.CYAN);
+            paint2.setStyle(Paint.Style.STROKE);
+            paint2.setTextSize(22);
+            paint2.setStrokeWidth(1);
+        }
+
+        @Override
+        public void drawFaceRect(int left, int top, int right, int bottom) {
             canvas.drawRect(left, top, right, bottom, paint1);
+        }
 
-            for (int j = 0; j < face.keypoints.length; j = j + 2) {
-                canvas.drawText(String.valueOf(j / 2), face.keypoints[j], face.keypoints[j + 1], paint);
-            }
+        @Override
+        public void drawKeypointLabel(String label, float x, float y) {
+            canvas.drawText(label, x, y, paint);
+        }
 
-            if (face.classid == 1){
-                canvas.drawText("戴口罩", left, top, paint2);
-            }else {
-                canvas.drawText("未戴口罩", left, top, paint2);
-            }
+        @Override
+        public void drawMaskLabel(String label, int x, int y) {
+            canvas.drawText(label, x, y, paint2);
         }
-        return bitmap;
     }
 }
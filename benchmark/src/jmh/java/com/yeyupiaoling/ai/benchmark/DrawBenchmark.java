@@ -0,0 +1,50 @@
+package com.yeyupiaoling.ai.benchmark;
+
+import com.yeyupiaoling.ai.Face;
+import com.yeyupiaoling.ai.FaceCanvas;
+import com.yeyupiaoling.ai.FaceRenderer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Utils.drawBitmap中与Canvas无关的部分：遍历结果、计算坐标和关键点文字
+ */
+@State(Scope.Benchmark)
+public class DrawBenchmark {
+    @Param({"1", "4"})
+    public int faceNum;
+
+    private Face[] faces;
+
+    @Setup
+    public void setup() {
+        faces = Faces.create(faceNum);
+    }
+
+    @Benchmark
+    public void draw(final Blackhole blackhole) {
+        FaceRenderer.draw(faces, new FaceCanvas() {
+            @Override
+            public void drawFaceRect(int left, int top, int right, int bottom) {
+                blackhole.consume(left + top + right + bottom);
+            }
+
+            @Override
+            public void drawKeypointLabel(String label, float x, float y) {
+                blackhole.consume(label);
+                blackhole.consume(x + y);
+            }
+
+            @Override
+            public void drawMaskLabel(String label, int x, int y) {
+                blackhole.consume(label);
+                blackhole.consume(x + y);
+            }
+        });
+    }
+}
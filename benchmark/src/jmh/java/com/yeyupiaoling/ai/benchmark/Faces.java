@@ -0,0 +1,33 @@
+package com.yeyupiaoling.ai.benchmark;
+
+import com.yeyupiaoling.ai.Face;
+
+/**
+ * 基准测试用的人脸结果
+ */
+final class Faces {
+    static final int KEYPOINTS_NUM = 68;
+
+    private Faces() {
+    }
+
+    // faceNum个人脸，每个人脸68个关键点分布在人脸框内
+    static Face[] create(int faceNum) {
+        Face[] faces = new Face[faceNum];
+        for (int i = 0; i < faceNum; i++) {
+            Face face = new Face();
+            face.roi = new float[]{40 + i * 150, 60, 120, 140};
+            face.confidence = 0.9f;
+            face.classid = i % 2;
+            face.id = i;
+            face.keypoints = new float[KEYPOINTS_NUM * 2];
+            for (int j = 0; j < KEYPOINTS_NUM; j++) {
+                double angle = 2 * Math.PI * j / KEYPOINTS_NUM;
+                face.keypoints[j * 2] = (float) (face.roi[0] + face.roi[2] * (0.5 + 0.35 * Math.cos(angle)));
+                face.keypoints[j * 2 + 1] = (float) (face.roi[1] + face.roi[3] * (0.5 + 0.4 * Math.sin(angle)));
+            }
+            faces[i] = face;
+        }
+        return faces;
+    }
+}
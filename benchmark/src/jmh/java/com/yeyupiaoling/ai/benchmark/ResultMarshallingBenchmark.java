@@ -0,0 +1,57 @@
+package com.yeyupiaoling.ai.benchmark;
+
+import com.yeyupiaoling.ai.Face;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * JNI返回结果时在Java堆上做的工作：每个人脸一个Face对象和roi、keypoints两个数组，
+ * 数据从native的结果中拷贝过来（对应SetFloatArrayRegion）
+ */
+@State(Scope.Benchmark)
+public class ResultMarshallingBenchmark {
+    // roi(4) + confidence + classid + id + keypoints(136)
+    private static final int FACE_STRIDE = 4 + 3 + Faces.KEYPOINTS_NUM * 2;
+
+    @Param({"1", "4"})
+    public int faceNum;
+
+    // native结果的扁平布局
+    private float[] nativeResult;
+
+    @Setup
+    public void setup() {
+        Face[] faces = Faces.create(faceNum);
+        nativeResult = new float[faceNum * FACE_STRIDE];
+        for (int i = 0; i < faceNum; i++) {
+            int offset = i * FACE_STRIDE;
+            System.arraycopy(faces[i].roi, 0, nativeResult, offset, 4);
+            nativeResult[offset + 4] = faces[i].confidence;
+            nativeResult[offset + 5] = faces[i].classid;
+            nativeResult[offset + 6] = faces[i].id;
+            System.arraycopy(faces[i].keypoints, 0, nativeResult, offset + 7, Faces.KEYPOINTS_NUM * 2);
+        }
+    }
+
+    @Benchmark
+    public Face[] toFaceArray() {
+        Face[] faces = new Face[faceNum];
+        for (int i = 0; i < faceNum; i++) {
+            int offset = i * FACE_STRIDE;
+            Face face = new Face();
+            face.roi = new float[4];
+            System.arraycopy(nativeResult, offset, face.roi, 0, 4);
+            face.confidence = nativeResult[offset + 4];
+            face.classid = (int) nativeResult[offset + 5];
+            face.id = (int) nativeResult[offset + 6];
+            face.keypoints = new float[Faces.KEYPOINTS_NUM * 2];
+            System.arraycopy(nativeResult, offset + 7, face.keypoints, 0, Faces.KEYPOINTS_NUM * 2);
+            faces[i] = face;
+        }
+        return faces;
+    }
+}
@@ -0,0 +1,35 @@
+package com.yeyupiaoling.ai.benchmark;
+
+import com.yeyupiaoling.ai.ImageMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Utils中图片大小选择、缩放比例和最大概率的计算
+ */
+@State(Scope.Benchmark)
+public class UtilsBenchmark {
+    // 一台常见手机后置摄像头的输出大小
+    private final int[] widths = new int[]{4032, 4000, 3840, 3264, 2560, 1920, 1920, 1600, 1440,
+            1280, 1280, 1024, 960, 800, 720, 640, 640, 352, 320, 176};
+    private final int[] heights = new int[]{3024, 3000, 2160, 2448, 1440, 1440, 1080, 1200, 1080,
+            960, 720, 768, 720, 600, 480, 480, 360, 288, 240, 144};
+    private final float[] maskResult = new float[]{0.2f, 0.8f};
+
+    @Benchmark
+    public int chooseOptimalSize() {
+        return ImageMath.chooseOptimalSize(widths, heights, 1080, 810);
+    }
+
+    @Benchmark
+    public float getScale() {
+        return ImageMath.getScale(4032, 3024, 700);
+    }
+
+    @Benchmark
+    public int getMaxResult() {
+        return ImageMath.getMaxResult(maskResult);
+    }
+}